@@ -9,15 +9,32 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
+import com.bol.ejoy.core.Backoff;
+import com.bol.ejoy.core.BufferPool;
+import com.bol.ejoy.core.CommandEncoder;
+import com.bol.ejoy.core.CommandFuture;
+import com.bol.ejoy.core.CommandWindow;
+import com.bol.ejoy.core.ConnectionState;
+import com.bol.ejoy.core.IoScheduler;
+import com.bol.ejoy.core.Metrics;
+import com.bol.ejoy.core.Transport;
+import com.bol.ejoy.core.TransportLink;
+import com.bol.ejoy.core.WireTraceWriter;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
@@ -28,7 +45,17 @@ import java.util.UUID;
 
 public class Bluetooth {
     public static final int MESSAGE_STATE_CHANGE = 1;
+    /**
+     * Bytes read from the device: obj is a {@link BufferPool.Buffer} leased to the handler and
+     * arg1 its length. The handler owns the lease and must call {@link BufferPool.Buffer#release()}
+     * once done with the bytes, a handler not interested in the reads still releases them. The
+     * reads are dropped while every buffer is out, see {@link #getMetrics()}.
+     */
     public static final int MESSAGE_READ = 2;
+    /**
+     * Bytes written to the device, obj is a copy and arg1 its length; only sent while the echo
+     * is on, see {@link #setWriteEcho(boolean)}
+     */
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
 
@@ -37,10 +64,10 @@ public class Bluetooth {
     // SPP "0001101-0000-1000-8000-00805F9B34FB"
     public static final int MESSAGE_TOAST = 5;
     // Constants that indicate the current connection state
-    public static final int STATE_NONE = 0; // we're doing nothing
-    public static final int STATE_LISTEN = 1; // now listening for incoming connections
-    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
-    public static final int STATE_CONNECTED = 3; // now connected to a remote device
+    public static final int STATE_NONE = ConnectionState.NONE; // we're doing nothing
+    public static final int STATE_LISTEN = ConnectionState.LISTEN; // now listening for incoming connections
+    public static final int STATE_CONNECTING = ConnectionState.CONNECTING; // now initiating an outgoing connection
+    public static final int STATE_CONNECTED = ConnectionState.CONNECTED; // now connected to a remote device
     // Debugging
     private static final String TAG = "BluetoothService";
     private static final boolean D = true;
@@ -48,13 +75,60 @@ public class Bluetooth {
     private static final String NAME = "BluetoothChat";
     // Unique UUID for this application
     private static final UUID MY_UUID = UUID.fromString("0001101-0000-1000-8000-00805F9B34FB");
+    // delays between the reconnect attempts after the first immediate one
+    private static final long RECONNECT_INITIAL_DELAY = 250;
+    private static final long RECONNECT_MAX_DELAY = 30000;
     // Member fields
     private final BluetoothAdapter mAdapter;
     private final Handler mHandler;
-    private AcceptThread mAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
+    // the connect strategy that worked for every device
+    private final SharedPreferences mStrategies;
+    // encodes the messages, reused from one message to the next
+    private final CommandEncoder mEncoder = new CommandEncoder();
+    // color commands in flight, at most 8 for 500 ms and 3 writes each
+    private final CommandWindow mCommands = new CommandWindow(new CommandWindow.Sink() {
+        @Override
+        public void write(byte[] buffer, int off, int len) throws IOException {
+            // called on the sending or the retransmitting thread, the link may drop meanwhile
+            TransportLink link = mConnectedLink;
+            if (link == null)
+                throw new IOException("not connected");
+            link.write(buffer, off, len);
+        }
+    }, 8, 500, 3);
+    // the accept, connect and reconnect tasks and the read loop run on the shared pools
+    private final IoScheduler mScheduler = IoScheduler.getShared();
+    private AcceptTask mAcceptTask;
+    private ConnectTask mConnectTask;
+    private volatile TransportLink mConnectedLink;
+    private ReconnectTask mReconnectTask;
+    // read without locking by the send path, the transitions are checked
+    private final ConnectionState mState = new ConnectionState(STATE_NONE);
+    // the last device connected, redialed when the link drops
+    private volatile String mLastAddress;
+    private volatile boolean mAutoReconnect = true;
+    // copies of the writes posted to the handler, for debugging only
+    private volatile boolean mWriteEcho;
+    // last color sent, applied again after a reconnect
+    private volatile int mLastColor;
+    private volatile boolean mHasColor;
+    // addresses of the bonded devices by name
+    private final Map<String, String> mAddresses = new HashMap<>();
+    // raw capture of the incoming data, null when not capturing
+    private final AtomicReference<WireTraceWriter> mCapture = new AtomicReference<>();
+    // read into by the link and posted with MESSAGE_READ
+    private final BufferPool mReadBuffers = new BufferPool(16, TransportLink.READ_BUFFER_SIZE);
+    // reads not posted because the handler holds every buffer, counted even with the metrics off
+    private final AtomicLong mDroppedReads = new AtomicLong();
+    private final AtomicLong mDroppedBytes = new AtomicLong();
+    // the last read was dropped, used by the reading thread only
+    private boolean mDropping;
+    // disabled until asked for, see getMetrics()
+    private final Metrics mMetrics = new Metrics();
+    private final Metrics.Counter mReads = mMetrics.counter("link.reads");
+    private final Metrics.Counter mBytesRead = mMetrics.counter("link.bytes_read");
+    private final Metrics.Histogram mReadSizes = mMetrics.histogram("link.read_size");
+    private final Metrics.Counter mReconnects = mMetrics.counter("link.reconnects");
 
     /**
      * Constructor. Prepares a new BluetoothChat session.
@@ -66,15 +140,45 @@ public class Bluetooth {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         if (D) for (BluetoothDevice bd : mAdapter.getBondedDevices())
             Log.d(TAG, "Bounded device " + bd);
-        mState = STATE_NONE;
         mHandler = handler;
+        mStrategies = RacingRfcommTransport.getPreferences(context);
+        mState.addListener(new ConnectionState.Listener() {
+            @Override
+            public void onStateChanged(int from, int to) {
+                if (D)
+                    Log.d(TAG, "setState() " + from + " -> " + to);
+                // Give the new state to the Handler so the UI Activity can update
+                mHandler.obtainMessage(MESSAGE_STATE_CHANGE, to, -1)
+                        .sendToTarget();
+            }
+        });
+        mCommands.registerMetrics(mMetrics, "commands.");
+        mMetrics.gauge("link.dropped_reads", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mDroppedReads.get();
+            }
+        });
+        mMetrics.gauge("link.dropped_bytes", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mDroppedBytes.get();
+            }
+        });
     }
 
     /**
-     * Return the current connection state.
+     * Return the metrics of the connection, recording only once enabled.
      */
-    public synchronized int getState() {
-        return mState;
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Return the current connection state, never blocks.
+     */
+    public int getState() {
+        return mState.get();
     }
 
     /**
@@ -82,18 +186,24 @@ public class Bluetooth {
      *
      * @param state An integer defining the current connection state
      */
-    private synchronized void setState(int state) {
-        if (D)
-            Log.d(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
+    private void setState(int state) {
+        if (mState.moveTo(state) < 0)
+            Log.w(TAG, "setState() " + mState.get() + " -> " + state + " refused");
+    }
+
+    /**
+     * Be told about the state changes on the thread making them, the listener must not block
+     */
+    public void addStateListener(ConnectionState.Listener listener) {
+        mState.addListener(listener);
+    }
 
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(MESSAGE_STATE_CHANGE, state, -1)
-                .sendToTarget();
+    public void removeStateListener(ConnectionState.Listener listener) {
+        mState.removeListener(listener);
     }
 
     /**
-     * Start the chat service. Specifically start AcceptThread to begin a
+     * Start the chat service. Specifically start AcceptTask to begin a
      * session in listening (server) mode. Called by the Activity onResume()
      */
     public synchronized void start() {
@@ -101,28 +211,28 @@ public class Bluetooth {
             Log.d(TAG, "start");
 
         // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
         }
+        cancelReconnect();
 
         // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (mConnectedLink != null) {
+            mConnectedLink.cancel();
+            mConnectedLink = null;
         }
 
         setState(STATE_LISTEN);
 
-        // Start the thread to listen on a BluetoothServerSocket
-        if (mAcceptThread == null) {
-            mAcceptThread = new AcceptThread();
-            mAcceptThread.start();
+        // Start the task to listen on a BluetoothServerSocket
+        if (mAcceptTask == null) {
+            mAcceptTask = mScheduler.submit(IoScheduler.READ, new AcceptTask());
         }
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Start the ConnectTask to initiate a connection to a remote device.
      *
      * @param device The BluetoothDevice to connect
      */
@@ -131,57 +241,68 @@ public class Bluetooth {
             Log.d(TAG, "connect to: " + device);
 
         // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
+        if (mState.get() == STATE_CONNECTING) {
+            if (mConnectTask != null) {
+                mConnectTask.cancel();
+                mConnectTask = null;
             }
         }
+        cancelReconnect();
 
         // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (mConnectedLink != null) {
+            mConnectedLink.cancel();
+            mConnectedLink = null;
         }
 
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device);
-        mConnectThread.start();
+        // Start the task to connect with the given device
+        mConnectTask = mScheduler.submit(IoScheduler.CONNECT, new ConnectTask(device));
         setState(STATE_CONNECTING);
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Start the TransportLink to begin managing a Bluetooth connection
      *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * @param transport The connected Transport on which the connection was made
+     * @param device    The BluetoothDevice that has been connected
      */
-    public synchronized void connected(BluetoothSocket socket,
+    public synchronized void connected(Transport transport,
                                        BluetoothDevice device, final String socketType) {
         if (D)
             Log.d(TAG, "connected, Socket Type:" + socketType);
 
         // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
         }
+        cancelReconnect();
 
         // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (mConnectedLink != null) {
+            mConnectedLink.cancel();
+            mConnectedLink = null;
         }
 
-        // Cancel the accept thread because we only want to connect to one
+        // Cancel the accept task because we only want to connect to one
         // device
-        if (mAcceptThread != null) {
-            mAcceptThread.cancel();
-            mAcceptThread = null;
+        if (mAcceptTask != null) {
+            mAcceptTask.cancel();
+            mAcceptTask = null;
         }
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
+        // Start the link to manage the connection and perform transmissions
+        Log.d(TAG, "create TransportLink: " + socketType);
+        try {
+            mConnectedLink = new TransportLink(transport, new LinkListener(), mReadBuffers,
+                    mScheduler.getPool(IoScheduler.READ));
+        } catch (IOException e) {
+            Log.e(TAG, "temp sockets not created", e);
+            connectionFailed();
+            return;
+        }
+        mConnectedLink.start();
+        mCommands.start();
+        mLastAddress = device.getAddress();
 
         // Send the name of the connected device back to the UI Activity
         Message msg = mHandler.obtainMessage(MESSAGE_DEVICE_NAME);
@@ -200,39 +321,50 @@ public class Bluetooth {
         if (D)
             Log.d(TAG, "stop");
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
         }
+        cancelReconnect();
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (mConnectedLink != null) {
+            mConnectedLink.cancel();
+            mConnectedLink = null;
         }
 
-        if (mAcceptThread != null) {
-            mAcceptThread.cancel();
-            mAcceptThread = null;
+        if (mAcceptTask != null) {
+            mAcceptTask.cancel();
+            mAcceptTask = null;
         }
+        mCommands.stop();
+        stopCapture();
         setState(STATE_NONE);
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Write to the TransportLink without taking any lock
      *
      * @param out The bytes to write
-
+     * @param off The offset of the first byte
+     * @param len The number of bytes
      */
-    private void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
-        }
-        // Perform the write unsynchronized
-        r.write(out);
+    private void write(byte[] out, int off, int len) {
+        // the state and the link are read lock free, a teardown in progress never blocks a send
+        if (mState.get() != STATE_CONNECTED) return;
+        TransportLink r = mConnectedLink;
+        if (r == null) return;
+        try {
+            r.write(out, off, len);
+
+            // Share the sent message back to the UI Activity when debugging, the buffer is
+            // reused so the echo costs a copy
+            if (mWriteEcho) {
+                mHandler.obtainMessage(MESSAGE_WRITE, len, -1,
+                        Arrays.copyOfRange(out, off, off + len)).sendToTarget();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Exception during write", e);
+        }
     }
 
     /**
@@ -260,9 +392,56 @@ public class Bluetooth {
         bundle.putString("Toast", "Device connection was lost");
         msg.setData(bundle);
         mHandler.sendMessage(msg);
+    }
 
-        // Start the service over to restart listening mode
-        Bluetooth.this.start();
+    /**
+     * Redial the last device until it answers, waiting longer after every failed attempt.
+     */
+    private synchronized void reconnect(String address) {
+        if (D)
+            Log.d(TAG, "reconnect to: " + address);
+        if (mConnectedLink != null) {
+            mConnectedLink.cancel();
+            mConnectedLink = null;
+        }
+        cancelReconnect();
+        mReconnectTask = mScheduler.submit(IoScheduler.CONNECT, new ReconnectTask(address));
+        setState(STATE_CONNECTING);
+    }
+
+    private synchronized void cancelReconnect() {
+        if (mReconnectTask != null) {
+            mReconnectTask.cancel();
+            mReconnectTask = null;
+        }
+    }
+
+    /**
+     * @param echo true to post a copy of every message written with {@link #MESSAGE_WRITE}, off
+     *             by default: a write then allocates nothing
+     */
+    public void setWriteEcho(boolean echo) {
+        mWriteEcho = echo;
+    }
+
+    /**
+     * @param autoReconnect false to go back to listen mode when the link drops
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        mAutoReconnect = autoReconnect;
+    }
+
+    /**
+     * Apply the last state again on the lamp, after a reconnect
+     */
+    private void restoreState() {
+        if (mHasColor) {
+            try {
+                mCommands.sendColor(mLastColor);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     public void sendMessage(String message) {
@@ -274,23 +453,78 @@ public class Bluetooth {
 
         // Check that there's actually something to send
         if (message.length() > 0) {
-            char EOT = (char) 3;
             // Get the message bytes and tell the BluetoothChatService to write
-            byte[] send = (message + EOT).getBytes();
-            this.write(send);
+            synchronized (mEncoder) {
+                int length = mEncoder.encodeMessage(message);
+                this.write(mEncoder.getBuffer(), 0, length);
+            }
+        }
+    }
+
+    /**
+     * Send a color as a binary {@link com.bol.ejoy.core.ColorFrame}, waiting only if the
+     * commands in flight fill the window
+     *
+     * @param color ARGB color, alpha is the brightness
+     * @return completes when the lamp acknowledges the color, null if not connected
+     */
+    public CommandFuture sendColor(int color) throws InterruptedException {
+        if (this.getState() != Bluetooth.STATE_CONNECTED) {
+            Log.w(TAG, "bluetooth is not connected");
+            return null;
+        }
+        mLastColor = color;
+        mHasColor = true;
+        return mCommands.sendColor(color);
+    }
+
+    /**
+     * Capture the chunks read from the device into a trace, see {@link WireReplay}. The
+     * acknowledgements of the color commands are taken out first and the chunks made only of
+     * acknowledgements are not recorded, the trace holds the stream of the samples.
+     *
+     * @param file the trace file, overwritten if it exists
+     */
+    public void startCapture(File file) throws IOException {
+        closeCapture(mCapture.getAndSet(new WireTraceWriter(file)));
+    }
+
+    public void stopCapture() {
+        closeCapture(mCapture.getAndSet(null));
+    }
+
+    private void closeCapture(WireTraceWriter capture) {
+        if (capture != null) {
+            try {
+                capture.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of capture failed", e);
+            }
         }
     }
 
     public void connectDevice(String deviceName) {
-        // Get the device MAC address
-        String address = null;
+        // Get the device MAC address, the bonded devices are only listed the first time
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
-        for (BluetoothDevice d : adapter.getBondedDevices()) {
-            if (d.getName().equals(deviceName)) address = d.getAddress();
+        String address;
+        synchronized (mAddresses) {
+            address = mAddresses.get(deviceName);
+            if (address == null) {
+                for (BluetoothDevice d : adapter.getBondedDevices()) {
+                    mAddresses.put(d.getName(), d.getAddress());
+                }
+                address = mAddresses.get(deviceName);
+            }
         }
+        connectAddress(address);
+    }
 
+    /**
+     * Connect to a device by its MAC address, e.g. the one remembered from a previous session
+     */
+    public void connectAddress(String address) {
         try {
-            BluetoothDevice device = adapter.getRemoteDevice(address); // Get the BluetoothDevice object
+            BluetoothDevice device = mAdapter.getRemoteDevice(address); // Get the BluetoothDevice object
             this.connect(device); // Attempt to connect to the device
         } catch (Exception e) {
             Log.e("Unable to connect " + address, e.getMessage());
@@ -298,16 +532,23 @@ public class Bluetooth {
     }
 
     /**
-     * This thread runs while listening for incoming connections. It behaves
+     * @return the MAC address of the last device connected, null if none
+     */
+    public String getLastAddress() {
+        return mLastAddress;
+    }
+
+    /**
+     * This task runs while listening for incoming connections. It behaves
      * like a server-side client. It runs until a connection is accepted (or
      * until cancelled).
      */
-    private class AcceptThread extends Thread {
+    private class AcceptTask extends IoScheduler.Task {
         // The local server socket
         private final BluetoothServerSocket mmServerSocket;
         private String mSocketType;
 
-        public AcceptThread() {
+        public AcceptTask() {
             BluetoothServerSocket tmp = null;
 
             // Create a new listening server socket
@@ -320,16 +561,16 @@ public class Bluetooth {
             mmServerSocket = tmp;
         }
 
-        public void run() {
+        @Override
+        protected void runTask() {
             if (D)
                 Log.d(TAG, "Socket Type: " + mSocketType
-                        + "BEGIN mAcceptThread" + this);
-            setName("AcceptThread" + mSocketType);
+                        + "BEGIN mAcceptTask" + this);
 
             BluetoothSocket socket = null;
 
             // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
+            while (mState.get() != STATE_CONNECTED && !isCancelled()) {
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception
@@ -343,11 +584,11 @@ public class Bluetooth {
                 // If a connection was accepted
                 if (socket != null) {
                     synchronized (Bluetooth.this) {
-                        switch (mState) {
+                        switch (mState.get()) {
                             case STATE_LISTEN:
                             case STATE_CONNECTING:
                                 // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice(),
+                                connected(new RfcommTransport(socket), socket.getRemoteDevice(),
                                         mSocketType);
                                 break;
                             case STATE_NONE:
@@ -365,11 +606,14 @@ public class Bluetooth {
                 }
             }
             if (D)
-                Log.i(TAG, "END mAcceptThread, socket Type: " + mSocketType);
+                Log.i(TAG, "END mAcceptTask, socket Type: " + mSocketType);
 
         }
 
+        // accept() ignores interrupts, only closing its socket ends it
+        @Override
         public void cancel() {
+            super.cancel();
             if (D)
                 Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
             try {
@@ -382,70 +626,74 @@ public class Bluetooth {
     }
 
     /**
-     * This thread runs while attempting to make an outgoing connection with a
+     * This task runs while attempting to make an outgoing connection with a
      * device. It runs straight through; the connection either succeeds or
-     * fails.
+     * fails. Once cancelled it closes the transport itself when the connect returns.
      */
-    private class ConnectThread extends Thread {
-        private BluetoothSocket mSocket;
+    private class ConnectTask extends IoScheduler.Task {
+        private final RacingRfcommTransport mTransport;
         private  BluetoothDevice mDevice;
         private String mSocketType;
 
-        public ConnectThread(BluetoothDevice device) {
+        public ConnectTask(BluetoothDevice device) {
             mDevice = device;
-            BluetoothSocket tmp = null;
+            mSocketType = "Secure";
 
-            // Get a BluetoothSocket for a connection with the
+            // Get a Transport for a connection with the
             // given BluetoothDevice
-            try {
-                tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
-            }
-            mSocket = tmp;
+            mTransport = new RacingRfcommTransport(device, MY_UUID, true, mStrategies);
         }
 
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
-            setName("ConnectThread" + mSocketType);
+        @Override
+        protected void runTask() {
+            Log.i(TAG, "BEGIN mConnectTask SocketType:" + mSocketType);
 
             // Always cancel discovery because it will slow down a connection
             mAdapter.cancelDiscovery();
 
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the device, racing the ways to open the socket
             try {
                 if (D) Log.i(TAG, "connecting ...");
-                mSocket.connect();
+                mTransport.connect();
                 if (D) Log.i(TAG, "connected");
-            } catch (Exception e) {
-                e.printStackTrace();
-                try {
-                    if (D) Log.i(TAG, "trying fallback...");
-                    mSocket = (BluetoothSocket) mDevice.getClass().getMethod("createRfcommSocket", new Class[]{int.class}).invoke(mDevice, 1);
-                    mSocket.connect();
-
-                    if (D) Log.i(TAG, "Connected");
-                } catch (Exception e2) {
-                    Log.e(TAG, "Couldn't establish Bluetooth connection!");
-
-                    if (D) Log.i(TAG, "Connection failed");
-                    return;
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't establish Bluetooth connection!", e);
+
+                if (D) Log.i(TAG, "Connection failed");
+                closeTransport();
+                synchronized (Bluetooth.this) {
+                    // cancelled by a newer connection
+                    if (isCancelled())
+                        return;
+                    mConnectTask = null;
                 }
-
+                connectionFailed();
+                return;
             }
 
-            // Reset the ConnectThread because we're done
             synchronized (Bluetooth.this) {
-                mConnectThread = null;
+                // cancelled while connecting, the cancel and this check share the lock
+                if (!isCancelled()) {
+                    // Reset the ConnectTask because we're done
+                    mConnectTask = null;
+                    // Start the connected link
+                    connected(mTransport, mDevice, mSocketType);
+                    return;
+                }
             }
-
-            // Start the connected thread
-            connected(mSocket, mDevice, mSocketType);
+            closeTransport();
         }
 
+        // the connect ignores interrupts, only closing its socket ends it
+        @Override
         public void cancel() {
+            super.cancel();
+            closeTransport();
+        }
+
+        private void closeTransport() {
             try {
-                mSocket.close();
+                mTransport.close();
             } catch (IOException e) {
                 Log.e(TAG, "close() of connect " + mSocketType
                         + " socket failed", e);
@@ -454,80 +702,163 @@ public class Bluetooth {
     }
 
     /**
-     * This thread runs during a connection with a remote device. It handles all
-     * incoming and outgoing transmissions.
+     * Receives what the TransportLink reads during a connection with a remote
+     * device. The link handles all incoming and outgoing transmissions.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
+    private class LinkListener implements TransportLink.ChunkListener {
+
+        @Override
+        public void onRead(BufferPool.Buffer chunk) {
+            int bytes = received(chunk.array(), chunk.length());
+            if (bytes == 0) {
+                chunk.release();
+                return;
+            }
+            if (mDropping) {
+                mDropping = false;
+                Log.w(TAG, mDroppedReads.get() + " reads dropped so far");
+            }
+            // Send the obtained bytes to the UI Activity, which owns the lease from now on.
+            // The messages waiting in the looper are bounded by the pool, the UI is behind
+            // when it is empty
+            chunk.setLength(bytes);
+            if (!mHandler.sendMessage(mHandler.obtainMessage(MESSAGE_READ, bytes, -1, chunk))) {
+                // the looper is exiting, nobody will release it
+                chunk.release();
             }
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
         }
 
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
+        @Override
+        public void onDropped(byte[] buffer, int bytes) {
+            // the acknowledgements still complete their commands
+            bytes = received(buffer, bytes);
+            if (bytes == 0)
+                return;
+            mDroppedReads.incrementAndGet();
+            mDroppedBytes.addAndGet(bytes);
+            if (!mDropping) {
+                mDropping = true;
+                Log.w(TAG, "handler behind, dropping reads until it releases a buffer");
+            }
+        }
 
-            // Keep listening to the InputStream while connected
-            while (true) {
+        /**
+         * Count a read, handle the acknowledgements of the color commands and capture the rest
+         *
+         * @return the number of bytes left at the start of the buffer
+         */
+        private int received(byte[] buffer, int bytes) {
+            mReads.increment();
+            mBytesRead.add(bytes);
+            mReadSizes.record(bytes);
+            bytes = mCommands.onReceived(buffer, 0, bytes);
+            if (bytes == 0)
+                return 0;
+            WireTraceWriter capture = mCapture.get();
+            if (capture != null) {
                 try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-                    Log.d(TAG, "message bytes " + bytes);
-                    Log.d(TAG, "message string bytes " + String.valueOf(bytes));
-                    Log.d(TAG, "message buffer " + new String(buffer));
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(MESSAGE_READ, bytes,
-                            -1, buffer).sendToTarget();
+                    capture.record(buffer, 0, bytes);
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    Bluetooth.this.start();
-                    break;
+                    // a capture replaced meanwhile was closed under this read, the new one stays
+                    if (mCapture.compareAndSet(capture, null)) {
+                        Log.e(TAG, "capture failed", e);
+                        closeCapture(capture);
+                    }
                 }
             }
+            return bytes;
         }
 
-        /**
-         * Write to the connected OutStream.
-         *
-         * @param buffer The bytes to write
-         */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
+        @Override
+        public void onDisconnected(IOException cause) {
+            Log.e(TAG, "disconnected", cause);
+            connectionLost();
+            String address = mLastAddress;
+            if (mAutoReconnect && address != null) {
+                reconnect(address);
+            } else {
+                // Start the service over to restart listening mode
+                Bluetooth.this.start();
+            }
+        }
+    }
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(MESSAGE_WRITE, -1, -1,
-                        buffer).sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+    /**
+     * This task redials the last device after the link dropped, with an exponential
+     * backoff, and restores the state of the lamp once connected. A cancel interrupts the
+     * wait between the attempts, an attempt in progress is closed by the task when it returns.
+     */
+    private class ReconnectTask extends IoScheduler.Task {
+        private final String mAddress;
+        private final Backoff mBackoff = new Backoff(RECONNECT_INITIAL_DELAY, RECONNECT_MAX_DELAY);
+        // the transport of the attempt running, closed by cancel()
+        private volatile RacingRfcommTransport mTransport;
+
+        public ReconnectTask(String address) {
+            mAddress = address;
+        }
+
+        @Override
+        protected void runTask() {
+            BluetoothDevice device = mAdapter.getRemoteDevice(mAddress);
+            mAdapter.cancelDiscovery();
+            while (!isCancelled()) {
+                long delay = mBackoff.nextDelay();
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (isCancelled())
+                    return;
+                RacingRfcommTransport transport = new RacingRfcommTransport(device, MY_UUID, true,
+                        mStrategies);
+                mTransport = transport;
+                if (isCancelled()) {
+                    // cancelled before it could see the transport
+                    closeTransport(transport);
+                    return;
+                }
+                try {
+                    transport.connect();
+                } catch (IOException e) {
+                    Log.w(TAG, "reconnect attempt " + mBackoff.getAttempts() + " failed", e);
+                    closeTransport(transport);
+                    continue;
+                }
+                synchronized (Bluetooth.this) {
+                    if (isCancelled()) {
+                        closeTransport(transport);
+                        return;
+                    }
+                    mReconnectTask = null;
+                    connected(transport, device, "Secure");
+                }
+                mReconnects.increment();
+                if (D)
+                    Log.i(TAG, "reconnected after " + mBackoff.getAttempts() + " attempts");
+                restoreState();
+                return;
             }
         }
 
+        // the connect ignores interrupts, only closing its socket ends it
+        @Override
         public void cancel() {
+            super.cancel();
+            RacingRfcommTransport transport = mTransport;
+            if (transport != null) {
+                closeTransport(transport);
+            }
+        }
+
+        private void closeTransport(RacingRfcommTransport transport) {
             try {
-                mmSocket.close();
+                transport.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+                Log.e(TAG, "close() of reconnect socket failed", e);
             }
         }
     }
@@ -11,33 +11,60 @@ import android.content.Intent;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.view.View;
-import android.widget.Button;
+import android.widget.AdapterView;
 import android.widget.EditText;
 import android.widget.LinearLayout;
+import android.widget.ListView;
 import android.widget.TextView;
 
+import com.bol.ejoy.core.Biquad;
+import com.bol.ejoy.core.FrameDecoder;
+import com.bol.ejoy.core.Overload;
+import com.bol.ejoy.core.SampleBatch;
+import com.bol.ejoy.core.SampleListener;
+import com.bol.ejoy.core.SamplePipeline;
+import com.bol.ejoy.core.Telemetry;
+import com.bol.ejoy.core.TelemetryListener;
+import com.bol.ejoy.core.ZecgWriter;
 import com.larswerkman.holocolorpicker.ColorPicker;
 
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import static android.graphics.Color.blue;
-import static android.graphics.Color.green;
-import static android.graphics.Color.red;
-
-public class BluetoothActivity extends Activity implements ColorPicker.OnColorChangedListener {
+public class BluetoothActivity extends Activity implements ColorPicker.OnColorChangedListener,
+        SampleListener {
     private static final String MESSAGE_NOT_SUPPORTED = "BLUETOOTH NOT SUPPORTED";
     private static final String MESSAGE_DISCOVERING = "DISCOVERING IN PROCESS";
     private static final int REQUEST_ENABLE_BT = 2;
     private final static String SAMPLE_ARRAY = "SAMPLE_ARRAY";
+    private final static String SAMPLE_COUNT = "SAMPLE_COUNT";
+    private final static String SAMPLE_BATTERY = "SAMPLE_BATTERY";
+    private final static String SAMPLE_STATUS = "SAMPLE_STATUS";
+    //true in the broadcasts of the samples without the mains hum
+    private final static String SAMPLE_FILTERED = "SAMPLE_FILTERED";
+    //the mains frequency of the site in Hz, 50 or 60; the filtered broadcast is only sent once set
+    private final static String PREFERENCES = "samples";
+    private final static String PREF_MAINS_FREQUENCY = "mains_frequency";
+    //samples per broadcast and maximum time a sample waits for its broadcast
+    private static final int SAMPLE_BATCH_SIZE = 64;
+    private static final long SAMPLE_BATCH_DELAY = 100;
+    //ZECG recording geometry, the rate is only the nominal one, chunk timestamps give the real timing
+    private static final int ZECG_SAMPLE_RATE = 250;
+    private static final double MAINS_NOTCH_Q = 30;
+    private static final int ZECG_SAMPLES_PER_CHUNK = 256;
+    private static final long ZECG_CHUNK_DELAY = 1000;
+    //the battery drains in hours, no need to look at it more often
+    private static final long TELEMETRY_INTERVAL = 5000;
+    //a discovery is cancelled after this time
+    private static final long SCAN_DURATION = 12000;
     private final String TAG = BluetoothActivity.this.getClass().getName();
     private BluetoothConnector bConnector;
     private boolean bluetoothEnable = false;
@@ -45,30 +72,24 @@ public class BluetoothActivity extends Activity implements ColorPicker.OnColorCh
     private TextView text2;
     private TextView txt;
     private LinearLayout rootLayout;
-    //BUFFER USED TO STORE INPUT STREAM FORM BLUETOOTH
-    private StringBuffer buffer = new StringBuffer();
+    private DeviceListAdapter deviceAdapter;
     /******
      * ZECG variables
      ******/
 
     private String fileName;
-    private FileOutputStream fileOutputStream;
-    private OutputStreamWriter outputStreamWriter;
-    private WriteThread writeThread;
+    private ZecgWriter zecgWriter;
+    //the writer runs on its own thread so a slow disk never stalls the decoder
+    private ExecutorService writeExecutor;
+    //last battery and status of the device, sent along the samples; null until the first frame
+    private volatile Telemetry lastTelemetry;
     private final Handler mHandler = new Handler() {
 
 
         public void handleMessage(Message msg) {
             if (msg.what == BluetoothConnector.MESSAGE_STRING) {
-                //manage the message received from Bluetooth input stream
-                buffer.append((String) msg.obj);
-                storeAndConvertData();
+                //data sent to the device
                 Log.d(TAG, (String) msg.obj);
-            } else if (msg.what == BluetoothConnector.MESSAGE_BLUETOOTH) {
-                //manage the message received from Bluetooth input stream
-                //DISCOVERED ANOTHER BLUETOOTH
-                //mArrayAdapter.add((BluetoothDevice)msg.obj);
-                addButtonDevice((BluetoothDevice) msg.obj);
             }
 
         }
@@ -97,7 +118,7 @@ public class BluetoothActivity extends Activity implements ColorPicker.OnColorCh
 
         picker.setOldCenterColor(picker.getColor());
 
-//        picker.setOnColorChangedListener(this);
+        picker.setOnColorChangedListener(this);
 
         picker.setShowOldCenterColor(false);
 
@@ -105,19 +126,36 @@ public class BluetoothActivity extends Activity implements ColorPicker.OnColorCh
         loadUIElement();
         mArrayAdapter = new HashSet<>();
         bConnector = new BluetoothConnector(getApplicationContext(), text, mHandler);
+        //the broadcast and the recording carry the raw samples
+        bConnector.addSampleListener(this, SamplePipeline.DIRECT, SAMPLE_BATCH_SIZE, SAMPLE_BATCH_DELAY);
+        //the samples without the mains hum are a second broadcast, for the sites that set their mains frequency
+        int mainsFrequency = getSharedPreferences(PREFERENCES, MODE_PRIVATE).getInt(PREF_MAINS_FREQUENCY, 0);
+        if (mainsFrequency > 0) {
+            bConnector.addSampleListener(new SampleListener() {
+                @Override
+                public void onSamples(SampleBatch batch) {
+                    broadcast(batch, true);
+                }
+            }, SamplePipeline.DIRECT, SAMPLE_BATCH_SIZE, SAMPLE_BATCH_DELAY,
+                    Biquad.notch(FrameDecoder.CHANNELS, ZECG_SAMPLE_RATE, mainsFrequency, MAINS_NOTCH_Q));
+        }
+        bConnector.setTelemetryListener(new TelemetryListener() {
+            @Override
+            public void onTelemetry(Telemetry telemetry) {
+                Log.i(TAG, "battery " + telemetry.getBattery() + ", status " + telemetry.getStatus());
+                lastTelemetry = telemetry;
+            }
+        }, new HandlerExecutor(mHandler), TELEMETRY_INTERVAL);
+        setupDeviceList();
 
 
     }
 
     @Override
     public void onColorChanged (int Color) {
-        final int c = Color;
-        new Handler().postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                txt.setTextColor(c);
-            }
-        }, 2000);
+        txt.setTextColor(Color);
+        //only the latest color is sent, the intermediate ones are dropped
+        bConnector.sendColor(Color);
     }
 
     //wrap ui elements
@@ -129,32 +167,25 @@ public class BluetoothActivity extends Activity implements ColorPicker.OnColorCh
     }
 
     public void changeColor(View v) {
-        /*
-        qui va gestita la modifica del valore di text_rgb per settare il valore proveniente da picker.getcolor()
-         */
-        txt.setTextColor(picker.getColor());
-        int rosso;
-        int blu;
-        int verde;
-        rosso = red(picker.getColor());
-        blu = blue(picker.getColor());
-        verde = green(picker.getColor());
+        int color = picker.getColor();
+        txt.setTextColor(color);
+        bConnector.sendColor(color);
     }
 
-    public void addButtonDevice(final BluetoothDevice device) {
-        Button temp = new Button(getApplicationContext());
-        temp.setText(device.getName());
-        temp.setWidth(LinearLayout.LayoutParams.MATCH_PARENT);
-        temp.setOnClickListener(new View.OnClickListener() {
+    //the discovered devices, rows are recycled by the ListView
+    private void setupDeviceList() {
+        deviceAdapter = new DeviceListAdapter(this);
+        ListView list = (ListView) findViewById(R.id.devices);
+        list.setAdapter(deviceAdapter);
+        list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
-            public void onClick(View v) {
-                // bConnector.getAdapter().cancelDiscovery();
-
-                bConnector.connect(device);
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                bConnector.stopScan();
+                String address = deviceAdapter.getItem(position).getAddress();
+                bConnector.connect(bConnector.getAdapter().getRemoteDevice(address));
             }
         });
-        temp.setHeight(LinearLayout.LayoutParams.WRAP_CONTENT);
-        rootLayout.addView(temp);
+        bConnector.setDeviceListener(deviceAdapter);
     }
 
     public void sendDataToObol(View v) {
@@ -173,7 +204,7 @@ public class BluetoothActivity extends Activity implements ColorPicker.OnColorCh
             } else {
                 //stard discovering
                 text.setText(MESSAGE_DISCOVERING);
-                bConnector.getAdapter().startDiscovery();
+                bConnector.startScan(SCAN_DURATION);
             }
         } else {
             text.setText(MESSAGE_NOT_SUPPORTED);
@@ -212,90 +243,102 @@ public class BluetoothActivity extends Activity implements ColorPicker.OnColorCh
 
     @Override
     protected void onStop() {
+        bConnector.stopScan();
         bConnector.unRegisterForDevices();
         super.onStop();
     }
 
     @Override
     protected void onDestroy() {
+        stopRecording();
+        bConnector.removeSampleListener(this);
+        bConnector.shutdown();
         super.onDestroy();
 
     }
 
-    private Integer[] readUntil(String c) {
-        String data = "";
-        int index = buffer.indexOf(c, 0);
-        if (index > -1) {
-            data = buffer.substring(0, index + c.length());
-            buffer.delete(0, index + c.length());
-        }
-        //remove the battery and ignore lines with less than 8 signals
-        if (data.length() < 32)
-            return null;
-
-        /*****Pass to the WriteThread the Sample****/
-
-        Message msg = Message.obtain();
-        msg.obj = data;
-        writeThread.mHandler.sendMessage(msg);
-
-        /****************************/
-
-        /*******Read conversion******/
-
-
-        Integer[] signal = new Integer[8];
-
-        int j = 0;
-        for (int s = 0; s < 32; s += 4) {
-            String currentString = data.substring(s, s + 3);
-            signal[j] = Integer.parseInt(currentString, 16);
-            j++;
+    //start or stop the ZECG recording
+    public void toggleRecording(View v) {
+        if (zecgWriter == null) {
+            startRecording();
+        } else {
+            stopRecording();
         }
-
-        /****************************/
-
-        return signal;
-
     }
 
-    //parse and store all data
-    private void storeAndConvertData() {
-        Integer[] data = readUntil("&");
-        Intent dataIntent = new Intent();
-        dataIntent.putExtra(SAMPLE_ARRAY, data);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(dataIntent);
-        if (data != null) {
-            storeAndConvertData();
+    private void startRecording() {
+        fileName = "zecg_" + System.currentTimeMillis() + ".zecg";
+        File file = new File(getExternalFilesDir(null), fileName);
+        try {
+            //delta compressed, a day of recording takes a fraction of the packed size
+            zecgWriter = new ZecgWriter(file, FrameDecoder.CHANNELS, ZECG_SAMPLE_RATE,
+                    ZECG_SAMPLES_PER_CHUNK, true);
+        } catch (IOException e) {
+            Log.e(TAG, "unable to create " + file, e);
+            return;
         }
+        writeExecutor = Executors.newSingleThreadExecutor();
+        //a stalled disk loses the samples arriving meanwhile instead of stalling the decoder
+        bConnector.addSampleListener(zecgWriter, writeExecutor, ZECG_SAMPLES_PER_CHUNK, ZECG_CHUNK_DELAY,
+                null, Overload.DROP_NEWEST);
+        text.setText("RECORDING " + fileName);
     }
 
-    /**
-     * Write Thread handling writing operation to the device
-     */
-
-    private class WriteThread extends Thread {
+    private void stopRecording() {
+        if (zecgWriter == null)
+            return;
+        long dropped = bConnector.getDroppedSamples(zecgWriter);
+        if (dropped > 0)
+            Log.w(TAG, "recording " + fileName + " lost " + dropped + " samples");
+        final ZecgWriter writer = zecgWriter;
+        final ExecutorService executor = writeExecutor;
+        final String name = fileName;
+        zecgWriter = null;
+        writeExecutor = null;
+        //the batch being filled goes to the writer first, the close runs after the last batch
+        bConnector.removeSampleListener(writer, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writer.close();
+                    if (writer.getError() != null)
+                        Log.e(TAG, "recording failed", writer.getError());
+                } catch (IOException e) {
+                    Log.e(TAG, "unable to close " + name, e);
+                } finally {
+                    executor.shutdown();
+                }
+            }
+        });
+    }
 
-        public Handler mHandler;
+    //broadcast the raw samples, called on the decode thread
+    @Override
+    public void onSamples(SampleBatch batch) {
+        broadcast(batch, false);
+    }
 
-        @Override
-        public void run() {
-            Looper.prepare();
+    private void broadcast(SampleBatch batch, boolean filtered) {
+        int channels = batch.channelCount();
+        int size = batch.size();
 
-            mHandler = new Handler() {
-                public void handleMessage(Message msg) {
-                    String data = (String) msg.obj;
-                    if (outputStreamWriter != null) {
-                        try {
-                            outputStreamWriter.append(data);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            };
-            Looper.loop();
+        //one broadcast per batch, samples interleaved channel by channel
+        int[] samples = new int[size * channels];
+        for (int c = 0; c < channels; c++) {
+            int[] channel = batch.channel(c);
+            for (int i = 0; i < size; i++) {
+                samples[i * channels + c] = channel[i];
+            }
         }
+        Intent dataIntent = new Intent();
+        dataIntent.putExtra(SAMPLE_ARRAY, samples);
+        dataIntent.putExtra(SAMPLE_COUNT, size);
+        dataIntent.putExtra(SAMPLE_FILTERED, filtered);
+        //the battery and status change slowly, every broadcast carries the last values known
+        Telemetry telemetry = lastTelemetry;
+        dataIntent.putExtra(SAMPLE_BATTERY, telemetry != null ? telemetry.getBattery() : Telemetry.NONE);
+        dataIntent.putExtra(SAMPLE_STATUS, telemetry != null ? telemetry.getStatus() : Telemetry.NONE);
+        LocalBroadcastManager.getInstance(this).sendBroadcast(dataIntent);
     }
 
 
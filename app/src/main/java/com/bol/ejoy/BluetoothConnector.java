@@ -6,27 +6,75 @@ package com.bol.ejoy;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Handler;
-import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.TextView;
 
+import com.bol.ejoy.core.BufferPool;
+import com.bol.ejoy.core.ColorLatency;
+import com.bol.ejoy.core.ColorSender;
+import com.bol.ejoy.core.CommandEncoder;
+import com.bol.ejoy.core.CommandFuture;
+import com.bol.ejoy.core.CommandWindow;
+import com.bol.ejoy.core.DeviceRegistry;
+import com.bol.ejoy.core.FrameDecoder;
+import com.bol.ejoy.core.IoScheduler;
+import com.bol.ejoy.core.LampSession;
+import com.bol.ejoy.core.Metrics;
+import com.bol.ejoy.core.Overload;
+import com.bol.ejoy.core.SampleFilter;
+import com.bol.ejoy.core.SampleHistory;
+import com.bol.ejoy.core.SampleListener;
+import com.bol.ejoy.core.SamplePipeline;
+import com.bol.ejoy.core.TelemetryListener;
+import com.bol.ejoy.core.Transport;
+import com.bol.ejoy.core.TransportLink;
+import com.bol.ejoy.core.WireReplay;
+import com.bol.ejoy.core.WireTraceReader;
+import com.bol.ejoy.core.WireTraceWriter;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.HashSet;
+import java.io.InterruptedIOException;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class BluetoothConnector {
 
     public static final int MESSAGE_STRING = 2;
-    public static final int MESSAGE_BLUETOOTH = 3;
+    // changes of the device list are applied at most this often
+    private static final long DEVICE_FLUSH_DELAY = 250;
+    // smallest RSSI change shown, in dB
+    private static final int DEVICE_RSSI_THRESHOLD = 6;
+    // colors sent per second at most while the picker is dragged
+    private static final int COLOR_MAX_RATE = 20;
+    // commands written before the lamp acknowledges them, the acknowledgement timeout and
+    // the number of writes of a command before it fails
+    private static final int COMMAND_WINDOW = 8;
+    private static final long COMMAND_TIMEOUT = 500;
+    private static final int COMMAND_ATTEMPTS = 3;
+    // nominal sample rate of the board and the minutes of samples kept for looking back
+    private static final int SAMPLE_RATE = 250;
+    private static final int HISTORY_MINUTES = 5;
+    private static final int HISTORY_BATCH = 64;
+    // chunks waiting for the decoder, and the buffers read into: the queued chunks, the one
+    // decoded and the one being read, so the queue fills up before the pool runs dry and the
+    // chunk policy decides
+    private static final int CHUNK_QUEUE = 64;
+    private static final int READ_BUFFERS = CHUNK_QUEUE + 4;
+    // time between a broadcast and the switch of the lamps, covers the writes and the transit
+    private static final long BROADCAST_LEAD = 100;
+    // a cancelled replay stops at its next chunk, this is only a bound
+    private static final long REPLAY_STOP_TIMEOUT = 2000;
     /*Debug flag*/
     private final static boolean D = true;
     private final String TAG = BluetoothConnector.this.getClass().getName();
@@ -37,12 +85,73 @@ public class BluetoothConnector {
     private Handler mHandler;
 
     private BroadcastReceiver mReceiver;
-    private Set<BluetoothDevice> mDevices;
+    // devices found by the discovery, touched on the UI thread only
+    private final DeviceRegistry mRegistry = new DeviceRegistry(DEVICE_RSSI_THRESHOLD);
+    private boolean mFlushScheduled;
+    private long mScanStart;
+    private final Runnable mFlushDevices = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            mRegistry.flush();
+        }
+    };
+    private final Runnable mStopScan = new Runnable() {
+        @Override
+        public void run() {
+            stopScan();
+        }
+    };
     private TextView tv;
 
 
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
+    // connects, reads, decodes, sends and replays on threads shared with the other connections
+    private final IoScheduler mScheduler = IoScheduler.getShared();
+    private ConnectTask mConnectTask;
+    // reads and writes the connected transport
+    private volatile TransportLink mLink;
+    // encodes the data written, reused from one write to the next
+    private final CommandEncoder mEncoder = new CommandEncoder();
+    // decodes the incoming data off the UI thread, on the link pool
+    private final SamplePipeline mPipeline = new SamplePipeline(CHUNK_QUEUE,
+            mScheduler.getPool(IoScheduler.LINK));
+    // the last minutes of samples, off the heap, appended on the decode thread
+    private final SampleHistory mHistory = SampleHistory.ofMinutes(FrameDecoder.CHANNELS,
+            SAMPLE_RATE, HISTORY_MINUTES);
+    // chunks read into by the link and handed to the pipeline
+    private final BufferPool mReadBuffers = new BufferPool(READ_BUFFERS,
+            TransportLink.READ_BUFFER_SIZE);
+    // raw capture of the incoming data, null when not capturing
+    private final AtomicReference<WireTraceWriter> mCapture = new AtomicReference<>();
+    private ReplayTask mReplayTask;
+    // disabled until asked for, see setMetricsEnabled(boolean)
+    private final Metrics mMetrics = new Metrics();
+    private final Metrics.Counter mReads = mMetrics.counter("link.reads");
+    private final Metrics.Counter mBytesRead = mMetrics.counter("link.bytes_read");
+    private final Metrics.Histogram mReadSizes = mMetrics.histogram("link.read_size");
+    // time from the color picked to the lamp acknowledgement, stage by stage, with the metrics
+    private final ColorLatency mLatency = new ColorLatency(mMetrics, "latency.");
+    // color commands in flight, matched with the acknowledgements of the lamp
+    private final CommandWindow mCommands = new CommandWindow(new CommandWindow.Sink() {
+        @Override
+        public void write(byte[] buffer, int off, int len) throws IOException {
+            TransportLink link = mLink;
+            if (link == null)
+                throw new IOException("not connected");
+            link.write(buffer, off, len);
+        }
+    }, COMMAND_WINDOW, COMMAND_TIMEOUT, COMMAND_ATTEMPTS);
+    // the lamps changing together, next to the device of mLink, the sends of the broadcasts
+    // run on the session pool
+    private final LampSession mSession = new LampSession(mScheduler.getPool(IoScheduler.SESSION),
+            COMMAND_WINDOW, COMMAND_TIMEOUT, COMMAND_ATTEMPTS);
+    // sends only the latest color picked, at most COLOR_MAX_RATE per second, on the link pool
+    private final ColorSender mColorSender = new ColorSender(new ColorSender.Sink() {
+        @Override
+        public void sendColor(int color) throws IOException {
+            writeColor(color);
+        }
+    }, COLOR_MAX_RATE, mScheduler.getPool(IoScheduler.LINK));
 
     // constructor
 
@@ -59,7 +168,24 @@ public class BluetoothConnector {
         mHandler = handler;
 
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        mDevices = new HashSet<>();
+        mPipeline.registerMetrics(mMetrics, "pipeline.");
+        // without delay the samples are appended once their chunk is decoded
+        mPipeline.addSampleListener(mHistory, SamplePipeline.DIRECT, HISTORY_BATCH, 0);
+        mMetrics.gauge("link.buffer_misses", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mReadBuffers.getMisses();
+            }
+        });
+        mCommands.registerMetrics(mMetrics, "commands.");
+        mCommands.setListener(mLatency);
+        mSession.setReadExecutor(mScheduler.getPool(IoScheduler.READ));
+        mSession.setListener(new LampSession.Listener() {
+            @Override
+            public void onLampDisconnected(LampSession.Lamp lamp, IOException cause) {
+                Log.e(TAG, "lamp lost: " + lamp.getName(), cause);
+            }
+        });
 
         mReceiver = new BroadcastReceiver() {
             @Override
@@ -69,18 +195,13 @@ public class BluetoothConnector {
                 if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                     // Get the BluetoothDevice object from the Intent
                     BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                    // Add the name and address to an array adapter to show in a ListView
-
-                    if (!mDevices.contains(device)) {
-                        mDevices.add(device);
-                        mHandler.obtainMessage(BluetoothConnector.MESSAGE_BLUETOOTH, device).sendToTarget();
+                    short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                    // the registry batches the changes for the list on screen
+                    if (mRegistry.report(device.getAddress(), device.getName(),
+                            rssi != Short.MIN_VALUE ? rssi : DeviceRegistry.NO_RSSI,
+                            SystemClock.elapsedRealtime())) {
+                        scheduleDeviceFlush();
                     }
-                    String devices = "";
-                    for (BluetoothDevice b : mDevices) {
-                        devices = devices + b.getName() + "\n";
-                    }
-                    Log.d("DEVICES FOUND", devices);
-                    tv.setText(devices);
                 }
             }
         };
@@ -154,241 +275,611 @@ public class BluetoothConnector {
     }
 
     /**
-     * @return the set of all devices
+     * Be told about the devices found, on the UI thread and in batches
      */
-    public Set<BluetoothDevice> getDevices() {
-        return this.mDevices;
+    public void setDeviceListener(DeviceRegistry.Listener listener) {
+        mRegistry.setListener(listener);
+    }
+
+    /**
+     * Discover devices for a limited time, the devices not seen during the scan are removed
+     * from the registry when it ends. Call it on the UI thread.
+     *
+     * @param durationMillis time after which the discovery is cancelled
+     */
+    public void startScan(long durationMillis) {
+        mScanStart = SystemClock.elapsedRealtime();
+        mHandler.removeCallbacks(mStopScan);
+        mBluetoothAdapter.startDiscovery();
+        mHandler.postDelayed(mStopScan, durationMillis);
+    }
+
+    /**
+     * Cancel the discovery and drop the devices not seen by the last scan
+     */
+    public void stopScan() {
+        mHandler.removeCallbacks(mStopScan);
+        mBluetoothAdapter.cancelDiscovery();
+        mRegistry.expire(mScanStart);
+        scheduleDeviceFlush();
+    }
+
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Start or stop recording the metrics, stopped they cost nothing.
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        mMetrics.setEnabled(enabled);
+    }
+
+    /**
+     * Write the metrics to the log
+     */
+    public void dumpMetrics() {
+        Log.i(TAG, "metrics:\n" + mMetrics.dump());
+    }
+
+    /**
+     * @return the latencies of the colors sent with {@link #sendColor(int)}, recorded while the
+     * metrics are enabled
+     */
+    public ColorLatency getLatency() {
+        return mLatency;
+    }
+
+    public DeviceRegistry getRegistry() {
+        return mRegistry;
+    }
+
+    private void scheduleDeviceFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushDevices, DEVICE_FLUSH_DELAY);
+        }
     }
 
     /**
      * @param device the bluettotj device we want to connect to
-     *               It start the connection launching a ConnectThread
+     *               It start the connection with a ConnectTask, never waits for the previous one
      */
     public synchronized void connect(BluetoothDevice device) {
         if (D) Log.d(TAG, "connect to: " + device.getName());
 
-        // Cancel any thread attempting to make a connection
+        // Cancel any attempt to make a connection, it closes its own transport
+        cancelConnect();
+
+
+        // Cancel any link currently running a connection
+        if (mLink != null) {
+            mLink.cancel();
+            mLink = null;
+        }
+
+        //establish an insecure connection because the devices has not security check system,
+        //SPP, the advertised UUID and channel 1 are tried together
+        // Connect with the given device on the connect pool
+        mConnectTask = mScheduler.submit(IoScheduler.CONNECT, new ConnectTask(
+                new RacingRfcommTransport(device, UUID_SPP, false,
+                        RacingRfcommTransport.getPreferences(context))));
+        // mBluetoothAdapter.cancelDiscovery();
+
+    }
+
+    /**
+     * Connect through any Transport, e.g. a TcpTransport to a simulator when load testing
+     *
+     * @param transport the transport, connected or not
+     */
+    public synchronized void connect(Transport transport) {
+        if (D) Log.d(TAG, "connect to: " + transport.getName());
+        cancelConnect();
+        mConnectTask = mScheduler.submit(IoScheduler.CONNECT, new ConnectTask(transport));
+    }
+
+    private synchronized void cancelConnect() {
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
+        }
+    }
+
+    /**
+     * @param transport the connected transport used to send-receive data from-to the device,
+     *                  there must be no replay running: the pipeline accepts a single producer
+     */
+    public synchronized void manageConnectedTransport(Transport transport) {
+
+        if (D) Log.d(TAG, "manageConnectedTransport called with: " + transport.getName());
+        // the task that completed the connection is done
+        mConnectTask = null;
+
+        // Cancel any link currently running a connection
+        if (mLink != null) {
+
+            mLink.cancel();
+            mLink = null;
+
+        }
 
-        if (mConnectThread != null) {
+        // the ConnectTask stops the replay before, never waiting under this lock
+        if (mReplayTask != null) {
+            Log.e(TAG, "replay running, connection refused");
             try {
-                mConnectThread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                transport.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of transport failed", e);
             }
+            return;
         }
 
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
+        mPipeline.start();
+        mCommands.start();
+        mColorSender.start();
+        LinkListener listener = new LinkListener();
+        try {
+            mLink = new TransportLink(transport, listener, mReadBuffers,
+                    mScheduler.getPool(IoScheduler.READ));
+            listener.mOwner = mLink;
+        } catch (IOException e) {
+            Log.e(TAG, "streams not available", e);
             try {
-                mConnectedThread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                transport.close();
+            } catch (IOException e2) {
+                Log.e(TAG, "close() of transport failed", e2);
             }
+            return;
         }
+        if (D) Log.d(TAG, "link started");
+        mLink.start();
 
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device);
-        // mBluetoothAdapter.cancelDiscovery();
-        mConnectThread.start();
+    }
 
+    /**
+     * Subscribe to the samples decoded from the connected device
+     *
+     * @param listener       receives the samples in batches
+     * @param executor       the thread the listener is called on
+     * @param batchSize      maximum number of samples per batch
+     * @param maxDelayMillis maximum time a sample waits before its batch is delivered
+     */
+    public void addSampleListener(SampleListener listener, Executor executor, int batchSize,
+                                  long maxDelayMillis) {
+        mPipeline.addSampleListener(listener, executor, batchSize, maxDelayMillis);
     }
 
     /**
-     * @param bDevice the device we are connecting to
-     * @param bSocket the socket used to send-receivee data from-to the bDevice
+     * Subscribe to the decoded samples passed through a filter, e.g. band limited and decimated
+     *
+     * @param filter run on the decode thread for this listener only
+     * @see SamplePipeline#addSampleListener(SampleListener, Executor, int, long, SampleFilter)
      */
-    public synchronized void manageConnectedSocket(BluetoothSocket bSocket, BluetoothDevice bDevice) {
+    public void addSampleListener(SampleListener listener, Executor executor, int batchSize,
+                                  long maxDelayMillis, SampleFilter filter) {
+        mPipeline.addSampleListener(listener, executor, batchSize, maxDelayMillis, filter);
+    }
+
+    /**
+     * Subscribe to the decoded samples with an {@link Overload} policy for when the listener
+     * falls behind
+     *
+     * @see SamplePipeline#addSampleListener(SampleListener, Executor, int, long, SampleFilter, int)
+     */
+    public void addSampleListener(SampleListener listener, Executor executor, int batchSize,
+                                  long maxDelayMillis, SampleFilter filter, int overload) {
+        mPipeline.addSampleListener(listener, executor, batchSize, maxDelayMillis, filter, overload);
+    }
+
+    /**
+     * @return the samples a listener lost to its overload policy
+     */
+    public long getDroppedSamples(SampleListener listener) {
+        return mPipeline.getDroppedSamples(listener);
+    }
+
+    /**
+     * Choose whether the reads wait for the decoding or drop chunks when it is behind
+     *
+     * @see SamplePipeline#setChunkPolicy(int)
+     */
+    public void setChunkPolicy(int policy) {
+        mPipeline.setChunkPolicy(policy);
+    }
+
+    public void removeSampleListener(SampleListener listener) {
+        mPipeline.removeSampleListener(listener);
+    }
+
+    /**
+     * Unsubscribe a listener once it had every sample decoded so far
+     *
+     * @see SamplePipeline#removeSampleListener(SampleListener, Runnable)
+     */
+    public void removeSampleListener(SampleListener listener, Runnable whenDrained) {
+        mPipeline.removeSampleListener(listener, whenDrained);
+    }
+
+    /**
+     * Subscribe to the battery and status sent along the samples, checked at most once per
+     * interval and delivered only when they change
+     *
+     * @see SamplePipeline#setTelemetryListener(TelemetryListener, Executor, long)
+     */
+    public void setTelemetryListener(TelemetryListener listener, Executor executor,
+                                     long minIntervalMillis) {
+        mPipeline.setTelemetryListener(listener, executor, minIntervalMillis);
+    }
+
+    /**
+     * @return the last HISTORY_MINUTES of samples, to read the time before an event
+     */
+    public SampleHistory getHistory() {
+        return mHistory;
+    }
+
+    /**
+     * Capture the chunks read from the device into a trace that can be replayed with
+     * {@link #startReplay(File, boolean)} or {@link WireReplay}. The trace holds what the
+     * pipeline is fed: the acknowledgements of the lamp are taken out first and the chunks
+     * made only of acknowledgements are not recorded, so a replay decodes the same samples.
+     *
+     * @param file the trace file, overwritten if it exists
+     */
+    public void startCapture(File file) throws IOException {
+        closeCapture(mCapture.getAndSet(new WireTraceWriter(file)));
+    }
+
+    public void stopCapture() {
+        closeCapture(mCapture.getAndSet(null));
+    }
+
+    private void closeCapture(WireTraceWriter capture) {
+        if (capture != null) {
+            try {
+                capture.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of capture failed", e);
+            }
+        }
+    }
 
-        if (D) Log.d(TAG, "manageConnectedSocket called with socket: " + bSocket.toString());
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
+    /**
+     * Feed a captured trace through the decoder and the sample listeners as if it came from the
+     * device. There must be no active connection, the pipeline accepts a single producer.
+     *
+     * @param trace    the trace written by {@link #startCapture(File)}
+     * @param realTime true to keep the original timing, false to replay as fast as possible
+     */
+    public synchronized void startReplay(File trace, boolean realTime) {
+        if (mLink != null) {
+            Log.w(TAG, "replay refused, a device is connected");
+            return;
+        }
+        ReplayTask previous = mReplayTask;
+        if (previous != null) {
+            previous.cancel();
+        }
+        // the new decode loop and the new replay wait for the previous ones on their own
+        // threads, never on the caller's
+        mPipeline.start();
+        mReplayTask = mScheduler.submit(IoScheduler.BACKGROUND,
+                new ReplayTask(trace, realTime, previous));
+    }
 
-            mConnectThread.cancel();
-            mConnectThread = null;
+    /**
+     * Stop the connection and the decode thread, the threads of the scheduler stay for the
+     * next connection
+     */
+    public synchronized void shutdown() {
+        if (mReplayTask != null) {
+            mReplayTask.cancel();
+            mReplayTask = null;
         }
+        cancelConnect();
+        if (mLink != null) {
+            mLink.cancel();
+            mLink = null;
+        }
+        mPipeline.stop();
+        mColorSender.stop();
+        mCommands.stop();
+        mSession.close();
+        stopCapture();
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
+    /**
+     * Queue a color for the lamp, it replaces the color not sent yet so it can be called for
+     * every move of the picker
+     */
+    public void sendColor(int color) {
+        mColorSender.setColor(color);
+    }
 
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+    /**
+     * @param maxRate maximum number of colors sent per second
+     */
+    public void setColorRate(int maxRate) {
+        mColorSender.setMaxRate(maxRate);
+    }
+
+    /**
+     * Send a color right away, waiting only if COMMAND_WINDOW commands are not acknowledged yet.
+     * Never call it on the UI thread.
+     *
+     * @return completes when the lamp acknowledges the color
+     */
+    public CommandFuture sendColorCommand(int color) throws InterruptedException {
+        return mCommands.sendColor(color);
+    }
 
+    // runs on the color send thread, it waits here while the window is full
+    private void writeColor(int color) throws IOException {
+        if (mLink == null)
+            return;
+        long dequeuedAt = System.nanoTime();
+        try {
+            CommandFuture future = mCommands.sendColor(color);
+            mLatency.onSent(future, mColorSender.getPickedAt(), dequeuedAt);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("color not sent");
         }
+    }
 
-        mConnectedThread = new ConnectedThread(bSocket);
-        if (D) Log.d(TAG, "Connected Thread started");
-        mConnectedThread.start();
+    /**
+     * Connect a lamp in the background and add it to the session of the broadcasts
+     */
+    public void addLamp(final BluetoothDevice device) {
+        mScheduler.submit(IoScheduler.CONNECT, new IoScheduler.Task() {
+            @Override
+            protected void runTask() {
+                RacingRfcommTransport transport = new RacingRfcommTransport(device, UUID_SPP,
+                        false, RacingRfcommTransport.getPreferences(context));
+                try {
+                    transport.connect();
+                    mSession.add(transport);
+                    if (D) Log.d(TAG, "lamp added: " + transport.getName());
+                } catch (IOException e) {
+                    Log.e(TAG, "lamp not added: " + device.getAddress(), e);
+                    try {
+                        transport.close();
+                    } catch (IOException e2) {
+                        Log.e(TAG, "close() of transport failed", e2);
+                    }
+                }
+            }
+        });
+    }
 
+    public LampSession getSession() {
+        return mSession;
+    }
+
+    /**
+     * Make every lamp of the session show the color at the same time
+     *
+     * @return one future per lamp, done when the lamp acknowledged the color
+     */
+    public List<Future<Void>> broadcastColor(int color) {
+        return mSession.broadcastColor(color, BROADCAST_LEAD);
     }
 
     public void sendData(String data) {
-        if (mConnectedThread != null) {
-            mConnectedThread.write(data);
+        TransportLink link = mLink;
+        if (link != null) {
+            synchronized (mEncoder) {
+                int length = mEncoder.encodeText(data);
+                try {
+                    link.write(mEncoder.getBuffer(), 0, length);
+
+                    Log.d(TAG, "sending data: " + data);
+                    mHandler.obtainMessage(BluetoothConnector.MESSAGE_STRING, data).sendToTarget();
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception during write", e);
+                }
+            }
         }
 
     }
 
     /**
-     * Thread used to connect to the device
+     * Task used to connect to the device. A cancelled task lets its connect finish and closes
+     * the transport itself, nobody closes it under its feet.
      */
-    private class ConnectThread extends Thread {
+    private class ConnectTask extends IoScheduler.Task {
 
         /**
-         * the Bluetoothdevice
+         * the Transport to the device
          */
-        private final BluetoothDevice mDevice;
-        /**
-         * the BluetoothSocket
-         */
-        private BluetoothSocket mSocket;
+        private final Transport mTransport;
 
         /**
-         * @param device the BluetoothDevice we want to connect to
+         * @param transport the Transport we want to connect
          */
-        public ConnectThread(BluetoothDevice device) {
-            this.mDevice = device;
-            BluetoothSocket tempSocket = null;
+        public ConnectTask(Transport transport) {
+            this.mTransport = transport;
+        }
 
+        @Override
+        protected void runTask() {
+            //remeber to cancel discovery before calling the task
             try {
-                //establish an insecure connection because the devices has not security check system
-                ParcelUuid list[] = this.mDevice.getUuids();
-                // UUID u = list[0].getUuid();
-                if (list != null) {
-                    if (list.length != 0)
-                        tempSocket = this.mDevice.createInsecureRfcommSocketToServiceRecord(list[0].getUuid());
-                } else
-                    tempSocket = this.mDevice.createInsecureRfcommSocketToServiceRecord(UUID_SPP);
-
+                if (D) Log.i(TAG, "connecting to " + mTransport.getName());
+                mTransport.connect();
+                if (D) Log.i(TAG, "connected");
             } catch (IOException e) {
-                e.printStackTrace();
+                if (!isCancelled())
+                    Log.e(TAG, "Couldn't establish connection!", e);
+                closeTransport();
+                return;
             }
-            mSocket = tempSocket;
-
-        }
 
-        public void run() {
-            //remeber to cancel discovery before calling the thread
-            try {
-                if (D) Log.i(TAG, "connecting ...");
-                mSocket.connect();
-                if (D) Log.i(TAG, "connected");
-            } catch (Exception e) {
-                e.printStackTrace();
+            // the device takes over the pipeline, which accepts a single producer: a replay
+            // must be gone before the link reads. It is stopped outside the connector lock, the
+            // UI thread takes it, and looked for again in case another one started meanwhile
+            ReplayTask stopped = null;
+            while (true) {
+                ReplayTask replay;
+                synchronized (BluetoothConnector.this) {
+                    // a newer connect or a shutdown cancels under the same lock
+                    if (isCancelled())
+                        break;
+                    if (mReplayTask == stopped)
+                        mReplayTask = null;
+                    replay = mReplayTask;
+                    if (replay == null) {
+                        manageConnectedTransport(mTransport); //manage the conenction and input-output stream
+                        return;
+                    }
+                }
+                replay.cancel();
+                boolean done = false;
                 try {
-                    if (D) Log.i(TAG, "trying fallback...");
-                    mSocket = (BluetoothSocket) mDevice.getClass().getMethod("createRfcommSocket", new Class[]{int.class}).invoke(mDevice, 1);
-                    mSocket.connect();
-
-                    if (D) Log.i(TAG, "Connected");
-                } catch (Exception e2) {
-                    Log.e(TAG, "Couldn't establish Bluetooth connection!");
-
-                    if (D) Log.i(TAG, "Connection failed");
+                    done = replay.await(REPLAY_STOP_TIMEOUT);
+                } catch (InterruptedException e) {
+                    // cancelled, checked above
+                }
+                if (!done && !isCancelled()) {
+                    Log.e(TAG, "replay still running, connection refused");
+                    closeTransport();
                     return;
                 }
-
+                stopped = replay;
             }
-
-            manageConnectedSocket(mSocket, mDevice); //manage the conenction and input-output stream from the socket
+            if (D) Log.i(TAG, "connect cancelled, closing " + mTransport.getName());
+            closeTransport();
         }
 
         /**
          * Will cancel an in-progress connection, and close the socket
          */
+        @Override
         public void cancel() {
+            super.cancel();
+            closeTransport();
+        }
 
+        private void closeTransport() {
+            try {
+                mTransport.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of connecting transport failed", e);
+            }
         }
 
     }
 
     /**
-     * ConnectedThread is used to manage the data exchanges between the two devices once thery get already connected
+     * Task feeding a captured trace to the pipeline in place of the device
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final OutputStream mmOutStream;
-
-        private final InputStream mImpIn;
-
-        public ConnectedThread(BluetoothSocket socket) {
+    private class ReplayTask extends IoScheduler.Task {
+        private final File mTrace;
+        private final boolean mRealTime;
+        // the replay this one replaces, the pipeline accepts a single producer
+        private final ReplayTask mPrevious;
+
+        public ReplayTask(File trace, boolean realTime, ReplayTask previous) {
+            mTrace = trace;
+            mRealTime = realTime;
+            mPrevious = previous;
+        }
 
-            mmSocket = socket;
-            OutputStream tmpOut = null;
-            InputStream tmpIn = null;
-            // Get the BluetoothSocket input and output streams from socket here
+        @Override
+        protected void runTask() {
             try {
-                tmpIn = socket.getInputStream();
-
-                tmpOut = socket.getOutputStream();
+                if (mPrevious != null && !mPrevious.await(REPLAY_STOP_TIMEOUT)) {
+                    Log.e(TAG, "previous replay still running, " + mTrace + " not replayed");
+                    return;
+                }
+                WireTraceReader reader = new WireTraceReader(mTrace);
+                try {
+                    long chunks = WireReplay.replay(reader, mPipeline, mRealTime);
+                    if (D) Log.i(TAG, "replayed " + chunks + " chunks from " + mTrace);
+                } finally {
+                    reader.close();
+                }
             } catch (IOException e) {
-                e.printStackTrace();
-                if (D)
-                    Log.e(TAG, "temp sockets not created", e);
+                Log.e(TAG, "replay of " + mTrace + " failed", e);
+            } catch (InterruptedException e) {
+                if (D) Log.i(TAG, "replay cancelled");
             }
-            mmOutStream = tmpOut;
-            mImpIn = tmpIn;
         }
+    }
+
+    /**
+     * Receives the data read by the TransportLink once the devices are connected
+     */
+    private class LinkListener implements TransportLink.ChunkListener {
+
+        // the link of this listener, set under the connector lock before the link starts
+        TransportLink mOwner;
 
         /**
-         * We are reading only string data from the InputStream
+         * The raw bytes are queued to the SamplePipeline, framing and decoding happen on its thread
          */
-        public void run() {
-            if (D)
-                Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes = -1;
+        @Override
+        public void onRead(BufferPool.Buffer chunk) {
+            int bytes = received(chunk.array(), chunk.length());
+            if (bytes == 0) {
+                chunk.release();
+                return;
+            }
+            // the pipeline takes over the lease and releases it; a refused chunk is counted by
+            // the pipeline, logging every one would slow the read loop further
+            chunk.setLength(bytes);
+            mPipeline.offer(chunk);
+        }
 
+        /**
+         * Read while the pipeline holds every buffer, counted in link.buffer_misses
+         */
+        @Override
+        public void onDropped(byte[] buffer, int bytes) {
+            // the acknowledgements still complete their commands
+            received(buffer, bytes);
+        }
 
-            // Keep listening to the InputStream while connected
-            while (true) {
+        /**
+         * Count a read, handle the acknowledgements of the commands and capture the rest
+         *
+         * @return the number of bytes left at the start of the buffer
+         */
+        private int received(byte[] buffer, int bytes) {
+            mReads.increment();
+            mBytesRead.add(bytes);
+            mReadSizes.record(bytes);
+            // the acknowledgements of the commands are not part of the sample stream
+            bytes = mCommands.onReceived(buffer, 0, bytes);
+            if (bytes == 0)
+                return 0;
+            WireTraceWriter capture = mCapture.get();
+            if (capture != null) {
                 try {
-                    // Read from the InputStream
-                    bytes = mImpIn.read(buffer);
-                    if (bytes != -1) {
-                        String data = new String(buffer, 0, bytes);
-                        if (D)
-                            Log.i(TAG, "sending data");
-                        mHandler.obtainMessage(BluetoothConnector.MESSAGE_STRING, data).sendToTarget();
-                    }
-
+                    capture.record(buffer, 0, bytes);
                 } catch (IOException e) {
-                    if (D)
-                        Log.e(TAG, "disconnected", e);
-                    e.printStackTrace();
-
-                    break;
+                    // a capture replaced meanwhile was closed under this read, the new one stays
+                    if (mCapture.compareAndSet(capture, null)) {
+                        Log.e(TAG, "capture failed", e);
+                        closeCapture(capture);
+                    }
                 }
             }
+            return bytes;
         }
 
-        public void write(String data) {
-            byte[] buffer = data.getBytes();
-            try {
-                mmOutStream.write(buffer);
-
-                Log.d(TAG, "sending data: " + data);
-                mHandler.obtainMessage(BluetoothConnector.MESSAGE_STRING, data).sendToTarget();
-                //send what is already in buffer
-                //mmOutStream.flush();
-
-
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
-        }
-
-
-        /**
-         * method to cancel the ConnectedThread once we are done with the data exchanges
-         */
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-                if (D)
-                    Log.e(TAG, "close() of connect socket failed", e);
+        @Override
+        public void onDisconnected(IOException cause) {
+            if (D)
+                Log.e(TAG, "disconnected", cause);
+            synchronized (BluetoothConnector.this) {
+                // a link already replaced or cancelled is not the connection any more
+                if (mLink != mOwner)
+                    return;
+                mLink = null;
+                // the commands in flight fail instead of waiting for a dead link
+                mColorSender.stop();
+                mCommands.stop();
             }
         }
     }
@@ -0,0 +1,80 @@
+package com.bol.ejoy;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.bol.ejoy.core.DeviceRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rows of the discovered devices for a ListView, which only creates the rows on screen and
+ * recycles them while scrolling. The list is patched with the diffs of a {@link DeviceRegistry},
+ * in the order the devices were found so rows do not jump around.
+ */
+public class DeviceListAdapter extends BaseAdapter implements DeviceRegistry.Listener {
+
+    private final LayoutInflater mInflater;
+    private final List<DeviceRegistry.Device> mDevices = new ArrayList<>();
+
+    public DeviceListAdapter(Context context) {
+        mInflater = LayoutInflater.from(context);
+    }
+
+    @Override
+    public void onDevicesChanged(List<DeviceRegistry.Device> added,
+                                 List<DeviceRegistry.Device> updated,
+                                 List<DeviceRegistry.Device> removed) {
+        // updated devices are the same objects, only the rows need a redraw
+        mDevices.removeAll(removed);
+        mDevices.addAll(added);
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return mDevices.size();
+    }
+
+    @Override
+    public DeviceRegistry.Device getItem(int position) {
+        return mDevices.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if (convertView == null) {
+            convertView = mInflater.inflate(R.layout.device_item, parent, false);
+            holder = new ViewHolder();
+            holder.name = (TextView) convertView.findViewById(R.id.device_name);
+            holder.address = (TextView) convertView.findViewById(R.id.device_address);
+            holder.rssi = (TextView) convertView.findViewById(R.id.device_rssi);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+        DeviceRegistry.Device device = mDevices.get(position);
+        holder.name.setText(device.getName() != null ? device.getName() : "?");
+        holder.address.setText(device.getAddress());
+        holder.rssi.setText(device.getRssi() != DeviceRegistry.NO_RSSI
+                ? device.getRssi() + " dBm" : "");
+        return convertView;
+    }
+
+    private static class ViewHolder {
+        TextView name;
+        TextView address;
+        TextView rssi;
+    }
+}
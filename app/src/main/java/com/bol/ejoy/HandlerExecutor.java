@@ -0,0 +1,30 @@
+package com.bol.ejoy;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executor running the tasks on the thread of a Looper, used to receive the
+ * {@link com.bol.ejoy.core.SampleListener} callbacks on the UI thread or on a HandlerThread.
+ */
+public class HandlerExecutor implements Executor {
+
+    private final Handler mHandler;
+
+    public HandlerExecutor(Looper looper) {
+        mHandler = new Handler(looper);
+    }
+
+    public HandlerExecutor(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (!mHandler.post(command))
+            throw new RejectedExecutionException("looper is exiting");
+    }
+}
@@ -0,0 +1,161 @@
+package com.bol.ejoy;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import com.bol.ejoy.core.ConnectRace;
+import com.bol.ejoy.core.IoScheduler;
+import com.bol.ejoy.core.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * {@link Transport} trying the ways to open an RFCOMM socket in parallel: the service record of
+ * the given UUID, the first UUID the device advertises and channel 1. The first socket that
+ * connects is kept.
+ * <p>
+ * The way that won is remembered for the address of the device, the next connect tries it
+ * alone and only races again if it fails.
+ */
+public class RacingRfcommTransport implements Transport {
+
+    private static final String TAG = "RacingRfcommTransport";
+    private static final String PREFERENCES = "rfcomm_strategies";
+    // values stored for an address
+    private static final String SERVICE_RECORD = "service_record";
+    private static final String ADVERTISED = "advertised";
+    private static final String CHANNEL = "channel";
+
+    private final BluetoothDevice mDevice;
+    private final UUID mUuid;
+    private final boolean mSecure;
+    private final SharedPreferences mPreferences;
+    private volatile RfcommTransport mTransport;
+    private volatile ConnectRace mRace;
+    private volatile boolean mClosed;
+
+    /**
+     * @param device      the device to connect to
+     * @param uuid        the service record to connect to
+     * @param secure      false for an insecure (unauthenticated) socket
+     * @param preferences where the winning strategies are kept, see {@link #getPreferences(Context)}
+     */
+    public RacingRfcommTransport(BluetoothDevice device, UUID uuid, boolean secure,
+                                 SharedPreferences preferences) {
+        mDevice = device;
+        mUuid = uuid;
+        mSecure = secure;
+        mPreferences = preferences;
+    }
+
+    /**
+     * @return the preferences shared by every connection of the application
+     */
+    public static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        String address = mDevice.getAddress();
+        String known = mPreferences.getString(address, null);
+        if (known != null) {
+            RfcommTransport transport = create(known);
+            if (transport != null) {
+                mTransport = transport;
+                try {
+                    transport.connect();
+                    return;
+                } catch (IOException e) {
+                    if (mClosed)
+                        throw e;
+                    Log.i(TAG, known + " failed for " + address + ", racing", e);
+                }
+            }
+        }
+
+        List<String> names = new ArrayList<>();
+        List<RfcommTransport> candidates = new ArrayList<>();
+        names.add(SERVICE_RECORD);
+        candidates.add(create(SERVICE_RECORD));
+        RfcommTransport advertised = create(ADVERTISED);
+        if (advertised != null) {
+            names.add(ADVERTISED);
+            candidates.add(advertised);
+        }
+        names.add(CHANNEL);
+        candidates.add(create(CHANNEL));
+
+        ConnectRace race = new ConnectRace(IoScheduler.getShared().getPool(IoScheduler.CONNECT),
+                candidates.toArray(new Transport[candidates.size()]));
+        mRace = race;
+        if (mClosed) {
+            race.cancel();
+            throw new IOException("closed while connecting");
+        }
+        int winner = race.run();
+        mTransport = candidates.get(winner);
+        if (!names.get(winner).equals(known)) {
+            mPreferences.edit().putString(address, names.get(winner)).apply();
+        }
+        Log.i(TAG, address + " connected with " + names.get(winner));
+    }
+
+    /**
+     * @return the transport of a strategy, null if the device does not advertise a different UUID
+     */
+    private RfcommTransport create(String strategy) {
+        if (SERVICE_RECORD.equals(strategy)) {
+            return new RfcommTransport(mDevice, mUuid, mSecure, RfcommTransport.STRATEGY_SERVICE_RECORD);
+        } else if (ADVERTISED.equals(strategy)) {
+            ParcelUuid[] uuids = mDevice.getUuids();
+            if (uuids == null || uuids.length == 0 || uuids[0].getUuid().equals(mUuid))
+                return null;
+            return new RfcommTransport(mDevice, uuids[0].getUuid(), mSecure,
+                    RfcommTransport.STRATEGY_SERVICE_RECORD);
+        } else if (CHANNEL.equals(strategy)) {
+            return new RfcommTransport(mDevice, mUuid, mSecure, RfcommTransport.STRATEGY_CHANNEL);
+        }
+        return null;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mTransport.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mTransport.getOutputStream();
+    }
+
+    @Override
+    public String getName() {
+        return mDevice.getName() + " " + mDevice.getAddress();
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        ConnectRace race = mRace;
+        if (race != null) {
+            race.cancel();
+        }
+        RfcommTransport transport = mTransport;
+        if (transport != null) {
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.bol.ejoy;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import com.bol.ejoy.core.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * {@link Transport} over a Bluetooth RFCOMM socket.
+ * <p>
+ * By default {@link #connect()} opens the service record of the given UUID and, if the device
+ * refuses it, falls back to RFCOMM channel 1 through the hidden createRfcommSocket method. A
+ * single strategy can be chosen instead, see {@link RacingRfcommTransport}.
+ */
+public class RfcommTransport implements Transport {
+
+    /**
+     * The service record, then channel 1 if it fails
+     */
+    public static final int STRATEGY_FALLBACK = 0;
+    /**
+     * The service record of the UUID only
+     */
+    public static final int STRATEGY_SERVICE_RECORD = 1;
+    /**
+     * RFCOMM channel 1 only, without service discovery
+     */
+    public static final int STRATEGY_CHANNEL = 2;
+
+    private static final String TAG = "RfcommTransport";
+
+    private final BluetoothDevice mDevice;
+    private final UUID mUuid;
+    private final boolean mSecure;
+    private final int mStrategy;
+    private volatile BluetoothSocket mSocket;
+    private volatile boolean mClosed;
+
+    /**
+     * @param device the device to connect to
+     * @param uuid   the service record to connect to
+     * @param secure false for an insecure (unauthenticated) socket
+     */
+    public RfcommTransport(BluetoothDevice device, UUID uuid, boolean secure) {
+        this(device, uuid, secure, STRATEGY_FALLBACK);
+    }
+
+    /**
+     * @param strategy one of the STRATEGY constants
+     */
+    public RfcommTransport(BluetoothDevice device, UUID uuid, boolean secure, int strategy) {
+        mDevice = device;
+        mUuid = uuid;
+        mSecure = secure;
+        mStrategy = strategy;
+    }
+
+    /**
+     * @param socket an already connected socket, e.g. returned by BluetoothServerSocket.accept()
+     */
+    public RfcommTransport(BluetoothSocket socket) {
+        mDevice = socket.getRemoteDevice();
+        mUuid = null;
+        mSecure = true;
+        mStrategy = STRATEGY_FALLBACK;
+        mSocket = socket;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (mSocket != null && mSocket.isConnected())
+            return;
+        try {
+            if (mStrategy == STRATEGY_CHANNEL) {
+                connectChannel();
+            } else {
+                connectServiceRecord();
+            }
+        } catch (IOException e) {
+            // whatever failed, the socket created for it is not left open
+            closeSocket();
+            throw e;
+        }
+        // close() may have raced with the connection
+        if (mClosed) {
+            closeSocket();
+            throw new IOException("closed while connecting");
+        }
+    }
+
+    private void connectServiceRecord() throws IOException {
+        try {
+            mSocket = mSecure ? mDevice.createRfcommSocketToServiceRecord(mUuid)
+                    : mDevice.createInsecureRfcommSocketToServiceRecord(mUuid);
+            mSocket.connect();
+        } catch (IOException e) {
+            if (mClosed || mStrategy != STRATEGY_FALLBACK)
+                throw e;
+            Log.i(TAG, "trying fallback...", e);
+            closeSocket();
+            connectChannel();
+        }
+    }
+
+    private void connectChannel() throws IOException {
+        try {
+            mSocket = (BluetoothSocket) mDevice.getClass()
+                    .getMethod("createRfcommSocket", new Class[]{int.class}).invoke(mDevice, 1);
+        } catch (Exception e) {
+            throw new IOException("fallback not available", e);
+        }
+        mSocket.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public String getName() {
+        return mDevice.getName() + " " + mDevice.getAddress() + " strategy " + mStrategy;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        BluetoothSocket socket = mSocket;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    private void closeSocket() {
+        BluetoothSocket socket = mSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of socket failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.bol.ejoy.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of encoding a color command, against the String concatenation and getBytes() it
+ * replaces.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandEncoderBenchmark {
+
+    private final CommandEncoder mEncoder = new CommandEncoder();
+    private final String mMessage = "RGB 255 128 12";
+
+    @Benchmark
+    public int encodeMessage() {
+        return mEncoder.encodeMessage(mMessage);
+    }
+
+    @Benchmark
+    public int concatAndGetBytes() throws UnsupportedEncodingException {
+        char eot = (char) CommandEncoder.EOT;
+        return (mMessage + eot).getBytes("UTF-8").length;
+    }
+}
@@ -0,0 +1,134 @@
+package com.bol.ejoy.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples encoded and decoded per second by {@link DeltaCodec}, in blocks of a recording chunk.
+ * A sample is 12 bytes of 12 bit data, so MB/s is ops/s * 12 / 10^6. The compression ratio
+ * against the packed format is printed by the setup.
+ * <p>
+ * Pass a wire trace of a real board with {@code -p capture=/path/to/trace}; without one a
+ * synthetic ECG-like signal with noise is used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DeltaCodecBenchmark {
+
+    static final int SAMPLES = 256;
+    static final int BLOCKS = 64;
+
+    @Param("")
+    public String capture;
+
+    private SampleBatch[] mBlocks;
+    private byte[][] mEncoded;
+    private int[] mLengths;
+    private byte[] mOut;
+    private SampleBatch mDecoded;
+    private int mNext;
+
+    @Setup
+    public void setup() throws Exception {
+        List<SampleBatch> blocks = capture.isEmpty() ? synthetic() : fromCapture(new File(capture));
+        mBlocks = blocks.toArray(new SampleBatch[blocks.size()]);
+        mEncoded = new byte[mBlocks.length][];
+        mLengths = new int[mBlocks.length];
+        long encoded = 0;
+        for (int i = 0; i < mBlocks.length; i++) {
+            mEncoded[i] = new byte[DeltaCodec.maxEncodedSize(FrameDecoder.CHANNELS, SAMPLES)];
+            mLengths[i] = DeltaCodec.encode(mBlocks[i], mEncoded[i], 0);
+            encoded += mLengths[i];
+        }
+        long packed = (long) mBlocks.length * SAMPLES * FrameDecoder.CHANNELS * 3 / 2;
+        System.out.printf("%n%d blocks, compression ratio %.2f against the packed 12 bit format%n",
+                mBlocks.length, (double) packed / encoded);
+        mOut = new byte[DeltaCodec.maxEncodedSize(FrameDecoder.CHANNELS, SAMPLES)];
+        mDecoded = new SampleBatch(FrameDecoder.CHANNELS, SAMPLES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int encode() {
+        int i = next();
+        return DeltaCodec.encode(mBlocks[i], mOut, 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int decode() {
+        int i = next();
+        DeltaCodec.decode(mEncoded[i], 0, SAMPLES, mDecoded);
+        return mDecoded.get(7, SAMPLES - 1);
+    }
+
+    private int next() {
+        int i = mNext;
+        mNext = i + 1 == mBlocks.length ? 0 : i + 1;
+        return i;
+    }
+
+    private static List<SampleBatch> synthetic() {
+        List<SampleBatch> blocks = new ArrayList<>();
+        Random random = new Random(1);
+        int[] sample = new int[FrameDecoder.CHANNELS];
+        int n = 0;
+        for (int b = 0; b < BLOCKS; b++) {
+            SampleBatch batch = new SampleBatch(FrameDecoder.CHANNELS, SAMPLES);
+            for (int i = 0; i < SAMPLES; i++, n++) {
+                // a beat every 250 samples over the baseline, with some noise
+                double beat = Math.exp(-Math.pow((n % 250 - 50) / 4.0, 2)) * 800;
+                for (int c = 0; c < sample.length; c++) {
+                    sample[c] = 2048 + (int) (beat / (c + 1)) + random.nextInt(9) - 4;
+                }
+                batch.add(sample);
+            }
+            blocks.add(batch);
+        }
+        return blocks;
+    }
+
+    private static List<SampleBatch> fromCapture(File file) throws Exception {
+        List<SampleBatch> blocks = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder();
+        int[] sample = new int[FrameDecoder.CHANNELS];
+        SampleBatch batch = new SampleBatch(FrameDecoder.CHANNELS, SAMPLES);
+        WireTraceReader reader = new WireTraceReader(file);
+        try {
+            while (reader.next()) {
+                byte[] data = reader.getData();
+                int length = reader.getLength();
+                int offset = 0;
+                while (offset < length) {
+                    offset += decoder.write(data, offset, length - offset);
+                    while (decoder.next(sample)) {
+                        batch.add(sample);
+                        if (batch.isFull()) {
+                            blocks.add(batch);
+                            batch = new SampleBatch(FrameDecoder.CHANNELS, SAMPLES);
+                        }
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (blocks.isEmpty())
+            throw new IllegalArgumentException("fewer than " + SAMPLES + " samples in " + file);
+        return blocks;
+    }
+}
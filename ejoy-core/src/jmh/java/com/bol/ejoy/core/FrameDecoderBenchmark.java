@@ -0,0 +1,69 @@
+package com.bol.ejoy.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames decoded per second by {@link FrameDecoder}. Run with the gc profiler (the default of
+ * the jmh task) the gc.alloc.rate.norm column is the allocation per frame, it must stay 0.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameDecoderBenchmark {
+
+    // frames per chunk, one chunk is decoded per invocation
+    static final int FRAMES = 64;
+    static final String FRAME = "001 0a2 FFF 100 abc 7d0 000 123 b9&";
+
+    private FrameDecoder mDecoder;
+    private byte[] mChunk;
+    private int[] mSample;
+    private SampleBatch mBatch;
+
+    @Setup
+    public void setup() throws Exception {
+        StringBuilder chunk = new StringBuilder();
+        for (int i = 0; i < FRAMES; i++) {
+            chunk.append(FRAME);
+        }
+        mChunk = chunk.toString().getBytes("US-ASCII");
+        mDecoder = new FrameDecoder();
+        mSample = new int[FrameDecoder.CHANNELS];
+        mBatch = new SampleBatch(FrameDecoder.CHANNELS, FRAMES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int decodeToArray() {
+        int sum = 0;
+        int offset = 0;
+        while (offset < mChunk.length) {
+            offset += mDecoder.write(mChunk, offset, mChunk.length - offset);
+            while (mDecoder.next(mSample)) {
+                sum += mSample[7];
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int decodeToBatch() {
+        mBatch.clear();
+        int offset = 0;
+        while (offset < mChunk.length) {
+            offset += mDecoder.write(mChunk, offset, mChunk.length - offset);
+            mDecoder.drainTo(mBatch);
+        }
+        return mBatch.size();
+    }
+}
@@ -0,0 +1,66 @@
+package com.bol.ejoy.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frames per second through the whole {@link SamplePipeline}: queue, decode thread, batching
+ * and delivery to a listener, the path every chunk read from the socket takes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SamplePipelineBenchmark {
+
+    static final int FRAMES = FrameDecoderBenchmark.FRAMES;
+
+    private final AtomicLong mDelivered = new AtomicLong();
+    private SamplePipeline mPipeline;
+    private byte[] mChunk;
+    private long mSent;
+
+    @Setup
+    public void setup() throws Exception {
+        StringBuilder chunk = new StringBuilder();
+        for (int i = 0; i < FRAMES; i++) {
+            chunk.append(FrameDecoderBenchmark.FRAME);
+        }
+        mChunk = chunk.toString().getBytes("US-ASCII");
+        mPipeline = new SamplePipeline();
+        mPipeline.addSampleListener(new SampleListener() {
+            @Override
+            public void onSamples(SampleBatch batch) {
+                mDelivered.addAndGet(batch.size());
+            }
+        }, SamplePipeline.DIRECT, FRAMES, 1);
+        mPipeline.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mPipeline.stop();
+        mPipeline.awaitTermination(1000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long chunkToListener() throws InterruptedException {
+        // the pipeline takes ownership of the chunks, the reader hands over a new one every read
+        mPipeline.put(mChunk.clone());
+        mSent += FRAMES;
+        while (mDelivered.get() < mSent) {
+            Thread.yield();
+        }
+        return mSent;
+    }
+}
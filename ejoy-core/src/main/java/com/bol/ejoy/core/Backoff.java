@@ -0,0 +1,64 @@
+package com.bol.ejoy.core;
+
+import java.util.Random;
+
+/**
+ * Delays between the attempts of a reconnect: the first attempt is immediate, then the delay
+ * doubles from {@code initialMillis} up to {@code maxMillis}. Each delay is drawn between half
+ * and all of its ceiling so that clients dropped together do not retry in lockstep.
+ * <p>
+ * Not thread safe, it belongs to the thread retrying.
+ */
+public class Backoff {
+
+    private final long mInitial;
+    private final long mMax;
+    private final Random mRandom;
+    private int mAttempts;
+
+    public Backoff(long initialMillis, long maxMillis) {
+        this(initialMillis, maxMillis, new Random());
+    }
+
+    /**
+     * @param random source of the jitter, seeded in tests
+     */
+    public Backoff(long initialMillis, long maxMillis, Random random) {
+        if (initialMillis < 1 || maxMillis < initialMillis)
+            throw new IllegalArgumentException("invalid delays: " + initialMillis + ", " + maxMillis);
+        mInitial = initialMillis;
+        mMax = maxMillis;
+        mRandom = random;
+    }
+
+    /**
+     * @return the time to wait before the next attempt in milliseconds
+     */
+    public long nextDelay() {
+        int attempt = mAttempts++;
+        if (attempt == 0)
+            return 0;
+        // stop shifting once the ceiling is reached, it would overflow eventually
+        long ceiling = mInitial;
+        for (int i = 1; i < attempt && ceiling < mMax; i++) {
+            ceiling <<= 1;
+        }
+        ceiling = Math.min(ceiling, mMax);
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half + 1));
+    }
+
+    /**
+     * @return the number of delays handed out since the last reset
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /**
+     * Start over from an immediate attempt, after a success
+     */
+    public void reset() {
+        mAttempts = 0;
+    }
+}
@@ -0,0 +1,118 @@
+package com.bol.ejoy.core;
+
+/**
+ * Second order IIR filter on every channel, with the low-pass, high-pass and notch
+ * coefficients of the audio EQ cookbook.
+ * <p>
+ * Each channel runs in transposed direct form II with its own two state values, in double
+ * precision; the output is rounded back to an integer. The high-pass removes the offset of
+ * the signal, its output is centered on 0.
+ */
+public class Biquad implements SampleFilter {
+
+    // quality factor of a Butterworth response, flat in the pass band
+    private static final double BUTTERWORTH_Q = 1 / Math.sqrt(2);
+
+    private final double mB0;
+    private final double mB1;
+    private final double mB2;
+    private final double mA1;
+    private final double mA2;
+    private final double[] mZ1;
+    private final double[] mZ2;
+    private boolean mPrimed;
+
+    private Biquad(int channels, double b0, double b1, double b2, double a0, double a1, double a2) {
+        mB0 = b0 / a0;
+        mB1 = b1 / a0;
+        mB2 = b2 / a0;
+        mA1 = a1 / a0;
+        mA2 = a2 / a0;
+        mZ1 = new double[channels];
+        mZ2 = new double[channels];
+    }
+
+    /**
+     * @param channels   number of channels of the samples
+     * @param sampleRate in Hz
+     * @param cutoff     in Hz, attenuated by 3 dB
+     */
+    public static Biquad lowPass(int channels, double sampleRate, double cutoff) {
+        double w = omega(sampleRate, cutoff);
+        double cos = Math.cos(w);
+        double alpha = Math.sin(w) / (2 * BUTTERWORTH_Q);
+        return new Biquad(channels, (1 - cos) / 2, 1 - cos, (1 - cos) / 2,
+                1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /**
+     * @param channels   number of channels of the samples
+     * @param sampleRate in Hz
+     * @param cutoff     in Hz, attenuated by 3 dB
+     */
+    public static Biquad highPass(int channels, double sampleRate, double cutoff) {
+        double w = omega(sampleRate, cutoff);
+        double cos = Math.cos(w);
+        double alpha = Math.sin(w) / (2 * BUTTERWORTH_Q);
+        return new Biquad(channels, (1 + cos) / 2, -(1 + cos), (1 + cos) / 2,
+                1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /**
+     * Remove a single frequency such as the 50 or 60 Hz of the mains.
+     *
+     * @param channels   number of channels of the samples
+     * @param sampleRate in Hz
+     * @param frequency  in Hz
+     * @param q          frequency divided by the width of the notch, e.g. 30
+     */
+    public static Biquad notch(int channels, double sampleRate, double frequency, double q) {
+        double w = omega(sampleRate, frequency);
+        double cos = Math.cos(w);
+        double alpha = Math.sin(w) / (2 * q);
+        return new Biquad(channels, 1, -2 * cos, 1, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    private static double omega(double sampleRate, double frequency) {
+        if (frequency <= 0 || frequency >= sampleRate / 2)
+            throw new IllegalArgumentException("frequency must be in 0.." + sampleRate / 2
+                    + " Hz: " + frequency);
+        return 2 * Math.PI * frequency / sampleRate;
+    }
+
+    @Override
+    public boolean apply(int[] sample) {
+        if (!mPrimed) {
+            prime(sample);
+        }
+        for (int c = 0; c < mZ1.length; c++) {
+            double x = sample[c];
+            double y = mB0 * x + mZ1[c];
+            mZ1[c] = mB1 * x - mA1 * y + mZ2[c];
+            mZ2[c] = mB2 * x - mA2 * y;
+            sample[c] = (int) Math.round(y);
+        }
+        return true;
+    }
+
+    // start from the steady state of the first value, a 12 bit offset would ring otherwise
+    private void prime(int[] sample) {
+        double gain = (mB0 + mB1 + mB2) / (1 + mA1 + mA2);
+        for (int c = 0; c < mZ1.length; c++) {
+            double x = sample[c];
+            double y = gain * x;
+            mZ2[c] = mB2 * x - mA2 * y;
+            mZ1[c] = y - mB0 * x;
+        }
+        mPrimed = true;
+    }
+
+    @Override
+    public void reset() {
+        for (int c = 0; c < mZ1.length; c++) {
+            mZ1[c] = 0;
+            mZ2[c] = 0;
+        }
+        mPrimed = false;
+    }
+}
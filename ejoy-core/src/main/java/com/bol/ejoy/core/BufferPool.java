@@ -0,0 +1,153 @@
+package com.bol.ejoy.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size byte buffers handed from the reading thread to the threads consuming the data.
+ * <p>
+ * The reader leases a buffer with {@link #lease()}, fills it and passes it on together with the
+ * ownership; whoever holds the last reference calls {@link Buffer#release()} and the buffer goes
+ * back to the pool. A buffer is never written while another thread still reads it, and once
+ * the pool is warm no read allocates. When every buffer is out the pool allocates a new one
+ * rather than blocking the reader, {@link #getMisses()} tells how often.
+ */
+public class BufferPool {
+
+    /**
+     * A leased buffer, the valid bytes are {@code array()[0..length())}
+     */
+    public static class Buffer {
+        private final BufferPool mPool;
+        private final byte[] mData;
+        private final AtomicInteger mReferences = new AtomicInteger();
+        private int mLength;
+
+        Buffer(BufferPool pool, byte[] data) {
+            mPool = pool;
+            mData = data;
+        }
+
+        public byte[] array() {
+            return mData;
+        }
+
+        public int length() {
+            return mLength;
+        }
+
+        public void setLength(int length) {
+            if (length < 0 || length > mData.length)
+                throw new IllegalArgumentException("length out of 0.." + mData.length + ": " + length);
+            mLength = length;
+        }
+
+        /**
+         * Replace the content with a copy of the bytes.
+         */
+        public void put(byte[] buffer, int off, int len) {
+            setLength(len);
+            System.arraycopy(buffer, off, mData, 0, len);
+        }
+
+        /**
+         * Take another reference, for a second consumer of the same data.
+         */
+        public Buffer retain() {
+            if (mReferences.getAndIncrement() <= 0)
+                throw new IllegalStateException("buffer already released");
+            return this;
+        }
+
+        /**
+         * Drop a reference, the last one returns the buffer to its pool.
+         */
+        public void release() {
+            int references = mReferences.decrementAndGet();
+            if (references < 0)
+                throw new IllegalStateException("buffer released twice");
+            if (references == 0 && mPool != null) {
+                mLength = 0;
+                mPool.mFree.offer(this);
+            }
+        }
+    }
+
+    private final int mBufferSize;
+    private final ArrayBlockingQueue<Buffer> mFree;
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * @param count      buffers kept in the pool
+     * @param bufferSize size of every buffer
+     */
+    public BufferPool(int count, int bufferSize) {
+        if (count < 1)
+            throw new IllegalArgumentException("count must be positive: " + count);
+        mBufferSize = bufferSize;
+        mFree = new ArrayBlockingQueue<>(count);
+        for (int i = 0; i < count; i++) {
+            mFree.offer(new Buffer(this, new byte[bufferSize]));
+        }
+    }
+
+    /**
+     * Wrap an array that does not belong to any pool, its release does nothing.
+     */
+    public static Buffer wrap(byte[] data) {
+        Buffer buffer = new Buffer(null, data);
+        buffer.mLength = data.length;
+        buffer.mReferences.set(1);
+        return buffer;
+    }
+
+    /**
+     * @return an empty buffer holding one reference, never null
+     */
+    public Buffer lease() {
+        Buffer buffer = mFree.poll();
+        if (buffer == null) {
+            // the consumers are behind, this buffer stays in the pool when released if there is room
+            mMisses.incrementAndGet();
+            buffer = new Buffer(this, new byte[mBufferSize]);
+        }
+        buffer.mReferences.set(1);
+        return buffer;
+    }
+
+    /**
+     * Lease without ever allocating, for the readers whose consumers are not otherwise bounded:
+     * the buffers out are then at most the size of the pool.
+     *
+     * @return an empty buffer holding one reference, null if every buffer is out
+     */
+    public Buffer tryLease() {
+        Buffer buffer = mFree.poll();
+        if (buffer == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        buffer.mReferences.set(1);
+        return buffer;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return the number of buffers available without allocating
+     */
+    public int getAvailable() {
+        return mFree.size();
+    }
+
+    /**
+     * @return the number of leases that had to allocate a buffer, or that failed for
+     * {@link #tryLease()}
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+}
@@ -0,0 +1,139 @@
+package com.bol.ejoy.core;
+
+/**
+ * Layout of the binary color command, 8 bytes:
+ * <pre>
+ * 0  START     0xA5
+ * 1  TYPE      0x01 for a color
+ * 2  SEQUENCE  0..255, incremented for every frame
+ * 3  RED
+ * 4  GREEN
+ * 5  BLUE
+ * 6  ALPHA     brightness, 0xFF when the color is opaque
+ * 7  CHECKSUM  XOR of the bytes 1 to 6
+ * </pre>
+ * The fixed length and the XOR let the microcontroller of the lamp check a frame in a few
+ * cycles; a receiver out of sync drops bytes up to the next {@link #START} whose checksum
+ * matches.
+ * <p>
+ * A color to apply later, so that several lamps switch together, is a frame of type
+ * {@link #TYPE_COLOR_AT}, {@link #TIMED_LENGTH} bytes long: the same first 7 bytes, then
+ * <pre>
+ * 7  DELAY     milliseconds to wait after receiving the frame, big endian on 2 bytes
+ * 9  CHECKSUM  XOR of the bytes 1 to 8
+ * </pre>
+ * The delay is relative because the lamps do not share a clock with the phone, the sender
+ * subtracts the expected transit time, see {@link CommandWindow#sendColorAt(int, long)}.
+ * <p>
+ * The lamp acknowledges a frame with a frame of type {@link #TYPE_ACK} carrying the same
+ * sequence number and zero payload, see {@link CommandWindow}.
+ */
+public final class ColorFrame {
+
+    public static final int LENGTH = 8;
+    public static final byte START = (byte) 0xa5;
+    public static final byte TYPE_COLOR = 0x01;
+    public static final byte TYPE_ACK = 0x02;
+    public static final byte TYPE_COLOR_AT = 0x03;
+    public static final int TIMED_LENGTH = 10;
+    /**
+     * Longest delay of a {@link #TYPE_COLOR_AT} frame in milliseconds
+     */
+    public static final int MAX_DELAY = 0xffff;
+
+    static final int TYPE = 1;
+    static final int SEQUENCE = 2;
+    static final int RED = 3;
+    static final int ALPHA = 6;
+    static final int CHECKSUM = 7;
+    static final int DELAY = 7;
+
+    private ColorFrame() {
+    }
+
+    /**
+     * @return the XOR of the bytes between the start and the checksum of the frame at off
+     */
+    public static byte checksum(byte[] frame, int off) {
+        return checksum(frame, off, LENGTH);
+    }
+
+    /**
+     * @param length length of the frame, the checksum is its last byte
+     */
+    public static byte checksum(byte[] frame, int off, int length) {
+        int x = 0;
+        for (int i = TYPE; i < length - 1; i++) {
+            x ^= frame[off + i];
+        }
+        return (byte) x;
+    }
+
+    /**
+     * @return true if a complete color frame with a valid checksum starts at off
+     */
+    public static boolean isValid(byte[] frame, int off, int len) {
+        return len >= LENGTH && frame[off] == START && frame[off + TYPE] == TYPE_COLOR
+                && frame[off + CHECKSUM] == checksum(frame, off);
+    }
+
+    /**
+     * @return true if a complete timed color frame with a valid checksum starts at off
+     */
+    public static boolean isValidTimed(byte[] frame, int off, int len) {
+        return len >= TIMED_LENGTH && frame[off] == START && frame[off + TYPE] == TYPE_COLOR_AT
+                && frame[off + TIMED_LENGTH - 1] == checksum(frame, off, TIMED_LENGTH);
+    }
+
+    /**
+     * @return the delay of a timed color frame in milliseconds
+     */
+    public static int getDelay(byte[] frame, int off) {
+        return (frame[off + DELAY] & 0xff) << 8 | frame[off + DELAY + 1] & 0xff;
+    }
+
+    /**
+     * Change the delay of a timed color frame and its checksum, e.g. before writing it again.
+     *
+     * @param delayMillis clamped to 0..{@link #MAX_DELAY}
+     */
+    public static void setDelay(byte[] frame, int off, long delayMillis) {
+        int delay = (int) Math.max(0, Math.min(MAX_DELAY, delayMillis));
+        frame[off + DELAY] = (byte) (delay >> 8);
+        frame[off + DELAY + 1] = (byte) delay;
+        frame[off + TIMED_LENGTH - 1] = checksum(frame, off, TIMED_LENGTH);
+    }
+
+    /**
+     * @return true if a complete acknowledgement with a valid checksum starts at off
+     */
+    public static boolean isAck(byte[] frame, int off, int len) {
+        return len >= LENGTH && frame[off] == START && frame[off + TYPE] == TYPE_ACK
+                && frame[off + CHECKSUM] == checksum(frame, off);
+    }
+
+    /**
+     * Write the acknowledgement of a sequence number, as the lamp does.
+     */
+    public static void encodeAck(byte[] frame, int off, int sequence) {
+        frame[off] = START;
+        frame[off + TYPE] = TYPE_ACK;
+        frame[off + SEQUENCE] = (byte) sequence;
+        for (int i = RED; i < CHECKSUM; i++) {
+            frame[off + i] = 0;
+        }
+        frame[off + CHECKSUM] = checksum(frame, off);
+    }
+
+    public static int getSequence(byte[] frame, int off) {
+        return frame[off + SEQUENCE] & 0xff;
+    }
+
+    /**
+     * @return the color as ARGB like android.graphics.Color
+     */
+    public static int getColor(byte[] frame, int off) {
+        return (frame[off + ALPHA] & 0xff) << 24 | (frame[off + RED] & 0xff) << 16
+                | (frame[off + RED + 1] & 0xff) << 8 | frame[off + RED + 2] & 0xff;
+    }
+}
@@ -0,0 +1,115 @@
+package com.bol.ejoy.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time goes between a color picked and the lamp showing it.
+ * <p>
+ * Every color sent through a {@link CommandWindow} is stamped at each stage and the time spent
+ * in each stage, in nanoseconds, goes to its own histogram of a {@link Metrics} registry:
+ * <pre>
+ * queue_nanos  picked by the user -> taken by the send thread (rate limit, coalescing)
+ * write_nanos  taken              -> written to the socket (window full, encoding, socket buffer)
+ * ack_nanos    written            -> acknowledged by the lamp, which applies the color first
+ * total_nanos  picked             -> acknowledged
+ * </pre>
+ * The histograms keep the percentiles within 1/64 of the latencies up to a minute, they are
+ * recorded while the registry is enabled and dumped with its other metrics. Register it as the
+ * listener of the window and call {@link #onSent(CommandFuture, long, long)} once the window
+ * took the color. The acknowledgement may come first, both orders are handled.
+ */
+public class ColorLatency implements CommandWindow.Listener {
+
+    private static final long HIGHEST = TimeUnit.MINUTES.toNanos(1);
+    private static final int PRECISION_BITS = 6;
+    private static final int SEQUENCES = 256;
+
+    private final Metrics.Histogram mQueue;
+    private final Metrics.Histogram mWrite;
+    private final Metrics.Histogram mAck;
+    private final Metrics.Histogram mTotal;
+    // pick time of the commands waiting for their acknowledgement, by sequence number
+    private final CommandFuture[] mWaiting = new CommandFuture[SEQUENCES];
+    private final long[] mPickedAt = new long[SEQUENCES];
+
+    /**
+     * @param metrics the registry of the histograms
+     * @param prefix  prepended to the names of the stages, e.g. "latency."
+     */
+    public ColorLatency(Metrics metrics, String prefix) {
+        mQueue = histogram(metrics, prefix + "queue_nanos");
+        mWrite = histogram(metrics, prefix + "write_nanos");
+        mAck = histogram(metrics, prefix + "ack_nanos");
+        mTotal = histogram(metrics, prefix + "total_nanos");
+    }
+
+    private static Metrics.Histogram histogram(Metrics metrics, String name) {
+        return metrics.histogram(name, PRECISION_BITS, HIGHEST);
+    }
+
+    /**
+     * Record the stages up to the write.
+     *
+     * @param future     returned by the window for the color
+     * @param pickedAt   System.nanoTime() when the user picked the color
+     * @param dequeuedAt System.nanoTime() when the send thread took it
+     */
+    public synchronized void onSent(CommandFuture future, long pickedAt, long dequeuedAt) {
+        long writtenAt = future.getWrittenAt();
+        if (writtenAt == 0)
+            return; // the write failed
+        mQueue.record(dequeuedAt - pickedAt);
+        mWrite.record(writtenAt - dequeuedAt);
+        if (future.isDone()) {
+            finish(future, pickedAt);
+        } else {
+            int sequence = future.getSequence();
+            mWaiting[sequence] = future;
+            mPickedAt[sequence] = pickedAt;
+        }
+    }
+
+    @Override
+    public synchronized void onAcknowledged(CommandFuture future) {
+        int sequence = future.getSequence();
+        // not there yet if the acknowledgement beat onSent(), which then finishes it
+        if (mWaiting[sequence] == future) {
+            mWaiting[sequence] = null;
+            finish(future, mPickedAt[sequence]);
+        }
+    }
+
+    private void finish(CommandFuture future, long pickedAt) {
+        long acknowledgedAt = future.getAcknowledgedAt();
+        if (acknowledgedAt == 0)
+            return; // failed
+        mAck.record(acknowledgedAt - future.getWrittenAt());
+        mTotal.record(acknowledgedAt - pickedAt);
+    }
+
+    public Metrics.Histogram getQueue() {
+        return mQueue;
+    }
+
+    public Metrics.Histogram getWrite() {
+        return mWrite;
+    }
+
+    public Metrics.Histogram getAck() {
+        return mAck;
+    }
+
+    public Metrics.Histogram getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Start the measurements over
+     */
+    public synchronized void reset() {
+        mQueue.reset();
+        mWrite.reset();
+        mAck.reset();
+        mTotal.reset();
+    }
+}
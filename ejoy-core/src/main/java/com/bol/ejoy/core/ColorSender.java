@@ -0,0 +1,213 @@
+package com.bol.ejoy.core;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Outbound channel for the lamp color where the latest value wins.
+ * <p>
+ * {@link #setColor(int)} only replaces the pending color and never blocks, so it can be called
+ * for every move of the color picker. A send loop, on a pool such as {@link IoScheduler#LINK}
+ * or on a thread of its own, sends the pending color at most {@code maxRate} times per second;
+ * the colors replaced before it got to them are never sent. The link therefore carries a
+ * bounded number of commands and the lamp is at most one interval behind the finger.
+ */
+public class ColorSender {
+
+    /**
+     * Writes a color to the lamp, called by the send loop only.
+     */
+    public interface Sink {
+        void sendColor(int color) throws IOException;
+    }
+
+    // set next to the 32 bits of the color while a color waits to be sent
+    private static final long PENDING = 1L << 32;
+    private static final long NONE = 0;
+
+    private final Sink mSink;
+    private final AtomicLong mPending = new AtomicLong(NONE);
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    // System.nanoTime() of the last setColor()
+    private volatile long mPickedAt;
+    private volatile long mIntervalNanos;
+    // null to send on a thread of the sender
+    private final Executor mExecutor;
+    private volatile SendLoop mSendLoop;
+
+    /**
+     * @param sink    writes the colors
+     * @param maxRate maximum number of colors sent per second
+     */
+    public ColorSender(Sink sink, int maxRate) {
+        this(sink, maxRate, null);
+    }
+
+    /**
+     * @param sink     writes the colors
+     * @param maxRate  maximum number of colors sent per second
+     * @param executor runs the send loop, which holds one of its threads from {@link #start()}
+     *                 to {@link #stop()}; null for a thread of the sender
+     */
+    public ColorSender(Sink sink, int maxRate, Executor executor) {
+        mSink = sink;
+        mExecutor = executor;
+        setMaxRate(maxRate);
+    }
+
+    /**
+     * @param maxRate maximum number of colors sent per second
+     */
+    public void setMaxRate(int maxRate) {
+        if (maxRate < 1)
+            throw new IllegalArgumentException("maxRate must be positive: " + maxRate);
+        mIntervalNanos = TimeUnit.SECONDS.toNanos(1) / maxRate;
+    }
+
+    /**
+     * Make the color the next one to send, replacing a color not sent yet.
+     */
+    public void setColor(int color) {
+        mPickedAt = System.nanoTime();
+        long previous = mPending.getAndSet(PENDING | color & 0xffffffffL);
+        if (previous != NONE) {
+            mCoalesced.incrementAndGet();
+        }
+        SendLoop loop = mSendLoop;
+        if (loop != null) {
+            loop.wake();
+        }
+    }
+
+    /**
+     * Start the send loop if it is not running yet
+     */
+    public synchronized void start() {
+        if (mSendLoop == null) {
+            mSendLoop = new SendLoop();
+            if (mExecutor != null) {
+                mExecutor.execute(mSendLoop);
+            } else {
+                Thread thread = new Thread(mSendLoop, "ColorSendThread");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Stop the send loop, a pending color is dropped: the next start does not send a color
+     * picked for the previous link. Never waits for the loop, a color being written goes on.
+     */
+    public synchronized void stop() {
+        if (mSendLoop != null) {
+            mSendLoop.cancel();
+            mSendLoop = null;
+        }
+        mPending.set(NONE);
+    }
+
+    /**
+     * Time at which the color being sent was picked, for the latency measurements. Only
+     * meaningful in {@link Sink#sendColor(int)}; a color picked while the sink is called moves
+     * it forward a little.
+     *
+     * @return the System.nanoTime() of the latest {@link #setColor(int)}
+     */
+    public long getPickedAt() {
+        return mPickedAt;
+    }
+
+    /**
+     * @return the number of colors written to the sink
+     */
+    public long getSentCount() {
+        return mSent.get();
+    }
+
+    /**
+     * @return the number of colors replaced before being sent
+     */
+    public long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    /**
+     * @return the number of colors the sink failed to write
+     */
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    /**
+     * Loop sending the pending color, no more often than the interval
+     */
+    private class SendLoop implements Runnable {
+
+        private volatile boolean mRunning = true;
+        private volatile boolean mWaiting;
+        // the thread running the loop, null before and after
+        private volatile Thread mThread;
+
+        @Override
+        public void run() {
+            mThread = Thread.currentThread();
+            try {
+                loop();
+            } finally {
+                mThread = null;
+            }
+        }
+
+        private void loop() {
+            long next = System.nanoTime();
+            while (mRunning) {
+                if (mPending.get() == NONE) {
+                    // announce the park before checking again, setColor() unparks only waiting loops
+                    mWaiting = true;
+                    if (mPending.get() == NONE && mRunning) {
+                        LockSupport.park(this);
+                    }
+                    mWaiting = false;
+                    continue;
+                }
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    // newer colors replace the pending one meanwhile
+                    LockSupport.parkNanos(this, wait);
+                    continue;
+                }
+                long pending = mPending.getAndSet(NONE);
+                if (pending == NONE)
+                    continue;
+                try {
+                    mSink.sendColor((int) pending);
+                    mSent.incrementAndGet();
+                } catch (IOException e) {
+                    mFailed.incrementAndGet();
+                }
+                next = System.nanoTime() + mIntervalNanos;
+            }
+        }
+
+        void wake() {
+            Thread thread = mThread;
+            if (mWaiting && thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void cancel() {
+            mRunning = false;
+            Thread thread = mThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.bol.ejoy.core;
+
+/**
+ * Encodes the commands sent to the lamp into a buffer reused from one command to the next:
+ * text messages and binary {@link ColorFrame color frames}.
+ * <p>
+ * Text is encoded as UTF-8 by hand rather than with String.getBytes(), which depends on the
+ * platform charset and allocates a new array for every command. An instance is not thread
+ * safe, the bytes are valid until the next call.
+ */
+public class CommandEncoder {
+
+    /**
+     * End of text, terminates the messages of {@link #encodeMessage(CharSequence)}
+     */
+    public static final byte EOT = 3;
+
+    private byte[] mBuffer;
+    private int mLength;
+    private int mSequence;
+
+    public CommandEncoder() {
+        this(64);
+    }
+
+    /**
+     * @param capacity initial size of the buffer, it grows for longer commands
+     */
+    public CommandEncoder(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * Encode a message followed by {@link #EOT}.
+     *
+     * @return the number of bytes encoded
+     */
+    public int encodeMessage(CharSequence message) {
+        encodeText(message);
+        ensureCapacity(mLength + 1);
+        mBuffer[mLength++] = EOT;
+        return mLength;
+    }
+
+    /**
+     * Encode the text as it is, without terminator.
+     *
+     * @return the number of bytes encoded
+     */
+    public int encodeText(CharSequence text) {
+        int n = text.length();
+        // worst case of 3 bytes per char, surrogate pairs take 4 bytes for 2 chars
+        ensureCapacity(3 * n);
+        byte[] b = mBuffer;
+        int p = 0;
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                b[p++] = (byte) c;
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xc0 | c >> 6);
+                b[p++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                b[p++] = (byte) (0xf0 | cp >> 18);
+                b[p++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                b[p++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                b[p++] = (byte) (0x80 | cp & 0x3f);
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // unpaired surrogate, same replacement as String.getBytes()
+                b[p++] = '?';
+            } else {
+                b[p++] = (byte) (0xe0 | c >> 12);
+                b[p++] = (byte) (0x80 | c >> 6 & 0x3f);
+                b[p++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        mLength = p;
+        return p;
+    }
+
+    /**
+     * Encode a color as a binary {@link ColorFrame} with the next sequence number.
+     *
+     * @param color ARGB color like android.graphics.Color, alpha is the brightness
+     * @return the number of bytes encoded, always {@link ColorFrame#LENGTH}
+     */
+    public int encodeColor(int color) {
+        ensureCapacity(ColorFrame.LENGTH);
+        byte[] b = mBuffer;
+        b[0] = ColorFrame.START;
+        b[ColorFrame.TYPE] = ColorFrame.TYPE_COLOR;
+        b[ColorFrame.SEQUENCE] = (byte) mSequence;
+        b[ColorFrame.RED] = (byte) (color >> 16);
+        b[ColorFrame.RED + 1] = (byte) (color >> 8);
+        b[ColorFrame.RED + 2] = (byte) color;
+        b[ColorFrame.ALPHA] = (byte) (color >>> 24);
+        b[ColorFrame.CHECKSUM] = ColorFrame.checksum(b, 0);
+        mSequence = mSequence + 1 & 0xff;
+        mLength = ColorFrame.LENGTH;
+        return ColorFrame.LENGTH;
+    }
+
+    /**
+     * Encode a color to apply after a delay as a {@link ColorFrame#TYPE_COLOR_AT} frame with the
+     * next sequence number.
+     *
+     * @param color       ARGB color, alpha is the brightness
+     * @param delayMillis time the lamp waits before applying it, clamped to
+     *                    {@link ColorFrame#MAX_DELAY}
+     * @return the number of bytes encoded, always {@link ColorFrame#TIMED_LENGTH}
+     */
+    public int encodeColorAt(int color, long delayMillis) {
+        ensureCapacity(ColorFrame.TIMED_LENGTH);
+        encodeColor(color);
+        mBuffer[ColorFrame.TYPE] = ColorFrame.TYPE_COLOR_AT;
+        ColorFrame.setDelay(mBuffer, 0, delayMillis);
+        mLength = ColorFrame.TIMED_LENGTH;
+        return ColorFrame.TIMED_LENGTH;
+    }
+
+    /**
+     * @return the sequence number of the next color frame
+     */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return the buffer holding the last command, only the first {@link #getLength()} bytes
+     * are valid
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (mBuffer.length < capacity) {
+            byte[] buffer = new byte[Math.max(capacity, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+    }
+}
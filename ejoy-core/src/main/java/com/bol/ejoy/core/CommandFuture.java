@@ -0,0 +1,114 @@
+package com.bol.ejoy.core;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of a command sent through a {@link CommandWindow}: done when the lamp acknowledged
+ * the command, failed when the write failed or every attempt timed out.
+ * <p>
+ * A command already written cannot be recalled, {@link #cancel(boolean)} always returns false.
+ */
+public class CommandFuture implements Future<Void> {
+
+    private final int mSequence;
+    private boolean mDone;
+    private IOException mCause;
+    // System.nanoTime() of the first write and of the acknowledgement, 0 until then
+    volatile long mWrittenAt;
+    volatile long mAcknowledgedAt;
+
+    CommandFuture(int sequence) {
+        mSequence = sequence;
+    }
+
+    /**
+     * @return the sequence number of the command frame, -1 for a command refused before it got
+     * one, see {@link CommandWindow#trySendColorAt(int, long)}
+     */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return the System.nanoTime() at which the first write of the frame returned, 0 if it
+     * was not written
+     */
+    public long getWrittenAt() {
+        return mWrittenAt;
+    }
+
+    /**
+     * @return the System.nanoTime() at which the acknowledgement was read, 0 if not acknowledged
+     */
+    public long getAcknowledgedAt() {
+        return mAcknowledgedAt;
+    }
+
+    synchronized void complete() {
+        if (!mDone) {
+            mDone = true;
+            notifyAll();
+        }
+    }
+
+    synchronized void fail(IOException cause) {
+        if (!mDone) {
+            mDone = true;
+            mCause = cause;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * @return true if the lamp acknowledged the command
+     */
+    public synchronized boolean isAcknowledged() {
+        return mDone && mCause == null;
+    }
+
+    @Override
+    public synchronized Void get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized Void get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                throw new TimeoutException("command " + mSequence + " not acknowledged yet");
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (mCause != null)
+            throw new ExecutionException(mCause);
+        return null;
+    }
+}
@@ -0,0 +1,642 @@
+package com.bol.ejoy.core;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends {@link ColorFrame color commands} without waiting for the lamp between them.
+ * <p>
+ * Up to {@code window} commands can be in flight. The lamp answers every frame with an
+ * acknowledgement frame carrying the same sequence number, {@link #onReceived(byte[], int, int)}
+ * picks those out of the incoming data and completes the matching {@link CommandFuture}.
+ * A command not acknowledged within the timeout is written again with the same sequence number
+ * until it has been tried {@code maxAttempts} times, then its future fails. A color already
+ * followed by a newer command is not written again, it would undo the newer one: its future
+ * fails as superseded, unless it is a timed color still to apply. A sender only waits when the
+ * window is full, so a sequence of commands streams at the speed of the link instead of one
+ * round trip per command.
+ * <p>
+ * The round trip time of the commands acknowledged at their first attempt is averaged, it gives
+ * the transit time subtracted from the delay of the timed colors of
+ * {@link #sendColorAt(int, long)}.
+ * <p>
+ * The frames are prepared while the window is locked and written once it is unlocked, in the
+ * order they were prepared: a write blocked on the link never holds up the acknowledgements.
+ * A prepared frame is copied into a {@link Write} taken from a free list and put back once
+ * written, so once the window is warm a send allocates only its future. The retransmissions
+ * are written on the {@link IoScheduler#LINK} pool, a window stalled on its link never holds
+ * up the retransmissions of the others.
+ * The futures carry the time of the first write and of the acknowledgement, a {@link Listener}
+ * is told about every acknowledgement.
+ */
+public class CommandWindow {
+
+    /**
+     * Writes the frames, e.g. a {@link TransportLink}
+     */
+    public interface Sink {
+        void write(byte[] buffer, int off, int len) throws IOException;
+    }
+
+    /**
+     * Told about the acknowledgements on the thread reading the link, while the window is
+     * locked; it must return quickly and not call the window.
+     */
+    public interface Listener {
+        void onAcknowledged(CommandFuture future);
+    }
+
+    private static final int SEQUENCES = 256;
+    /**
+     * Largest window, half of the sequence numbers so an acknowledgement is never ambiguous
+     */
+    public static final int MAX_WINDOW = SEQUENCES / 2;
+
+    private final Sink mSink;
+    private final int mWindow;
+    private final long mTimeoutNanos;
+    private final int mMaxAttempts;
+    private final CommandEncoder mEncoder = new CommandEncoder(ColorFrame.TIMED_LENGTH);
+    // indexed by sequence number, the frames are kept for the retransmissions
+    private final Command[] mCommands = new Command[SEQUENCES];
+    private int mInFlight;
+    // number of commands sent, orders the commands
+    private long mSent;
+    private long mRetransmits;
+    private long mFailures;
+    private long mSuperseded;
+    // smoothed round trip time in nanoseconds, 0 until the first acknowledgement
+    private long mRtt;
+    private boolean mStarted;
+    private volatile Listener mListener;
+
+    // the frames are written in the order of their tickets, taken while the window is locked
+    private final Object mWriteLock = new Object();
+    private long mTickets;
+    private long mWritten; // guarded by mWriteLock
+    // writes done, reused for the next frames; guarded by this
+    private final ArrayDeque<Write> mFreeWrites = new ArrayDeque<>();
+    // runs mWriteRetransmissions
+    private final Executor mWriter = IoScheduler.getShared().getPool(IoScheduler.LINK);
+    // the retransmissions to write, in the order of their tickets; guarded by this
+    private final ArrayDeque<Write> mRetransmissions = new ArrayDeque<>();
+    private boolean mRetransmitting;
+    private final Runnable mWriteRetransmissions = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Write write;
+                synchronized (CommandWindow.this) {
+                    write = mRetransmissions.poll();
+                    if (write == null) {
+                        mRetransmitting = false;
+                        return;
+                    }
+                }
+                write(write);
+            }
+        }
+    };
+
+    // acknowledgement being assembled, used by the reading thread only
+    private final byte[] mAck = new byte[ColorFrame.LENGTH];
+    private int mAckLength;
+
+    /**
+     * @param sink          writes the frames
+     * @param window        maximum number of commands not acknowledged yet
+     * @param timeoutMillis time to wait for an acknowledgement before writing a command again
+     * @param maxAttempts   number of writes of a command before it fails
+     */
+    public CommandWindow(Sink sink, int window, long timeoutMillis, int maxAttempts) {
+        if (window < 1 || window > MAX_WINDOW)
+            throw new IllegalArgumentException("window must be in 1.." + MAX_WINDOW + ": " + window);
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+        mSink = sink;
+        mWindow = window;
+        mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        mMaxAttempts = maxAttempts;
+        for (int i = 0; i < SEQUENCES; i++) {
+            mCommands[i] = new Command();
+        }
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Start writing the commands again when they time out. The deadlines of all the windows
+     * are watched by one task of the {@link IoScheduler#LINK} pool, starting and stopping a
+     * window never starts a thread.
+     */
+    public void start() {
+        synchronized (this) {
+            if (mStarted)
+                return;
+            mStarted = true;
+        }
+        Retransmitter.get().add(this);
+    }
+
+    /**
+     * Stop the retransmissions, the commands in flight fail
+     */
+    public void stop() {
+        synchronized (this) {
+            mStarted = false;
+        }
+        Retransmitter.get().remove(this);
+        failAll(new IOException("command window stopped"));
+    }
+
+    /**
+     * Send a color, waiting only if the window is full.
+     *
+     * @param color ARGB color, alpha is the brightness
+     * @return completes when the lamp acknowledges the color
+     */
+    public CommandFuture sendColor(int color) throws InterruptedException {
+        return send(color, false, 0, true);
+    }
+
+    /**
+     * Send a color the lamp applies at a given time, waiting only if the window is full. The
+     * frame carries the time left minus half the round trip time, computed again for every
+     * write.
+     *
+     * @param color        ARGB color, alpha is the brightness
+     * @param applyAtNanos when the color must show, in the System.nanoTime() time base
+     * @return completes when the lamp acknowledges the color
+     */
+    public CommandFuture sendColorAt(int color, long applyAtNanos) throws InterruptedException {
+        return send(color, true, applyAtNanos, true);
+    }
+
+    /**
+     * Send a color the lamp applies at a given time, never waiting for the window: a lamp
+     * behind on its acknowledgements misses the color instead of holding up the sending thread.
+     *
+     * @param color        ARGB color, alpha is the brightness
+     * @param applyAtNanos when the color must show, in the System.nanoTime() time base
+     * @return completes when the lamp acknowledges the color, failed at once if the window is
+     * full
+     */
+    public CommandFuture trySendColorAt(int color, long applyAtNanos) {
+        try {
+            return send(color, true, applyAtNanos, false);
+        } catch (InterruptedException e) {
+            // never waits
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private CommandFuture send(int color, boolean timed, long applyAt, boolean block)
+            throws InterruptedException {
+        Command command;
+        CommandFuture future;
+        Write write;
+        synchronized (this) {
+            while (mInFlight >= mWindow) {
+                if (!block) {
+                    mFailures++;
+                    future = new CommandFuture(-1);
+                    future.fail(new IOException("command window full"));
+                    return future;
+                }
+                wait();
+            }
+            int sequence = mEncoder.getSequence();
+            command = mCommands[sequence];
+            if (command.mFuture != null) {
+                // still in flight after a whole turn of the sequence numbers, its
+                // acknowledgement could no longer be told from the new one
+                fail(command, new IOException("command " + sequence + " not acknowledged before "
+                        + "its sequence number was reused"));
+            }
+            int length = timed ? mEncoder.encodeColorAt(color, 0) : mEncoder.encodeColor(color);
+            System.arraycopy(mEncoder.getBuffer(), 0, command.mFrame, 0, length);
+            future = new CommandFuture(sequence);
+            command.mFuture = future;
+            command.mLength = length;
+            command.mTimed = timed;
+            command.mApplyAt = applyAt;
+            command.mOrder = ++mSent;
+            command.mAttempts = 1;
+            command.mSentAt = System.nanoTime();
+            command.mDeadline = command.mSentAt + mTimeoutNanos;
+            mInFlight++;
+            write = prepare(command, command.mSentAt);
+            if (mStarted) {
+                Retransmitter.get().wake(command.mDeadline);
+            }
+        }
+        if (write(write)) {
+            future.mWrittenAt = System.nanoTime();
+        }
+        return future;
+    }
+
+    /**
+     * Copy the frame of a command for a write once the window is unlocked, called while locked.
+     */
+    private Write prepare(Command command, long now) {
+        if (command.mTimed) {
+            long left = command.mApplyAt - now - mRtt / 2;
+            ColorFrame.setDelay(command.mFrame, 0, TimeUnit.NANOSECONDS.toMillis(left));
+        }
+        Write write = mFreeWrites.poll();
+        if (write == null) {
+            write = new Write();
+        }
+        write.set(command, mTickets++);
+        return write;
+    }
+
+    /**
+     * Write a frame after the frames prepared before it, called while the window is unlocked.
+     * The command fails if the write fails.
+     *
+     * @return true if the frame was written
+     */
+    private boolean write(Write write) {
+        IOException error = null;
+        boolean interrupted = false;
+        synchronized (mWriteLock) {
+            // the turn is always taken, or the writes after this one would wait forever
+            while (mWritten != write.mTicket) {
+                try {
+                    mWriteLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            try {
+                mSink.write(write.mFrame, 0, write.mLength);
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                mWritten++;
+                mWriteLock.notifyAll();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (error != null && write.mCommand.mFuture == write.mFuture) {
+                fail(write.mCommand, error);
+            }
+            write.set(null, 0);
+            mFreeWrites.push(write);
+        }
+        return error == null;
+    }
+
+    /**
+     * Take the acknowledgements out of data read from the lamp. The other bytes are moved
+     * down in place, so the rest of the buffer can go on to the sample decoder. Called by the
+     * thread reading the link only.
+     * <p>
+     * A start byte followed by anything but an acknowledgement is dropped alone and the bytes
+     * after it are scanned again. When the start byte came with an earlier read, the few bytes
+     * already taken for the acknowledgement are lost with it.
+     *
+     * @return the number of bytes left at off once the acknowledgements are removed
+     */
+    public int onReceived(byte[] buffer, int off, int len) {
+        int w = off;
+        int end = off + len;
+        // index of the start byte of the acknowledgement in this buffer, -1 if read before
+        int start = -1;
+        for (int i = off; i < end; i++) {
+            byte b = buffer[i];
+            if (mAckLength > 0) {
+                if (fitsAck(b)) {
+                    mAck[mAckLength++] = b;
+                    if (mAckLength == ColorFrame.LENGTH) {
+                        mAckLength = 0;
+                        acknowledge(ColorFrame.getSequence(mAck, 0));
+                    }
+                    continue;
+                }
+                // noise that looked like a start byte
+                mAckLength = 0;
+                if (start >= 0) {
+                    i = start;
+                    start = -1;
+                    continue;
+                }
+            }
+            if (b == ColorFrame.START) {
+                // the samples are ASCII, a start byte can only begin a binary frame
+                mAck[0] = b;
+                mAckLength = 1;
+                start = i;
+            } else {
+                buffer[w++] = b;
+            }
+        }
+        return w - off;
+    }
+
+    /**
+     * @return true if the byte can follow the ones of the acknowledgement being assembled
+     */
+    private boolean fitsAck(byte b) {
+        if (mAckLength == ColorFrame.TYPE)
+            return b == ColorFrame.TYPE_ACK;
+        if (mAckLength == ColorFrame.CHECKSUM) {
+            mAck[ColorFrame.CHECKSUM] = b;
+            return ColorFrame.isAck(mAck, 0, ColorFrame.LENGTH);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of commands not acknowledged yet
+     */
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * @return the number of frames written again after a timeout
+     */
+    public synchronized long getRetransmits() {
+        return mRetransmits;
+    }
+
+    /**
+     * @return the number of commands that failed
+     */
+    public synchronized long getFailures() {
+        return mFailures;
+    }
+
+    /**
+     * @return the number of colors not written again because a newer command followed them
+     */
+    public synchronized long getSuperseded() {
+        return mSuperseded;
+    }
+
+    /**
+     * @return the smoothed round trip time in nanoseconds, 0 before the first acknowledgement
+     */
+    public synchronized long getRttNanos() {
+        return mRtt;
+    }
+
+    /**
+     * Report the window in a metrics registry as gauges: the commands in flight, the
+     * retransmits, the failures, the superseded colors and the round trip time.
+     *
+     * @param prefix prepended to the metric names, e.g. "commands."
+     */
+    public void registerMetrics(Metrics metrics, String prefix) {
+        metrics.gauge(prefix + "in_flight", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getInFlight();
+            }
+        });
+        metrics.gauge(prefix + "retransmits", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getRetransmits();
+            }
+        });
+        metrics.gauge(prefix + "failures", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getFailures();
+            }
+        });
+        metrics.gauge(prefix + "superseded", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getSuperseded();
+            }
+        });
+        metrics.gauge(prefix + "rtt_nanos", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getRttNanos();
+            }
+        });
+    }
+
+    private synchronized void acknowledge(int sequence) {
+        Command command = mCommands[sequence];
+        CommandFuture future = command.mFuture;
+        if (future == null)
+            return; // late acknowledgement of a retransmitted command
+        long now = System.nanoTime();
+        if (command.mAttempts == 1) {
+            // only unambiguous samples, an acknowledgement after a retransmission may answer either write
+            long rtt = now - command.mSentAt;
+            mRtt = mRtt == 0 ? rtt : mRtt + (rtt - mRtt) / 8;
+        }
+        future.mAcknowledgedAt = now;
+        future.complete();
+        command.mFuture = null;
+        mInFlight--;
+        notifyAll();
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onAcknowledged(future);
+        }
+    }
+
+    private void fail(Command command, IOException cause) {
+        release(command, cause);
+        mFailures++;
+    }
+
+    private void release(Command command, IOException cause) {
+        command.mFuture.fail(cause);
+        command.mFuture = null;
+        mInFlight--;
+        notifyAll();
+    }
+
+    private synchronized void failAll(IOException cause) {
+        for (int i = 0; i < SEQUENCES; i++) {
+            if (mCommands[i].mFuture != null) {
+                fail(mCommands[i], cause);
+            }
+        }
+    }
+
+    /**
+     * Write the expired commands again or fail them, called by the {@link Retransmitter}. The
+     * frames are written by a task of the window, the retransmitter never waits for a link.
+     *
+     * @return the next deadline, Long.MAX_VALUE when nothing is in flight
+     */
+    private long retransmitExpired(long now) {
+        long next = Long.MAX_VALUE;
+        boolean submit = false;
+        synchronized (this) {
+            if (!mStarted || mInFlight == 0)
+                return next;
+            for (int i = 0; i < SEQUENCES; i++) {
+                Command command = mCommands[i];
+                if (command.mFuture == null)
+                    continue;
+                if (command.mDeadline - now <= 0) {
+                    if (command.mOrder != mSent
+                            && (!command.mTimed || command.mApplyAt - now <= 0)) {
+                        release(command, new IOException("command " + i
+                                + " superseded by a newer command"));
+                        mSuperseded++;
+                        continue;
+                    }
+                    if (command.mAttempts >= mMaxAttempts) {
+                        fail(command, new IOException("command " + i + " not acknowledged after "
+                                + command.mAttempts + " attempts"));
+                        continue;
+                    }
+                    command.mAttempts++;
+                    command.mDeadline = now + mTimeoutNanos;
+                    mRetransmits++;
+                    // the tickets grow with the loop, the queue stays in their order
+                    mRetransmissions.add(prepare(command, now));
+                }
+                if (next == Long.MAX_VALUE || command.mDeadline - next < 0) {
+                    next = command.mDeadline;
+                }
+            }
+            if (!mRetransmitting && !mRetransmissions.isEmpty()) {
+                mRetransmitting = true;
+                submit = true;
+            }
+        }
+        if (submit) {
+            mWriter.execute(mWriteRetransmissions);
+        }
+        return next;
+    }
+
+    /**
+     * A slot of the sequence space
+     */
+    private static class Command {
+        final byte[] mFrame = new byte[ColorFrame.TIMED_LENGTH];
+        CommandFuture mFuture; // null when the slot is free
+        int mLength;
+        boolean mTimed;
+        long mApplyAt;
+        long mOrder;
+        int mAttempts;
+        long mSentAt;
+        long mDeadline;
+    }
+
+    /**
+     * Copy of a frame waiting for its turn to be written
+     */
+    private static class Write {
+        final byte[] mFrame = new byte[ColorFrame.TIMED_LENGTH];
+        int mLength;
+        Command mCommand;
+        CommandFuture mFuture;
+        long mTicket;
+
+        /**
+         * Take a copy of the frame of a command, or forget it with null
+         */
+        void set(Command command, long ticket) {
+            mCommand = command;
+            mTicket = ticket;
+            if (command != null) {
+                mFuture = command.mFuture;
+                mLength = command.mLength;
+                System.arraycopy(command.mFrame, 0, mFrame, 0, mLength);
+            } else {
+                mFuture = null;
+            }
+        }
+    }
+
+    /**
+     * The task sleeping until the next deadline of the started windows, shared by all of them
+     * and holding one thread of the {@link IoScheduler#LINK} pool. A window is locked only to
+     * find its expired commands, never while another is, and their frames are written by the
+     * window.
+     */
+    private static class Retransmitter implements Runnable {
+
+        private static Retransmitter sInstance;
+
+        // guarded by this
+        private final List<CommandWindow> mWindows = new ArrayList<>();
+        private long mWakeAt = Long.MAX_VALUE;
+
+        static synchronized Retransmitter get() {
+            if (sInstance == null) {
+                Retransmitter retransmitter = new Retransmitter();
+                IoScheduler.getShared().getPool(IoScheduler.LINK).execute(retransmitter);
+                sInstance = retransmitter;
+            }
+            return sInstance;
+        }
+
+        synchronized void add(CommandWindow window) {
+            mWindows.add(window);
+            mWakeAt = System.nanoTime();
+            notifyAll();
+        }
+
+        synchronized void remove(CommandWindow window) {
+            mWindows.remove(window);
+        }
+
+        /**
+         * Make sure the thread is awake at a deadline.
+         */
+        synchronized void wake(long deadline) {
+            if (mWakeAt == Long.MAX_VALUE || deadline - mWakeAt < 0) {
+                mWakeAt = deadline;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<CommandWindow> windows = new ArrayList<>();
+            while (true) {
+                synchronized (this) {
+                    try {
+                        while (mWakeAt == Long.MAX_VALUE || mWakeAt - System.nanoTime() > 0) {
+                            if (mWakeAt == Long.MAX_VALUE) {
+                                wait();
+                            } else {
+                                TimeUnit.NANOSECONDS.timedWait(this, mWakeAt - System.nanoTime());
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    // a deadline given from now on wakes the thread again
+                    mWakeAt = Long.MAX_VALUE;
+                    windows.clear();
+                    windows.addAll(mWindows);
+                }
+                long now = System.nanoTime();
+                for (CommandWindow window : windows) {
+                    long next = window.retransmitExpired(now);
+                    if (next != Long.MAX_VALUE) {
+                        wake(next);
+                    }
+                }
+            }
+        }
+    }
+}
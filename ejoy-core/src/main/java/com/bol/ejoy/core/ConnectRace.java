@@ -0,0 +1,138 @@
+package com.bol.ejoy.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Connects several candidate {@link Transport transports} to the same device in parallel and
+ * keeps the first one that connects, the others are closed.
+ * <p>
+ * Used when there are several ways to open a link and no telling which one the device
+ * accepts: trying them one after the other costs the timeout of every failing way.
+ */
+public class ConnectRace {
+
+    private final Executor mExecutor;
+    private final Transport[] mCandidates;
+    private int mWinner = -1;
+    private int mFailed;
+    private IOException mLastError;
+    private boolean mCancelled;
+
+    public ConnectRace(Transport... candidates) {
+        this(null, candidates);
+    }
+
+    /**
+     * @param executor runs the connects, e.g. the {@link IoScheduler#CONNECT} pool; it must not
+     *                 make them wait for the thread running the race. Null for a thread per
+     *                 candidate.
+     */
+    public ConnectRace(Executor executor, Transport... candidates) {
+        if (candidates.length == 0)
+            throw new IllegalArgumentException("no candidate");
+        mExecutor = executor;
+        mCandidates = candidates;
+    }
+
+    /**
+     * Start every candidate and wait for the first connection.
+     *
+     * @return the index of the candidate connected, it is the only one left open
+     * @throws IOException if every candidate failed or the race was cancelled
+     */
+    public int run() throws IOException {
+        for (int i = 0; i < mCandidates.length; i++) {
+            Attempt attempt = new Attempt(i);
+            if (mExecutor != null) {
+                mExecutor.execute(attempt);
+            } else {
+                Thread thread = new Thread(attempt, "ConnectRace " + mCandidates[i].getName());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        synchronized (this) {
+            while (mWinner < 0 && mFailed < mCandidates.length && !mCancelled) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    cancel();
+                    throw new InterruptedIOException("connect interrupted");
+                }
+            }
+            if (mWinner >= 0)
+                return mWinner;
+            if (mCancelled)
+                throw new IOException("connect cancelled");
+            throw new IOException("no candidate connected", mLastError);
+        }
+    }
+
+    /**
+     * Stop the race and close every candidate, including a winner.
+     */
+    public void cancel() {
+        synchronized (this) {
+            mCancelled = true;
+            notifyAll();
+        }
+        for (int i = 0; i < mCandidates.length; i++) {
+            closeQuietly(mCandidates[i]);
+        }
+    }
+
+    private static void closeQuietly(Transport transport) {
+        try {
+            transport.close();
+        } catch (IOException e) {
+            // it lost anyway
+        }
+    }
+
+    /**
+     * Connect of one candidate
+     */
+    private class Attempt implements Runnable {
+
+        private final int mIndex;
+
+        Attempt(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void run() {
+            Transport transport = mCandidates[mIndex];
+            try {
+                transport.connect();
+            } catch (IOException e) {
+                synchronized (ConnectRace.this) {
+                    mFailed++;
+                    mLastError = e;
+                    ConnectRace.this.notifyAll();
+                }
+                return;
+            }
+            boolean won;
+            synchronized (ConnectRace.this) {
+                won = mWinner < 0 && !mCancelled;
+                if (won) {
+                    mWinner = mIndex;
+                    ConnectRace.this.notifyAll();
+                }
+            }
+            if (!won) {
+                closeQuietly(transport);
+                return;
+            }
+            // the others are still connecting, closing them makes them give up
+            for (int i = 0; i < mCandidates.length; i++) {
+                if (i != mIndex) {
+                    closeQuietly(mCandidates[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.bol.ejoy.core;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of a connection kept in an atomic integer, so reading it never takes a lock.
+ * <p>
+ * Only the transitions of the table below are applied, {@link #moveTo(int)} refuses the others.
+ * Moving to the current state is accepted and not reported. Listeners are called on the thread
+ * making the transition, after it happened; they must return quickly.
+ * <pre>
+ * NONE       -> LISTEN, CONNECTING
+ * LISTEN     -> NONE, CONNECTING, CONNECTED
+ * CONNECTING -> NONE, LISTEN, CONNECTED
+ * CONNECTED  -> NONE, LISTEN, CONNECTING
+ * </pre>
+ */
+public class ConnectionState {
+
+    public static final int NONE = 0; // doing nothing
+    public static final int LISTEN = 1; // listening for incoming connections
+    public static final int CONNECTING = 2; // initiating an outgoing connection
+    public static final int CONNECTED = 3; // connected to a remote device
+
+    /**
+     * Told about every transition
+     */
+    public interface Listener {
+        void onStateChanged(int from, int to);
+    }
+
+    // ALLOWED[from] has bit to set when the transition is allowed
+    private static final int[] ALLOWED = {
+            1 << LISTEN | 1 << CONNECTING,
+            1 << NONE | 1 << CONNECTING | 1 << CONNECTED,
+            1 << NONE | 1 << LISTEN | 1 << CONNECTED,
+            1 << NONE | 1 << LISTEN | 1 << CONNECTING,
+    };
+
+    private final AtomicInteger mState;
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    public ConnectionState() {
+        this(NONE);
+    }
+
+    public ConnectionState(int initial) {
+        checkState(initial);
+        mState = new AtomicInteger(initial);
+    }
+
+    public int get() {
+        return mState.get();
+    }
+
+    /**
+     * @return true if the transition is in the table
+     */
+    public static boolean isAllowed(int from, int to) {
+        checkState(from);
+        checkState(to);
+        return from == to || (ALLOWED[from] & 1 << to) != 0;
+    }
+
+    /**
+     * Move to a state from whatever the current state is, if the transition is allowed.
+     *
+     * @return the previous state, or -1 if the transition was refused
+     */
+    public int moveTo(int to) {
+        while (true) {
+            int from = mState.get();
+            if (!isAllowed(from, to))
+                return -1;
+            if (from == to)
+                return from;
+            if (mState.compareAndSet(from, to)) {
+                notifyListeners(from, to);
+                return from;
+            }
+        }
+    }
+
+    /**
+     * Move to a state only from the expected one.
+     *
+     * @return false if the state was not {@code from} or the transition is not allowed
+     */
+    public boolean transition(int from, int to) {
+        if (!isAllowed(from, to))
+            return false;
+        if (from == to)
+            return mState.get() == from;
+        if (!mState.compareAndSet(from, to))
+            return false;
+        notifyListeners(from, to);
+        return true;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void notifyListeners(int from, int to) {
+        for (Listener listener : mListeners) {
+            listener.onStateChanged(from, to);
+        }
+    }
+
+    private static void checkState(int state) {
+        if (state < NONE || state > CONNECTED)
+            throw new IllegalArgumentException("unknown state: " + state);
+    }
+}
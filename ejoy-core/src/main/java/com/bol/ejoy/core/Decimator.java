@@ -0,0 +1,35 @@
+package com.bol.ejoy.core;
+
+/**
+ * Keeps one sample out of {@code factor}, dividing the sample rate.
+ * <p>
+ * It does not filter: put a low-pass below the new Nyquist frequency in front of it, e.g. a
+ * {@link Biquad#lowPass(int, double, double)}, or the higher frequencies fold back into the band.
+ */
+public class Decimator implements SampleFilter {
+
+    private final int mFactor;
+    private int mCount;
+
+    /**
+     * @param factor ratio of the input rate to the output rate
+     */
+    public Decimator(int factor) {
+        if (factor < 1)
+            throw new IllegalArgumentException("factor must be positive: " + factor);
+        mFactor = factor;
+    }
+
+    @Override
+    public boolean apply(int[] sample) {
+        if (++mCount < mFactor)
+            return false;
+        mCount = 0;
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        mCount = 0;
+    }
+}
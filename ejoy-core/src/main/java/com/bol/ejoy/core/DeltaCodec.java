@@ -0,0 +1,140 @@
+package com.bol.ejoy.core;
+
+/**
+ * Lossless compression of blocks of 12 bit samples, for the recordings and the exports.
+ * <p>
+ * Consecutive values of a channel are close, so every channel of a block is stored as its first
+ * value followed by the differences between neighbours. The differences are zigzag mapped to
+ * non negative numbers and bit packed with the width of the largest one:
+ * <pre>
+ *   byte  width of the differences in bits, 0 to {@link #MAX_WIDTH}
+ *   short first value
+ *   (count - 1) differences of width bits, most significant bit first, padded to a byte
+ * </pre>
+ * once per channel, one channel after the other. A quiet channel packs in a few bits per
+ * sample instead of 12, a flat one in 3 bytes. Decoding is a shift and a mask per value over a
+ * 64 bit accumulator, straight into the channel arrays of a {@link SampleBatch}.
+ */
+public class DeltaCodec {
+
+    /**
+     * Width of the zigzag mapped difference of two 12 bit values
+     */
+    public static final int MAX_WIDTH = 13;
+
+    private DeltaCodec() {
+    }
+
+    /**
+     * @return the largest size of a block, to size the output buffers
+     */
+    public static int maxEncodedSize(int channels, int count) {
+        return channels * (3 + ((count - 1) * MAX_WIDTH + 7) / 8);
+    }
+
+    /**
+     * Encode the samples of a batch.
+     *
+     * @return the number of bytes written
+     */
+    public static int encode(SampleBatch batch, byte[] out, int off) {
+        int p = off;
+        for (int c = 0; c < batch.channelCount(); c++) {
+            p += encodeChannel(batch.channel(c), batch.size(), out, p);
+        }
+        return p - off;
+    }
+
+    /**
+     * Encode a channel of a block, only the low 12 bits of the values are kept.
+     *
+     * @return the number of bytes written
+     */
+    public static int encodeChannel(int[] values, int count, byte[] out, int off) {
+        if (count == 0)
+            return 0;
+        int max = 0;
+        int previous = values[0] & 0xfff;
+        for (int i = 1; i < count; i++) {
+            int value = values[i] & 0xfff;
+            max |= zigzag(value - previous);
+            previous = value;
+        }
+        int width = 32 - Integer.numberOfLeadingZeros(max);
+        int p = off;
+        out[p++] = (byte) width;
+        out[p++] = (byte) (values[0] >> 8 & 0xf);
+        out[p++] = (byte) values[0];
+        if (width == 0)
+            return p - off;
+        long bits = 0;
+        int pending = 0;
+        previous = values[0] & 0xfff;
+        for (int i = 1; i < count; i++) {
+            int value = values[i] & 0xfff;
+            // the bits shifted out at the top were written already
+            bits = bits << width | zigzag(value - previous);
+            pending += width;
+            previous = value;
+            while (pending >= 8) {
+                pending -= 8;
+                out[p++] = (byte) (bits >>> pending);
+            }
+        }
+        if (pending > 0) {
+            out[p++] = (byte) (bits << (8 - pending));
+        }
+        return p - off;
+    }
+
+    /**
+     * Decode a block into a batch, which is cleared first and must hold count samples.
+     *
+     * @return the number of bytes read
+     */
+    public static int decode(byte[] in, int off, int count, SampleBatch batch) {
+        batch.clear();
+        int p = off;
+        for (int c = 0; c < batch.channelCount(); c++) {
+            p += decodeChannel(in, p, count, batch.channel(c));
+        }
+        batch.setSize(count);
+        return p - off;
+    }
+
+    /**
+     * Decode a channel of a block.
+     *
+     * @param out receives count values
+     * @return the number of bytes read
+     */
+    public static int decodeChannel(byte[] in, int off, int count, int[] out) {
+        if (count == 0)
+            return 0;
+        int p = off;
+        int width = in[p++];
+        if (width < 0 || width > MAX_WIDTH)
+            throw new IllegalArgumentException("corrupted block, width " + width + " at " + off);
+        int value = (in[p] & 0xf) << 8 | in[p + 1] & 0xff;
+        p += 2;
+        out[0] = value;
+        int mask = (1 << width) - 1;
+        long bits = 0;
+        int available = 0;
+        for (int i = 1; i < count; i++) {
+            while (available < width) {
+                bits = bits << 8 | in[p++] & 0xff;
+                available += 8;
+            }
+            available -= width;
+            int delta = (int) (bits >>> available) & mask;
+            value += delta >>> 1 ^ -(delta & 1);
+            out[i] = value;
+        }
+        return p - off;
+    }
+
+    private static int zigzag(int delta) {
+        return delta << 1 ^ delta >> 31;
+    }
+}
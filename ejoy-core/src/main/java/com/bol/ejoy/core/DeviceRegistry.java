@@ -0,0 +1,188 @@
+package com.bol.ejoy.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Devices seen by a discovery, keyed by address.
+ * <p>
+ * {@link #report(String, String, int, long)} is called for every sighting. Only a new device,
+ * a new name or an RSSI change of at least the threshold is a change; the changes pile up until
+ * {@link #flush()} hands them to the listener as one batch of added, updated and removed
+ * devices. A list shown on screen can then be patched a few times per second instead of being
+ * rebuilt on every sighting.
+ * <p>
+ * Not thread safe, it belongs to the thread receiving the sightings.
+ */
+public class DeviceRegistry {
+
+    /**
+     * RSSI of a sighting that did not report one
+     */
+    public static final int NO_RSSI = Integer.MIN_VALUE;
+
+    /**
+     * Receives the changes, the lists are not reused
+     */
+    public interface Listener {
+        void onDevicesChanged(List<Device> added, List<Device> updated, List<Device> removed);
+    }
+
+    /**
+     * A device seen by the discovery
+     */
+    public static class Device {
+        private final String mAddress;
+        private String mName;
+        private int mRssi;
+        private long mFirstSeen;
+        private long mLastSeen;
+
+        Device(String address) {
+            mAddress = address;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * @return the name, null if the device did not tell it yet
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return the last signal strength in dBm, {@link #NO_RSSI} if unknown
+         */
+        public int getRssi() {
+            return mRssi;
+        }
+
+        public long getFirstSeen() {
+            return mFirstSeen;
+        }
+
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+    }
+
+    private final HashMap<String, Device> mDevices = new HashMap<>();
+    private final LinkedHashSet<Device> mAdded = new LinkedHashSet<>();
+    private final LinkedHashSet<Device> mUpdated = new LinkedHashSet<>();
+    private final ArrayList<Device> mRemoved = new ArrayList<>();
+    private final int mRssiThreshold;
+    private Listener mListener;
+
+    /**
+     * @param rssiThreshold smallest RSSI change in dB reported as an update
+     */
+    public DeviceRegistry(int rssiThreshold) {
+        mRssiThreshold = rssiThreshold;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Record a sighting.
+     *
+     * @param name the name, null if unknown
+     * @param rssi signal strength in dBm or {@link #NO_RSSI}
+     * @param now  time of the sighting in milliseconds
+     * @return true if it changed the registry
+     */
+    public boolean report(String address, String name, int rssi, long now) {
+        Device device = mDevices.get(address);
+        if (device == null) {
+            device = new Device(address);
+            device.mName = name;
+            device.mRssi = rssi;
+            device.mFirstSeen = now;
+            device.mLastSeen = now;
+            mDevices.put(address, device);
+            mAdded.add(device);
+            return true;
+        }
+        device.mLastSeen = now;
+        boolean changed = false;
+        if (name != null && !name.equals(device.mName)) {
+            device.mName = name;
+            changed = true;
+        }
+        if (rssi != NO_RSSI && (device.mRssi == NO_RSSI
+                || Math.abs(rssi - device.mRssi) >= mRssiThreshold)) {
+            device.mRssi = rssi;
+            changed = true;
+        }
+        if (changed && !mAdded.contains(device)) {
+            mUpdated.add(device);
+        }
+        return changed;
+    }
+
+    /**
+     * Remove the devices not seen since a time.
+     *
+     * @return the number of devices removed
+     */
+    public int expire(long olderThan) {
+        int removed = 0;
+        for (Iterator<Device> i = mDevices.values().iterator(); i.hasNext(); ) {
+            Device device = i.next();
+            if (device.mLastSeen - olderThan < 0) {
+                i.remove();
+                mUpdated.remove(device);
+                // a device added and removed within a batch is never reported
+                if (!mAdded.remove(device)) {
+                    mRemoved.add(device);
+                }
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return true if changes wait for {@link #flush()}
+     */
+    public boolean hasChanges() {
+        return !mAdded.isEmpty() || !mUpdated.isEmpty() || !mRemoved.isEmpty();
+    }
+
+    /**
+     * Hand the pending changes to the listener, nothing happens without changes.
+     */
+    public void flush() {
+        if (!hasChanges())
+            return;
+        List<Device> added = new ArrayList<>(mAdded);
+        List<Device> updated = new ArrayList<>(mUpdated);
+        List<Device> removed = new ArrayList<>(mRemoved);
+        mAdded.clear();
+        mUpdated.clear();
+        mRemoved.clear();
+        if (mListener != null) {
+            mListener.onDevicesChanged(Collections.unmodifiableList(added),
+                    Collections.unmodifiableList(updated), Collections.unmodifiableList(removed));
+        }
+    }
+
+    /**
+     * @return the device with that address, null if not known
+     */
+    public Device get(String address) {
+        return mDevices.get(address);
+    }
+
+    public int size() {
+        return mDevices.size();
+    }
+}
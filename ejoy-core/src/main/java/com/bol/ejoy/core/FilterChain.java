@@ -0,0 +1,29 @@
+package com.bol.ejoy.core;
+
+/**
+ * Filters applied one after the other, a sample dropped by one does not reach the next ones.
+ */
+public class FilterChain implements SampleFilter {
+
+    private final SampleFilter[] mFilters;
+
+    public FilterChain(SampleFilter... filters) {
+        mFilters = filters.clone();
+    }
+
+    @Override
+    public boolean apply(int[] sample) {
+        for (int i = 0; i < mFilters.length; i++) {
+            if (!mFilters[i].apply(sample))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < mFilters.length; i++) {
+            mFilters[i].reset();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.bol.ejoy.core;
+
+/**
+ * Streaming decoder for the ZECG frames sent by the board.
+ * <p>
+ * A frame is a run of 4 character fields terminated by {@link #FRAME_END}. The first three
+ * characters of each of the first {@link #CHANNELS} fields are a 12 bit channel value in hex.
+ * The fields after them carry the battery and the status, they are only parsed on demand by
+ * {@link #telemetry(int[])}.
+ * <p>
+ * Raw bytes are copied into a ring buffer with {@link #write(byte[], int, int)} and frames are
+ * pulled out with {@link #next(int[])} or {@link #drainTo(SampleBatch)}. The scan for the
+ * terminator resumes where the previous call stopped, so once the decoder is running it does
+ * not allocate anything per frame.
+ * <p>
+ * The decoder is not thread safe, it is meant to be owned by the thread reading the data.
+ */
+public class FrameDecoder {
+
+    public static final int CHANNELS = 8;
+    public static final byte FRAME_END = '&';
+
+    private static final int FIELD_WIDTH = 4;
+    private static final int HEX_DIGITS = 3;
+    // the last field only needs its hex digits, the separator may be the terminator itself
+    private static final int MIN_FRAME_LENGTH = (CHANNELS - 1) * FIELD_WIDTH + HEX_DIGITS;
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    // value of every ASCII hex digit, -1 for anything else
+    private static final byte[] HEX_VALUES = new byte[256];
+
+    static {
+        for (int i = 0; i < HEX_VALUES.length; i++) {
+            HEX_VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final byte[] mRing;
+    private final int mMask;
+    private final int[] mScratch = new int[CHANNELS];
+
+    // absolute positions in the stream, the ring index is position & mMask
+    private long mHead; // first byte of the frame being assembled
+    private long mScan; // next byte to check for FRAME_END
+    private long mTail; // next free slot
+
+    private long mFrameStart;
+    private int mFrameLength;
+    private long mFrames;
+    private long mDropped;
+
+    public FrameDecoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity size of the ring buffer in bytes, rounded up to a power of two. It must be
+     *                 larger than the longest frame the board sends.
+     */
+    public FrameDecoder(int capacity) {
+        if (capacity < MIN_FRAME_LENGTH + 1)
+            throw new IllegalArgumentException("capacity too small: " + capacity);
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        mRing = new byte[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Copy raw bytes into the ring buffer. If the buffer is full of a frame that never got its
+     * terminator that partial frame is discarded to make room.
+     *
+     * @return the number of bytes accepted, when it is less than len the frames already buffered
+     * must be read with {@link #next(int[])} before writing the rest
+     */
+    public int write(byte[] src, int off, int len) {
+        int free = mRing.length - (int) (mTail - mHead);
+        if (free == 0 && mScan == mTail) {
+            // nothing decodable is buffered, the frame in progress is garbage
+            mDropped++;
+            mHead = mTail;
+            free = mRing.length;
+        }
+        int count = Math.min(free, len);
+        int start = (int) mTail & mMask;
+        int first = Math.min(count, mRing.length - start);
+        System.arraycopy(src, off, mRing, start, first);
+        if (first < count) {
+            System.arraycopy(src, off + first, mRing, 0, count - first);
+        }
+        mTail += count;
+        return count;
+    }
+
+    /**
+     * Decode the next complete frame. Frames that are too short or carry something that is not a
+     * hex digit in a channel field are skipped and counted by {@link #getDroppedFrames()}.
+     *
+     * @param out array of at least {@link #CHANNELS} elements receiving the channel values
+     * @return true if a frame was decoded into out, false if more data is needed
+     */
+    public boolean next(int[] out) {
+        while (mScan < mTail) {
+            if (mRing[(int) mScan & mMask] != FRAME_END) {
+                mScan++;
+                continue;
+            }
+            long start = mHead;
+            int length = (int) (mScan - start);
+            mScan++;
+            mHead = mScan;
+            if (length >= MIN_FRAME_LENGTH && decodeFields(start, out)) {
+                mFrameStart = start;
+                mFrameLength = length + 1;
+                mFrames++;
+                return true;
+            }
+            mDropped++;
+        }
+        return false;
+    }
+
+    /**
+     * Decode buffered frames into the batch until it is full or no complete frame is left.
+     *
+     * @return the number of frames added to the batch
+     */
+    public int drainTo(SampleBatch batch) {
+        int count = 0;
+        while (!batch.isFull() && next(mScratch)) {
+            batch.add(mScratch);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Copy the raw bytes, terminator included, of the frame last returned by
+     * {@link #next(int[])}. It is only valid until the next call to {@link #write(byte[], int, int)}.
+     *
+     * @return the number of bytes copied
+     */
+    public int copyFrame(byte[] dst, int off) {
+        int start = (int) mFrameStart & mMask;
+        int first = Math.min(mFrameLength, mRing.length - start);
+        System.arraycopy(mRing, start, dst, off, first);
+        if (first < mFrameLength) {
+            System.arraycopy(mRing, 0, dst, off + first, mFrameLength - first);
+        }
+        return mFrameLength;
+    }
+
+    /**
+     * Parse the hex fields following the channels of the frame last returned by
+     * {@link #next(int[])}. Like {@link #copyFrame(byte[], int)} it is only valid until the next
+     * call to {@link #write(byte[], int, int)}.
+     *
+     * @param out receives the values of the fields
+     * @return the number of fields, at most the length of out
+     */
+    public int telemetry(int[] out) {
+        int count = 0;
+        int value = -1;
+        // the terminator is not part of the fields
+        int end = mFrameLength - 1;
+        for (int i = CHANNELS * FIELD_WIDTH; i < end; i++) {
+            int digit = HEX_VALUES[mRing[(int) (mFrameStart + i) & mMask] & 0xff];
+            if (digit >= 0) {
+                value = value < 0 ? digit : value << 4 | digit;
+            } else if (value >= 0) {
+                if (count == out.length)
+                    return count;
+                out[count++] = value;
+                value = -1;
+            }
+        }
+        if (value >= 0 && count < out.length) {
+            out[count++] = value;
+        }
+        return count;
+    }
+
+    /**
+     * @return the length in bytes of the frame last returned by {@link #next(int[])}
+     */
+    public int getFrameLength() {
+        return mFrameLength;
+    }
+
+    /**
+     * @return the size of the ring buffer, no frame can be longer than this
+     */
+    public int getCapacity() {
+        return mRing.length;
+    }
+
+    /**
+     * @return the number of bytes waiting in the ring buffer
+     */
+    public int available() {
+        return (int) (mTail - mHead);
+    }
+
+    /**
+     * @return the number of frames decoded so far
+     */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * @return the number of frames discarded because short, garbled or overflowing the buffer
+     */
+    public long getDroppedFrames() {
+        return mDropped;
+    }
+
+    /**
+     * Forget any buffered data, used when the connection is reset.
+     */
+    public void reset() {
+        mHead = mScan = mTail;
+        mFrameLength = 0;
+    }
+
+    private boolean decodeFields(long start, int[] out) {
+        int p = (int) start;
+        for (int c = 0; c < CHANNELS; c++, p += FIELD_WIDTH) {
+            int d0 = HEX_VALUES[mRing[p & mMask] & 0xff];
+            int d1 = HEX_VALUES[mRing[(p + 1) & mMask] & 0xff];
+            int d2 = HEX_VALUES[mRing[(p + 2) & mMask] & 0xff];
+            if ((d0 | d1 | d2) < 0)
+                return false;
+            out[c] = d0 << 8 | d1 << 4 | d2;
+        }
+        return true;
+    }
+}
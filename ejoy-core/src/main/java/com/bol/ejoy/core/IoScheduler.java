@@ -0,0 +1,249 @@
+package com.bol.ejoy.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Named pools of threads running the connections: the connects, the read loops of the links,
+ * the loops and writes living with a link, the sends of the lamp sessions and the background
+ * work such as replays.
+ * <p>
+ * Every pool starts its threads at a fixed priority and keeps them for
+ * {@link #KEEP_ALIVE_SECONDS} once idle: connecting, dropping and reconnecting reuses the same
+ * threads instead of starting new ones. A fixed pool starts at most a number of threads, the
+ * tasks beyond them wait in its queue; a growing pool never lets a task wait, it starts a
+ * thread when none is idle. The work blocking for as long as a connection, or waiting for
+ * other tasks of its pool, runs on a growing pool.
+ * <p>
+ * The work is submitted as a {@link Task}, cancelled with {@link Task#cancel()}: the task is
+ * dropped if it did not start, otherwise it is told with a flag and an interrupt and ends by
+ * itself, closing what it opened. Only a thread that is not the UI thread, and that needs the
+ * task gone before going on, waits for it with {@link Task#await(long)}.
+ */
+public class IoScheduler {
+
+    /**
+     * Connects to the devices, a connect blocks for seconds and may race several others
+     */
+    public static final String CONNECT = "connect";
+    /**
+     * Loops blocked on a socket for as long as it is open, the read loops of the links and the
+     * accept of a server: a thread per socket
+     */
+    public static final String READ = "read";
+    /**
+     * Work living with a link or a pipeline besides the reads: the decode loops of the sample
+     * pipelines, the color senders, the retransmissions of the command windows and their
+     * writes. A link stalled on a write holds only its own threads
+     */
+    public static final String LINK = "link";
+    /**
+     * Sends of the lamp sessions, timing matters; a task never waits for an acknowledgement
+     */
+    public static final String SESSION = "session";
+    /**
+     * Work nobody waits for, e.g. replays
+     */
+    public static final String BACKGROUND = "background";
+
+    /**
+     * Time an idle thread is kept for the next task
+     */
+    public static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static IoScheduler sShared;
+
+    private final Map<String, ThreadPoolExecutor> mPools = new HashMap<>();
+
+    /**
+     * Work run by a pool, cancellable whether it started or not
+     */
+    public abstract static class Task implements Runnable {
+        private volatile boolean mCancelled;
+        // the thread running the task and the end of the task, guarded by this
+        private Thread mRunner;
+        private boolean mStarted;
+        private boolean mDone;
+
+        @Override
+        public final void run() {
+            synchronized (this) {
+                if (mCancelled)
+                    return;
+                mStarted = true;
+                mRunner = Thread.currentThread();
+            }
+            try {
+                runTask();
+            } finally {
+                // no interrupt reaches the thread once it left the task
+                synchronized (this) {
+                    mRunner = null;
+                    mDone = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * The work, it checks {@link #isCancelled()} after every blocking step and then
+         * releases what it holds.
+         */
+        protected abstract void runTask();
+
+        /**
+         * Ask the task to stop, never waits for it.
+         */
+        public void cancel() {
+            synchronized (this) {
+                mCancelled = true;
+                if (mRunner != null) {
+                    mRunner.interrupt();
+                } else if (!mStarted) {
+                    // it will never run
+                    mDone = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Wait for the task to end, or to be cancelled before it started. Never call it on the
+         * UI thread.
+         *
+         * @return false if it still runs after the timeout
+         */
+        public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (!mDone) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0)
+                    return false;
+                wait(left);
+            }
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    /**
+     * @return the scheduler shared by the connections of the process, with the pools
+     * {@link #CONNECT}, {@link #READ}, {@link #LINK}, {@link #SESSION} and {@link #BACKGROUND}
+     */
+    public static synchronized IoScheduler getShared() {
+        if (sShared == null) {
+            IoScheduler scheduler = new IoScheduler();
+            scheduler.addGrowingPool(CONNECT, Thread.NORM_PRIORITY);
+            scheduler.addGrowingPool(READ, Thread.NORM_PRIORITY + 2);
+            scheduler.addGrowingPool(LINK, Thread.NORM_PRIORITY + 1);
+            scheduler.addPool(SESSION, 8, Thread.NORM_PRIORITY + 1);
+            scheduler.addPool(BACKGROUND, 2, Thread.NORM_PRIORITY - 2);
+            sShared = scheduler;
+        }
+        return sShared;
+    }
+
+    /**
+     * Add a fixed pool, its threads are started on demand and named after it.
+     *
+     * @param threads  maximum number of threads
+     * @param priority priority of the threads, see {@link Thread#setPriority(int)}
+     */
+    public synchronized void addPool(String name, int threads, int priority) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        checkNew(name, priority);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new PoolThreadFactory(name, priority));
+        pool.allowCoreThreadTimeOut(true);
+        mPools.put(name, pool);
+    }
+
+    /**
+     * Add a growing pool: a task runs at once on an idle thread or on a new one, named after
+     * the pool.
+     *
+     * @param priority priority of the threads, see {@link Thread#setPriority(int)}
+     */
+    public synchronized void addGrowingPool(String name, int priority) {
+        checkNew(name, priority);
+        mPools.put(name, new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new PoolThreadFactory(name, priority)));
+    }
+
+    private void checkNew(String name, int priority) {
+        if (mPools.containsKey(name))
+            throw new IllegalArgumentException("pool already exists: " + name);
+        if (priority < Thread.MIN_PRIORITY || priority > Thread.MAX_PRIORITY)
+            throw new IllegalArgumentException("priority out of range: " + priority);
+    }
+
+    /**
+     * @return the executor of a pool, e.g. for a {@link TransportLink}
+     * @throws IllegalArgumentException if there is no such pool
+     */
+    public synchronized Executor getPool(String name) {
+        ThreadPoolExecutor pool = mPools.get(name);
+        if (pool == null)
+            throw new IllegalArgumentException("no pool " + name);
+        return pool;
+    }
+
+    /**
+     * Run a task on a pool.
+     *
+     * @return the task, to cancel it
+     */
+    public <T extends Task> T submit(String pool, T task) {
+        getPool(pool).execute(task);
+        return task;
+    }
+
+    /**
+     * @return the number of threads alive in a pool, busy or idle
+     */
+    public synchronized int getPoolSize(String name) {
+        ThreadPoolExecutor pool = mPools.get(name);
+        return pool == null ? 0 : pool.getPoolSize();
+    }
+
+    /**
+     * Stop taking tasks and interrupt the running ones, never call it on the shared scheduler.
+     */
+    public synchronized void shutdown() {
+        for (ThreadPoolExecutor pool : mPools.values()) {
+            pool.shutdownNow();
+        }
+    }
+
+    private static class PoolThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final int mPriority;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        PoolThreadFactory(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "io-" + mName + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(mPriority);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.bol.ejoy.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Set of lamps connected at the same time that change together.
+ * <p>
+ * Every lamp has its own {@link TransportLink} and {@link CommandWindow}.
+ * {@link #broadcastColor(int, long)} hands one task per lamp to the executor, so a lamp slow to
+ * take its frame does not hold back the others. A task ends once the frame is written, it waits
+ * neither for the acknowledgement nor for room in the window: a lamp whose window is full misses
+ * the color and its future fails, it never holds a thread of the executor the other lamps need.
+ * Every frame carries the same apply time converted to the delay left for that lamp. The lamps
+ * switch when the time comes rather than one after the other as the frames go out.
+ */
+public class LampSession {
+
+    /**
+     * Told when a lamp leaves the session because its link dropped
+     */
+    public interface Listener {
+        void onLampDisconnected(Lamp lamp, IOException cause);
+    }
+
+    /**
+     * A connected lamp of the session
+     */
+    public class Lamp {
+        private final TransportLink mLink;
+        private final CommandWindow mCommands;
+
+        Lamp(Transport transport) throws IOException {
+            mCommands = new CommandWindow(new CommandWindow.Sink() {
+                @Override
+                public void write(byte[] buffer, int off, int len) throws IOException {
+                    mLink.write(buffer, off, len);
+                }
+            }, mWindow, mTimeoutMillis, mMaxAttempts);
+            mLink = new TransportLink(transport, new TransportLink.Listener() {
+                @Override
+                public void onRead(byte[] buffer, int length) {
+                    // only the acknowledgements matter here
+                    mCommands.onReceived(buffer, 0, length);
+                }
+
+                @Override
+                public void onDisconnected(IOException cause) {
+                    lampDisconnected(Lamp.this, cause);
+                }
+            }, mReadExecutor);
+        }
+
+        public String getName() {
+            return mLink.getTransport().getName();
+        }
+
+        public CommandWindow getCommands() {
+            return mCommands;
+        }
+    }
+
+    private final Executor mExecutor;
+    private final int mWindow;
+    private final long mTimeoutMillis;
+    private final int mMaxAttempts;
+    private final CopyOnWriteArrayList<Lamp> mLamps = new CopyOnWriteArrayList<>();
+    private volatile Listener mListener;
+    private volatile Executor mReadExecutor;
+
+    /**
+     * @param executor      runs the sends of a broadcast, one task per lamp
+     * @param window        commands in flight per lamp, see {@link CommandWindow}
+     * @param timeoutMillis acknowledgement timeout
+     * @param maxAttempts   writes of a command before it fails
+     */
+    public LampSession(Executor executor, int window, long timeoutMillis, int maxAttempts) {
+        mExecutor = executor;
+        mWindow = window;
+        mTimeoutMillis = timeoutMillis;
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param readExecutor runs the read loops of the lamps added from now on, e.g. the
+     *                     {@link IoScheduler#READ} pool; null for a thread per lamp
+     */
+    public void setReadExecutor(Executor readExecutor) {
+        mReadExecutor = readExecutor;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Add a lamp to the session.
+     *
+     * @param transport a connected transport to the lamp
+     */
+    public Lamp add(Transport transport) throws IOException {
+        Lamp lamp = new Lamp(transport);
+        lamp.mCommands.start();
+        lamp.mLink.start();
+        mLamps.add(lamp);
+        return lamp;
+    }
+
+    /**
+     * Disconnect a lamp and take it out of the session
+     */
+    public void remove(Lamp lamp) {
+        if (mLamps.remove(lamp)) {
+            lamp.mLink.cancel();
+            lamp.mCommands.stop();
+        }
+    }
+
+    /**
+     * @return the lamps of the session
+     */
+    public List<Lamp> getLamps() {
+        return Collections.unmodifiableList(mLamps);
+    }
+
+    /**
+     * Make every lamp show a color at the same time.
+     *
+     * @param color      ARGB color, alpha is the brightness
+     * @param leadMillis time from now to the switch, it must cover the writes and the transit
+     * @return one future per lamp, done when the lamp acknowledged the color; failed if the
+     * window of the lamp was full
+     */
+    public List<Future<Void>> broadcastColor(final int color, long leadMillis) {
+        final long applyAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leadMillis);
+        List<Future<Void>> futures = new ArrayList<>(mLamps.size());
+        for (final Lamp lamp : mLamps) {
+            // the task only sends, the acknowledgement completes the future of the command
+            FutureTask<CommandFuture> send = new FutureTask<>(new Callable<CommandFuture>() {
+                @Override
+                public CommandFuture call() throws Exception {
+                    return lamp.mCommands.trySendColorAt(color, applyAt);
+                }
+            });
+            mExecutor.execute(send);
+            futures.add(new BroadcastFuture(send));
+        }
+        return futures;
+    }
+
+    /**
+     * Disconnect every lamp
+     */
+    public void close() {
+        for (Lamp lamp : mLamps) {
+            remove(lamp);
+        }
+    }
+
+    private void lampDisconnected(Lamp lamp, IOException cause) {
+        if (mLamps.remove(lamp)) {
+            lamp.mCommands.stop();
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onLampDisconnected(lamp, cause);
+            }
+        }
+    }
+
+    /**
+     * Future of the color of a lamp: the send of the task, then the acknowledgement
+     */
+    private static class BroadcastFuture implements Future<Void> {
+        private final FutureTask<CommandFuture> mSend;
+
+        BroadcastFuture(FutureTask<CommandFuture> send) {
+            mSend = send;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // only before the send, a written frame cannot be recalled
+            return mSend.cancel(false);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mSend.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            if (!mSend.isDone())
+                return false;
+            try {
+                return mSend.get().isDone();
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
+                return true;
+            }
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            return mSend.get().get();
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            CommandFuture command = mSend.get(timeout, unit);
+            return command.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.bol.ejoy.core;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of named counters, gauges and histograms describing what the connections do.
+ * <p>
+ * The metrics are created once, typically in fields, and recorded on the hot paths. While the
+ * registry is disabled, the default, recording is a read of a volatile flag and nothing else, so
+ * the calls can stay in production code. {@link #dump()} formats every metric as text, one per
+ * line in name order, to be logged or shown on demand.
+ */
+public class Metrics {
+
+    /**
+     * Value computed when the registry is dumped, e.g. a queue depth
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    private final Map<String, Object> mMetrics = new TreeMap<>();
+    private volatile boolean mEnabled;
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @param enabled false to make the recording free, the values are kept
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * @return the counter of that name, created on the first call
+     */
+    public synchronized Counter counter(String name) {
+        Object metric = mMetrics.get(name);
+        if (metric == null) {
+            metric = new Counter(this);
+            mMetrics.put(name, metric);
+        }
+        return (Counter) metric;
+    }
+
+    /**
+     * @return the histogram of that name with power of two buckets, created on the first call
+     */
+    public Histogram histogram(String name) {
+        return histogram(name, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * A histogram with finer buckets, e.g. for latencies spanning microseconds to seconds whose
+     * tail matters.
+     *
+     * @param precisionBits the percentiles are within 1/2^precisionBits of the recorded values,
+     *                      0 for power of two buckets; 6 keeps them within 1/64
+     * @param highestValue  larger values are counted as this one, it bounds the buckets
+     * @return the histogram of that name, created on the first call with that resolution
+     */
+    public synchronized Histogram histogram(String name, int precisionBits, long highestValue) {
+        Object metric = mMetrics.get(name);
+        if (metric == null) {
+            metric = new Histogram(this, precisionBits, highestValue);
+            mMetrics.put(name, metric);
+        }
+        return (Histogram) metric;
+    }
+
+    /**
+     * Register a gauge, replacing a gauge of the same name.
+     */
+    public synchronized void gauge(String name, Gauge gauge) {
+        mMetrics.put(name, gauge);
+    }
+
+    /**
+     * @return every metric as text, one line each
+     */
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        synchronized (this) {
+            for (Map.Entry<String, Object> entry : mMetrics.entrySet()) {
+                out.append(entry.getKey()).append(' ');
+                Object metric = entry.getValue();
+                if (metric instanceof Counter) {
+                    out.append(((Counter) metric).get());
+                } else if (metric instanceof Gauge) {
+                    out.append(((Gauge) metric).getValue());
+                } else {
+                    ((Histogram) metric).appendTo(out);
+                }
+                out.append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Monotonic count of events or amounts
+     */
+    public static class Counter {
+        private final Metrics mOwner;
+        private final AtomicLong mCount = new AtomicLong();
+
+        Counter(Metrics owner) {
+            mOwner = owner;
+        }
+
+        public void increment() {
+            if (mOwner.mEnabled) {
+                mCount.incrementAndGet();
+            }
+        }
+
+        public void add(long amount) {
+            if (mOwner.mEnabled) {
+                mCount.addAndGet(amount);
+            }
+        }
+
+        public long get() {
+            return mCount.get();
+        }
+    }
+
+    /**
+     * Distribution of non negative values in log-linear buckets: the values are counted by their
+     * bit length and their {@code precisionBits} highest bits after the first one, so a
+     * percentile is known within 1/2^precisionBits of the recorded value whatever its magnitude.
+     * With 0 bits, the default, bucket i counts the values of bit length i and a percentile is
+     * known within a factor of two. The buckets are fixed, recording never allocates.
+     */
+    public static class Histogram {
+        private final Metrics mOwner;
+        private final int mSubBits;
+        private final long mHighest;
+        private final AtomicLongArray mBuckets;
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        Histogram(Metrics owner, int precisionBits, long highestValue) {
+            if (precisionBits < 0 || precisionBits > 16)
+                throw new IllegalArgumentException("precisionBits out of 0..16: " + precisionBits);
+            if (highestValue < 1)
+                throw new IllegalArgumentException("highestValue must be positive: " + highestValue);
+            mOwner = owner;
+            mSubBits = precisionBits;
+            mHighest = highestValue;
+            mBuckets = new AtomicLongArray(indexOf(highestValue) + 1);
+        }
+
+        // the values below 2^(sub bits + 1) have a bucket each, the larger ones share a bucket
+        // with the values of the same bit length and the same sub bits
+        private int indexOf(long value) {
+            int exponent = 64 - Long.numberOfLeadingZeros(value) - (mSubBits + 1);
+            if (exponent <= 0)
+                return (int) value;
+            return (exponent << mSubBits) + (int) (value >>> exponent);
+        }
+
+        // highest value counted in a bucket
+        private long highestOf(int index) {
+            if (index < 2 << mSubBits)
+                return index;
+            int exponent = (index >>> mSubBits) - 1;
+            long mantissa = index - (exponent << mSubBits);
+            return ((mantissa + 1) << exponent) - 1;
+        }
+
+        /**
+         * @param value negative values are counted as 0, values above the highest one as the
+         *              highest
+         */
+        public void record(long value) {
+            if (!mOwner.mEnabled)
+                return;
+            if (value < 0)
+                value = 0;
+            else if (value > mHighest)
+                value = mHighest;
+            mBuckets.incrementAndGet(indexOf(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+                // retry
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        public long getMean() {
+            long count = mCount.get();
+            return count == 0 ? 0 : mSum.get() / count;
+        }
+
+        /**
+         * @param fraction e.g. 0.99
+         * @return the upper bound of the bucket holding the percentile, at most the max
+         */
+        public long getPercentile(double fraction) {
+            long count = mCount.get();
+            if (count == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            int length = mBuckets.length();
+            for (int i = 0; i < length; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank)
+                    return Math.min(highestOf(i), mMax.get());
+            }
+            return mMax.get();
+        }
+
+        /**
+         * Forget the recorded values, concurrent recordings may be half counted.
+         */
+        public void reset() {
+            for (int i = 0; i < mBuckets.length(); i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        void appendTo(StringBuilder out) {
+            out.append("count=").append(getCount())
+                    .append(" mean=").append(getMean())
+                    .append(" p50=").append(getPercentile(0.5))
+                    .append(" p99=").append(getPercentile(0.99))
+                    .append(" p999=").append(getPercentile(0.999))
+                    .append(" max=").append(getMax());
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.bol.ejoy.core;
+
+/**
+ * Mean of the last {@code length} samples of every channel, a running sum updated with the
+ * sample entering and the one leaving the window. Until the window is full the mean is over
+ * the samples seen so far.
+ */
+public class MovingAverage implements SampleFilter {
+
+    private final int[][] mHistory;
+    private final long[] mSums;
+    private final int mLength;
+    private int mNext;
+    private int mCount;
+
+    /**
+     * @param channels number of channels of the samples
+     * @param length   number of samples averaged
+     */
+    public MovingAverage(int channels, int length) {
+        if (length < 1)
+            throw new IllegalArgumentException("length must be positive: " + length);
+        mHistory = new int[channels][length];
+        mSums = new long[channels];
+        mLength = length;
+    }
+
+    @Override
+    public boolean apply(int[] sample) {
+        boolean full = mCount == mLength;
+        if (!full) {
+            mCount++;
+        }
+        for (int c = 0; c < mHistory.length; c++) {
+            int[] history = mHistory[c];
+            long sum = mSums[c] + sample[c];
+            if (full) {
+                sum -= history[mNext];
+            }
+            history[mNext] = sample[c];
+            mSums[c] = sum;
+            sample[c] = (int) Math.round((double) sum / mCount);
+        }
+        mNext = mNext + 1 == mLength ? 0 : mNext + 1;
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        for (int c = 0; c < mSums.length; c++) {
+            mSums[c] = 0;
+        }
+        mNext = 0;
+        mCount = 0;
+    }
+}
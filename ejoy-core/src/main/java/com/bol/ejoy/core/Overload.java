@@ -0,0 +1,45 @@
+package com.bol.ejoy.core;
+
+/**
+ * What a bounded stage does when its consumer falls behind and it is full. Every stage between
+ * the socket and the sinks is bounded, the policy decides whether a slow sink slows down the
+ * stages before it or loses data, and which data.
+ */
+public class Overload {
+
+    /**
+     * Wait for room: nothing is lost, the stages before slow down and fill up in turn
+     */
+    public static final int BLOCK = 0;
+    /**
+     * Discard the oldest data not delivered yet, the sink sees the latest data once it catches up
+     */
+    public static final int DROP_OLDEST = 1;
+    /**
+     * Discard the data arriving while the stage is full
+     */
+    public static final int DROP_NEWEST = 2;
+    /**
+     * Keep only one sample in 2, 4, ... while the sink is behind, back to the full rate once it
+     * caught up: the sink still sees the whole signal at a lower rate
+     */
+    public static final int DECIMATE = 3;
+
+    private static final String[] NAMES = {"BLOCK", "DROP_OLDEST", "DROP_NEWEST", "DECIMATE"};
+
+    private Overload() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if the policy is unknown
+     */
+    public static void check(int policy) {
+        if (policy < BLOCK || policy > DECIMATE)
+            throw new IllegalArgumentException("unknown overload policy: " + policy);
+    }
+
+    public static String name(int policy) {
+        check(policy);
+        return NAMES[policy];
+    }
+}
@@ -0,0 +1,166 @@
+package com.bol.ejoy.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * In-memory {@link Transport}, the two ends created by {@link #createPair(int)} are connected
+ * back to back, what is written on one end is read on the other.
+ * <p>
+ * Used to drive the connection code from tests and load generators without any socket.
+ * Closing either end makes the reads of the other return -1 once the buffered data is
+ * consumed and its writes fail.
+ */
+public class PipeTransport implements Transport {
+
+    private final String mName;
+    private final Pipe mIn;
+    private final Pipe mOut;
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+
+    private PipeTransport(String name, Pipe in, Pipe out) {
+        mName = name;
+        mIn = in;
+        mOut = out;
+        mInputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return mIn.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return mIn.available();
+            }
+        };
+        mOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                mOut.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * @param bufferSize bytes buffered in each direction before a write blocks
+     * @return the two ends of the connection
+     */
+    public static PipeTransport[] createPair(int bufferSize) {
+        Pipe a = new Pipe(bufferSize);
+        Pipe b = new Pipe(bufferSize);
+        return new PipeTransport[]{new PipeTransport("pipe-a", a, b), new PipeTransport("pipe-b", b, a)};
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (mIn.isClosed())
+            throw new IOException("pipe closed");
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public void close() {
+        mIn.close();
+        mOut.close();
+    }
+
+    /**
+     * One direction, a ring buffer guarded by its own monitor
+     */
+    private static class Pipe {
+        private final byte[] mBuffer;
+        private int mRead;
+        private int mCount;
+        private boolean mClosed;
+
+        Pipe(int size) {
+            mBuffer = new byte[size];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (mCount == 0) {
+                if (mClosed)
+                    return -1;
+                waitForChange();
+            }
+            int n = Math.min(len, mCount);
+            int first = Math.min(n, mBuffer.length - mRead);
+            System.arraycopy(mBuffer, mRead, b, off, first);
+            System.arraycopy(mBuffer, 0, b, off + first, n - first);
+            mRead = (mRead + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mClosed)
+                    throw new IOException("pipe closed");
+                if (mCount == mBuffer.length) {
+                    waitForChange();
+                    continue;
+                }
+                int write = (mRead + mCount) % mBuffer.length;
+                int n = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - write));
+                System.arraycopy(b, off, mBuffer, write, n);
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized int available() {
+            return mCount;
+        }
+
+        synchronized boolean isClosed() {
+            return mClosed;
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        private void waitForChange() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
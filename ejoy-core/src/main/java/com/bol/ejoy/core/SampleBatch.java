@@ -0,0 +1,105 @@
+package com.bol.ejoy.core;
+
+/**
+ * A block of decoded samples stored as one primitive array per channel, so consumers can walk
+ * a single channel without touching the others and without any boxing.
+ * <p>
+ * Batches are meant to be reused: fill, hand over, {@link #clear()}, fill again.
+ */
+public class SampleBatch {
+
+    private final int[][] mChannels;
+    private final int mCapacity;
+    private int mSize;
+    private long mTimestamp;
+
+    /**
+     * @param channels number of channels of every sample
+     * @param capacity maximum number of samples the batch can hold
+     */
+    public SampleBatch(int channels, int capacity) {
+        mChannels = new int[channels][capacity];
+        mCapacity = capacity;
+    }
+
+    /**
+     * Append a sample.
+     *
+     * @param sample one value per channel
+     * @return false if the batch is already full
+     */
+    public boolean add(int[] sample) {
+        if (mSize == mCapacity)
+            return false;
+        for (int c = 0; c < mChannels.length; c++) {
+            mChannels[c][mSize] = sample[c];
+        }
+        mSize++;
+        return true;
+    }
+
+    /**
+     * @return the value of the channel for the sample at index
+     */
+    public int get(int channel, int index) {
+        return mChannels[channel][index];
+    }
+
+    /**
+     * Copy the sample at index into out.
+     */
+    public void getSample(int index, int[] out) {
+        for (int c = 0; c < mChannels.length; c++) {
+            out[c] = mChannels[c][index];
+        }
+    }
+
+    /**
+     * @return the backing array of a channel, only the first {@link #size()} values are valid
+     */
+    public int[] channel(int channel) {
+        return mChannels[channel];
+    }
+
+    /**
+     * @return the System.nanoTime() at which the first sample of the batch was decoded
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        mTimestamp = timestamp;
+    }
+
+    public int channelCount() {
+        return mChannels.length;
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean isFull() {
+        return mSize == mCapacity;
+    }
+
+    // after the channel arrays were filled directly, e.g. by a decoder
+    void setSize(int size) {
+        if (size < 0 || size > mCapacity)
+            throw new IllegalArgumentException("size out of 0.." + mCapacity + ": " + size);
+        mSize = size;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+}
@@ -0,0 +1,26 @@
+package com.bol.ejoy.core;
+
+/**
+ * Streaming filter of the decoded samples, applied one sample at a time to every channel.
+ * <p>
+ * The values are replaced in place in the primitive sample array and a filter never allocates
+ * once built, so its cost per sample is constant. Filters keep the state of their channels: an
+ * instance serves a single stream, e.g. one subscription of
+ * {@link SamplePipeline#addSampleListener(SampleListener, java.util.concurrent.Executor, int, long, SampleFilter)},
+ * and is only called by the thread of that stream. {@link FilterChain} composes them.
+ */
+public interface SampleFilter {
+
+    /**
+     * Filter a sample in place.
+     *
+     * @param sample one value per channel, replaced by the filtered values
+     * @return false if the sample is dropped from the stream, e.g. by a {@link Decimator}
+     */
+    boolean apply(int[] sample);
+
+    /**
+     * Forget the past samples, e.g. after a gap in the stream
+     */
+    void reset();
+}
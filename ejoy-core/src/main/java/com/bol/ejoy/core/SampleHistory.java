@@ -0,0 +1,224 @@
+package com.bol.ejoy.core;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last samples of every channel, kept off the Java heap for the features looking back in
+ * time, e.g. the minutes before an alarm.
+ * <p>
+ * Each sample is packed as 12 bit values, two channels in three bytes, in a ring held by a
+ * direct {@link ByteBuffer}; the oldest samples are overwritten once it is full. Samples are
+ * numbered from 0 in arrival order. Every {@link #BLOCK} samples the time of the sample is
+ * kept in a second direct buffer, which maps times to sample numbers.
+ * <p>
+ * One thread appends, e.g. the decode thread with {@link SamplePipeline#DIRECT}, without any
+ * lock: it writes the sample and then publishes the new count. Any number of threads read
+ * windows with absolute gets, copying only the samples they ask for. A reader checks the count
+ * again after copying, a window overwritten meanwhile is reported as not available. The slot
+ * of the oldest sample is the one the writer fills next, so with the ring full only
+ * {@code capacity - 1} samples are readable.
+ */
+public class SampleHistory implements SampleListener {
+
+    /**
+     * Samples per entry of the time index, the resolution of {@link #indexOf(long)} when the
+     * samples do not arrive at the nominal rate
+     */
+    public static final int BLOCK = 64;
+
+    private final int mChannels;
+    private final int mSampleBytes;
+    private final long mCapacity;
+    private final long mPeriodNanos;
+    private final ByteBuffer mSamples;
+    private final LongBuffer mTimes;
+    private final int mBlocks;
+    // samples appended so far, published after the sample is written
+    private final AtomicLong mWritten = new AtomicLong();
+    // sample being appended, used by the writer only
+    private final int[] mSample;
+
+    /**
+     * @param channels   number of channels, even
+     * @param sampleRate nominal rate in Hz, spaces the samples of a batch in time
+     * @param capacity   samples kept, rounded up to a multiple of {@link #BLOCK}
+     */
+    public SampleHistory(int channels, int sampleRate, int capacity) {
+        if (channels < 2 || channels % 2 != 0)
+            throw new IllegalArgumentException("channels must be even: " + channels);
+        if (sampleRate < 1 || capacity < 1)
+            throw new IllegalArgumentException("sampleRate and capacity must be positive");
+        mChannels = channels;
+        mSampleBytes = channels / 2 * 3;
+        mBlocks = (capacity + BLOCK - 1) / BLOCK;
+        mCapacity = (long) mBlocks * BLOCK;
+        mPeriodNanos = TimeUnit.SECONDS.toNanos(1) / sampleRate;
+        mSamples = ByteBuffer.allocateDirect((int) mCapacity * mSampleBytes);
+        // one spare block, the time of the oldest block stays readable while the writer fills it
+        mTimes = ByteBuffer.allocateDirect((mBlocks + 1) * 8).asLongBuffer();
+        mSample = new int[channels];
+    }
+
+    /**
+     * @return a history holding the given minutes at the nominal rate
+     */
+    public static SampleHistory ofMinutes(int channels, int sampleRate, int minutes) {
+        return new SampleHistory(channels, sampleRate, sampleRate * 60 * minutes);
+    }
+
+    /**
+     * Append the samples of a batch, the first one decoded at the time of the batch and the
+     * others one nominal period apart.
+     */
+    @Override
+    public void onSamples(SampleBatch batch) {
+        int size = batch.size();
+        long time = batch.getTimestamp();
+        for (int i = 0; i < size; i++) {
+            batch.getSample(i, mSample);
+            append(mSample, time + i * mPeriodNanos);
+        }
+    }
+
+    /**
+     * Append a sample, called by the writer thread only.
+     *
+     * @param sample    one value per channel, only the low 12 bits are kept
+     * @param timeNanos System.nanoTime() of the sample
+     */
+    public void append(int[] sample, long timeNanos) {
+        long index = mWritten.get();
+        int offset = (int) (index % mCapacity) * mSampleBytes;
+        for (int c = 0; c < mChannels; c += 2) {
+            int a = sample[c] & 0xfff;
+            int b = sample[c + 1] & 0xfff;
+            mSamples.put(offset, (byte) (a >>> 4));
+            mSamples.put(offset + 1, (byte) (a << 4 | b >>> 8));
+            mSamples.put(offset + 2, (byte) b);
+            offset += 3;
+        }
+        if (index % BLOCK == 0) {
+            mTimes.put((int) (index / BLOCK % (mBlocks + 1)), timeNanos);
+        }
+        mWritten.lazySet(index + 1);
+    }
+
+    /**
+     * @return the number of samples appended so far, the number of the next sample
+     */
+    public long getWritten() {
+        return mWritten.get();
+    }
+
+    /**
+     * @return the number of the oldest sample still kept
+     */
+    public long getOldest() {
+        return oldest(mWritten.get());
+    }
+
+    /**
+     * @return the oldest sample not being overwritten once written samples were published
+     */
+    private long oldest(long written) {
+        return Math.max(0, written - mCapacity + 1);
+    }
+
+    public long getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return the number of the first sample at or after a time, {@link #getWritten()} if none
+     * is that recent; the oldest sample if the time is older than the history
+     */
+    public long indexOf(long timeNanos) {
+        while (true) {
+            long written = mWritten.get();
+            if (written == 0)
+                return 0;
+            long oldest = oldest(written);
+            // binary search of the last block starting at or before the time
+            long low = oldest / BLOCK;
+            long high = (written - 1) / BLOCK;
+            if (timeNanos - blockTime(low) <= 0) {
+                if (isKept(oldest))
+                    return oldest;
+                continue;
+            }
+            while (low < high) {
+                long mid = (low + high + 1) >>> 1;
+                if (timeNanos - blockTime(mid) >= 0) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            long offset = (timeNanos - blockTime(low) + mPeriodNanos - 1) / mPeriodNanos;
+            long index = Math.max(oldest, low * BLOCK + Math.min(offset, BLOCK));
+            if (isKept(Math.max(oldest, low * BLOCK)))
+                return Math.min(index, written);
+            // the writer went round during the search, search the newer history
+        }
+    }
+
+    /**
+     * @return the estimated time of a sample kept in the history
+     */
+    public long timeOf(long index) {
+        return blockTime(index / BLOCK) + index % BLOCK * mPeriodNanos;
+    }
+
+    private long blockTime(long block) {
+        return mTimes.get((int) (block % (mBlocks + 1)));
+    }
+
+    private boolean isKept(long index) {
+        return index >= oldest(mWritten.get());
+    }
+
+    /**
+     * Copy a window of samples, channel by channel.
+     *
+     * @param from  number of the first sample
+     * @param count number of samples wanted
+     * @param out   one array per channel, at least count long
+     * @return the number of samples copied, fewer if the window reaches past the newest sample;
+     * 0 if its start is no longer kept
+     */
+    public int read(long from, int count, int[][] out) {
+        long written = mWritten.get();
+        if (from < oldest(written))
+            return 0;
+        int n = (int) Math.max(0, Math.min(count, written - from));
+        for (int i = 0; i < n; i++) {
+            int offset = (int) ((from + i) % mCapacity) * mSampleBytes;
+            for (int c = 0; c < mChannels; c += 2) {
+                int b0 = mSamples.get(offset) & 0xff;
+                int b1 = mSamples.get(offset + 1) & 0xff;
+                int b2 = mSamples.get(offset + 2) & 0xff;
+                out[c][i] = b0 << 4 | b1 >>> 4;
+                out[c + 1][i] = (b1 & 0x0f) << 8 | b2;
+                offset += 3;
+            }
+        }
+        // the writer may have overwritten the start of the window while it was copied
+        if (!isKept(from))
+            return 0;
+        return n;
+    }
+
+    /**
+     * Copy the samples of a time window.
+     *
+     * @param fromNanos System.nanoTime() of the start of the window
+     * @param out       one array per channel, its length bounds the samples copied
+     * @return the number of samples copied
+     */
+    public int readSince(long fromNanos, int[][] out) {
+        return read(indexOf(fromNanos), out[0].length, out);
+    }
+}
@@ -0,0 +1,17 @@
+package com.bol.ejoy.core;
+
+/**
+ * Subscriber of the decoded samples, see
+ * {@link SamplePipeline#addSampleListener(SampleListener, java.util.concurrent.Executor, int, long)}.
+ */
+public interface SampleListener {
+
+    /**
+     * Called on the executor chosen when subscribing with a batch of consecutive samples.
+     * <p>
+     * The batch is recycled as soon as this method returns, copy whatever has to outlive the call.
+     *
+     * @param batch the samples, never empty
+     */
+    void onSamples(SampleBatch batch);
+}
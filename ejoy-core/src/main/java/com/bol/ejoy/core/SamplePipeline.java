@@ -0,0 +1,825 @@
+package com.bol.ejoy.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decode stage sitting between the thread reading the socket and the consumers of the samples.
+ * <p>
+ * The reader hands every chunk of raw bytes to {@link #offer(BufferPool.Buffer)}, which puts
+ * it in a bounded {@link SpscQueue}; the chunk is released once decoded. The offer only waits
+ * for room with the {@link Overload#BLOCK} chunk policy, see {@link #setChunkPolicy(int)}. A
+ * dedicated thread takes the chunks, frames and decodes them with a {@link FrameDecoder} and
+ * collects the decoded samples in a {@link SampleBatch} per {@link SampleListener}. A batch is
+ * handed to the executor of its listener when it is full or when its oldest sample is older
+ * than the delay chosen by the listener. A slow UI therefore does not slow down the reads, the
+ * decoding does not run on the UI thread, and the cost of a dispatch is paid once per batch
+ * instead of once per sample.
+ * <p>
+ * Every stage is bounded: the chunk queue, the ring of the decoder and the batches of every
+ * listener. What happens when a stage is full is its {@link Overload} policy, the chunks are
+ * dropped by default and the samples of a listener that is behind too. The drops are counted.
+ * <p>
+ * The battery and status fields trailing the frames change slowly, they are not decoded with
+ * the samples: at most once per interval the last frame of a chunk is parsed and a
+ * {@link Telemetry} is delivered if a value changed.
+ */
+public class SamplePipeline {
+
+    /**
+     * Executor running the listener right on the decode thread, only for listeners that return
+     * quickly.
+     */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 256;
+    // batches per listener, one being filled while the others are delivered
+    private static final int BATCHES_PER_LISTENER = 3;
+    // upper bound of a park, so a missed wake up can only delay a chunk this much
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    // a reader blocked on a full queue checks for room this often
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // DECIMATE keeps at least one sample in this many
+    private static final int MAX_STRIDE = 16;
+    // marks a subscription whose drain callback was handed over
+    private static final Runnable DRAINED = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final SpscQueue<BufferPool.Buffer> mChunks;
+    private final FrameDecoder mDecoder = new FrameDecoder();
+    private final int[] mSample = new int[FrameDecoder.CHANNELS];
+    private final AtomicLong mDroppedChunks = new AtomicLong();
+    private final AtomicLong mDroppedSamples = new AtomicLong();
+    // copied on write, the decode thread only reads the array
+    private volatile Subscription[] mSubscriptions = new Subscription[0];
+    private volatile boolean mWaiting;
+    private volatile int mChunkPolicy = Overload.DROP_NEWEST;
+    // copy of the decoder counter readable from other threads
+    private volatile long mDroppedFrames;
+    // null while nobody listens to the telemetry
+    private volatile TelemetrySubscription mTelemetry;
+    // null to decode on a thread of the pipeline
+    private final Executor mExecutor;
+    private volatile DecodeLoop mDecodeLoop;
+    // the loop started last, running or stopped; guarded by this
+    private DecodeLoop mLastDecodeLoop;
+    // null until metrics are registered
+    private volatile Metrics mMetrics;
+    private Metrics.Counter mFrames;
+    private Metrics.Histogram mDecodeNanos;
+
+    public SamplePipeline() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity number of chunks that can wait for the decode thread
+     */
+    public SamplePipeline(int queueCapacity) {
+        this(queueCapacity, null);
+    }
+
+    /**
+     * @param queueCapacity number of chunks that can wait for the decode thread
+     * @param executor      runs the decode loop, which holds one of its threads from
+     *                      {@link #start()} until the chunks left after {@link #stop()} are
+     *                      decoded, e.g. {@link IoScheduler#LINK}; null for a thread of the
+     *                      pipeline
+     */
+    public SamplePipeline(int queueCapacity, Executor executor) {
+        mChunks = new SpscQueue<>(queueCapacity);
+        mExecutor = executor;
+    }
+
+    /**
+     * Subscribe to the decoded samples.
+     *
+     * @param listener       the listener
+     * @param executor       where {@link SampleListener#onSamples(SampleBatch)} runs, e.g. a
+     *                       single thread executor, one posting to a Looper or {@link #DIRECT}
+     * @param batchSize      maximum number of samples per call
+     * @param maxDelayMillis maximum time a sample waits for its batch to fill up
+     */
+    public void addSampleListener(SampleListener listener, Executor executor,
+                                  int batchSize, long maxDelayMillis) {
+        addSampleListener(listener, executor, batchSize, maxDelayMillis, null);
+    }
+
+    /**
+     * Subscribe to the decoded samples passed through a filter, e.g. a {@link FilterChain} of a
+     * notch, a low-pass and a {@link Decimator} for a listener that needs neither the mains hum
+     * nor the full rate.
+     *
+     * @param listener       the listener
+     * @param executor       where {@link SampleListener#onSamples(SampleBatch)} runs
+     * @param batchSize      maximum number of samples per call
+     * @param maxDelayMillis maximum time a sample waits for its batch to fill up
+     * @param filter         run on the decode thread, only for this listener; null for the raw
+     *                       samples
+     */
+    public void addSampleListener(SampleListener listener, Executor executor,
+                                  int batchSize, long maxDelayMillis, SampleFilter filter) {
+        addSampleListener(listener, executor, batchSize, maxDelayMillis, filter,
+                Overload.DROP_NEWEST);
+    }
+
+    /**
+     * Subscribe to the decoded samples, choosing what happens when the listener is still busy
+     * with all of its batches.
+     *
+     * @param listener       the listener
+     * @param executor       where {@link SampleListener#onSamples(SampleBatch)} runs
+     * @param batchSize      maximum number of samples per call
+     * @param maxDelayMillis maximum time a sample waits for its batch to fill up
+     * @param filter         run on the decode thread, only for this listener; null for the raw
+     *                       samples
+     * @param overload       an {@link Overload} policy. {@link Overload#BLOCK} stalls the decode
+     *                       thread and so every other listener, keep it for the sinks that must
+     *                       not lose anything; {@link Overload#DROP_OLDEST} drops a whole batch.
+     */
+    public synchronized void addSampleListener(SampleListener listener, Executor executor,
+                                               int batchSize, long maxDelayMillis,
+                                               SampleFilter filter, int overload) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        Overload.check(overload);
+        Subscription[] old = mSubscriptions;
+        Subscription[] subscriptions = new Subscription[old.length + 1];
+        System.arraycopy(old, 0, subscriptions, 0, old.length);
+        subscriptions[old.length] = new Subscription(listener, executor, batchSize,
+                TimeUnit.MILLISECONDS.toNanos(maxDelayMillis), filter, overload);
+        mSubscriptions = subscriptions;
+    }
+
+    /**
+     * Unsubscribe a listener, batches already handed to its executor are not delivered.
+     */
+    public synchronized void removeSampleListener(SampleListener listener) {
+        Subscription subscription = find(listener);
+        if (subscription != null) {
+            subscription.mActive = false;
+            remove(subscription);
+        }
+    }
+
+    /**
+     * Unsubscribe a listener without losing its samples, e.g. a recording: the batch being
+     * filled is handed to its executor, then whenDrained, after the batches handed before.
+     * With a single thread executor whenDrained runs once the listener had every sample
+     * decoded so far. Never waits for the decode thread.
+     *
+     * @param whenDrained run on the executor of the listener, or on the decode thread if the
+     *                    executor rejects it; right away if the listener is not subscribed
+     */
+    public synchronized void removeSampleListener(SampleListener listener, Runnable whenDrained) {
+        Subscription subscription = find(listener);
+        if (subscription == null) {
+            whenDrained.run();
+            return;
+        }
+        if (!subscription.mDrain.compareAndSet(null, whenDrained))
+            return; // already being removed
+        DecodeLoop last = mLastDecodeLoop;
+        if (mDecodeLoop == null && (last == null || last.mFinished)) {
+            // no decode thread touches the batches any more
+            subscription.drain();
+        }
+    }
+
+    private Subscription find(SampleListener listener) {
+        Subscription[] subscriptions = mSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i].mListener == listener)
+                return subscriptions[i];
+        }
+        return null;
+    }
+
+    private synchronized void remove(Subscription subscription) {
+        Subscription[] old = mSubscriptions;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == subscription) {
+                Subscription[] subscriptions = new Subscription[old.length - 1];
+                System.arraycopy(old, 0, subscriptions, 0, i);
+                System.arraycopy(old, i + 1, subscriptions, i, old.length - i - 1);
+                mSubscriptions = subscriptions;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Choose what {@link #offer(BufferPool.Buffer)} does when the chunk queue is full: drop the
+     * chunk, the default, or wait for the decode thread. Waiting pushes back on the reader and
+     * so on the socket; chunks of a byte stream can neither be dropped from the head of the
+     * queue, which the decode thread owns, nor decimated.
+     *
+     * @param policy {@link Overload#DROP_NEWEST} or {@link Overload#BLOCK}
+     */
+    public void setChunkPolicy(int policy) {
+        if (policy != Overload.DROP_NEWEST && policy != Overload.BLOCK)
+            throw new IllegalArgumentException("chunks can only block or drop the newest: "
+                    + Overload.name(policy));
+        mChunkPolicy = policy;
+    }
+
+    public int getChunkPolicy() {
+        return mChunkPolicy;
+    }
+
+    /**
+     * Subscribe to the battery and status fields of the frames, replacing the previous
+     * telemetry listener. The listener hears the current values first, then every change.
+     *
+     * @param listener          the listener, null to unsubscribe
+     * @param executor          where {@link TelemetryListener#onTelemetry(Telemetry)} runs
+     * @param minIntervalMillis the fields are checked at most this often, changes in between
+     *                          are only seen if they last
+     */
+    public void setTelemetryListener(TelemetryListener listener, Executor executor,
+                                     long minIntervalMillis) {
+        mTelemetry = listener == null ? null : new TelemetrySubscription(listener, executor,
+                TimeUnit.MILLISECONDS.toNanos(minIntervalMillis));
+    }
+
+    /**
+     * Start the decode thread if it is not running yet, never waits. After {@link #stop()} the
+     * new thread first waits for the previous one to finish the chunks left, the decoder and
+     * the batches belong to one thread at a time.
+     */
+    public synchronized void start() {
+        if (mDecodeLoop != null)
+            return;
+        DecodeLoop loop = new DecodeLoop(mLastDecodeLoop);
+        mDecodeLoop = loop;
+        try {
+            if (mExecutor != null) {
+                mExecutor.execute(loop);
+            } else {
+                Thread thread = new Thread(loop, "SampleDecodeThread");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (RejectedExecutionException e) {
+            mDecodeLoop = null;
+            throw e;
+        }
+        mLastDecodeLoop = loop;
+    }
+
+    /**
+     * Stop the decode thread, chunks still in the queue are decoded before it ends
+     */
+    public synchronized void stop() {
+        if (mDecodeLoop != null) {
+            mDecodeLoop.cancel();
+            mDecodeLoop = null;
+        }
+    }
+
+    /**
+     * Wait for the decode thread to finish after {@link #stop()}, never call it on the UI thread.
+     *
+     * @return false if it is still running after the timeout
+     */
+    public synchronized boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        DecodeLoop last = mLastDecodeLoop;
+        while (last != null && !last.mFinished) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                return false;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    /**
+     * Queue a chunk of raw bytes, called by the thread reading the socket only.
+     *
+     * @param chunk the bytes read, the pipeline takes ownership of the array
+     * @return false if the queue was full and the chunk has been dropped
+     */
+    public boolean offer(byte[] chunk) {
+        return offer(BufferPool.wrap(chunk));
+    }
+
+    /**
+     * Queue a leased chunk of raw bytes, called by the thread reading the socket only.
+     *
+     * @param chunk the bytes read, the pipeline takes over the reference and releases it once
+     *              decoded or dropped
+     * @return false if the queue was full and the chunk has been dropped; with
+     * {@link Overload#BLOCK} only if the decode thread is not running or the reader was
+     * interrupted
+     */
+    public boolean offer(BufferPool.Buffer chunk) {
+        if (mChunks.offer(chunk) || mChunkPolicy == Overload.BLOCK && awaitRoom(chunk)) {
+            wakeDecoder();
+            return true;
+        }
+        mDroppedChunks.incrementAndGet();
+        chunk.release();
+        return false;
+    }
+
+    private boolean awaitRoom(BufferPool.Buffer chunk) {
+        while (mDecodeLoop != null && !Thread.currentThread().isInterrupted()) {
+            wakeDecoder();
+            LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+            if (mChunks.offer(chunk))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Queue a chunk of raw bytes waiting for room if the queue is full, for producers that must
+     * not lose data such as a replay. Called by the single producer thread only.
+     */
+    public void put(byte[] chunk) throws InterruptedException {
+        BufferPool.Buffer buffer = BufferPool.wrap(chunk);
+        // the wait of a blocking offer, a stopped pipeline is waited for until it starts again
+        while (!mChunks.offer(buffer) && !awaitRoom(buffer)) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+        }
+        wakeDecoder();
+    }
+
+    private void wakeDecoder() {
+        DecodeLoop loop = mDecodeLoop;
+        if (mWaiting && loop != null) {
+            loop.wake();
+        }
+    }
+
+    /**
+     * @return the number of chunks dropped because the decode thread was behind
+     */
+    public long getDroppedChunks() {
+        return mDroppedChunks.get();
+    }
+
+    /**
+     * @return the number of samples not delivered, summed over the listeners, because a
+     * listener was still busy with all of its batches or decimated
+     */
+    public long getDroppedSamples() {
+        return mDroppedSamples.get();
+    }
+
+    /**
+     * @return the number of samples one listener did not get, dropped or decimated away; 0 for
+     * a listener that is not subscribed
+     */
+    public long getDroppedSamples(SampleListener listener) {
+        Subscription[] subscriptions = mSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i].mListener == listener)
+                return subscriptions[i].mDropped;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the number of frames the decoder discarded as short or garbled
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return the number of chunks waiting to be decoded
+     */
+    public int getQueueDepth() {
+        return mChunks.size();
+    }
+
+    /**
+     * Record the decoding in a metrics registry: the frames decoded, the decode time of a chunk
+     * and, as gauges, the queue depth and the drop counters. Call it before {@link #start()}.
+     *
+     * @param prefix prepended to the metric names, e.g. "pipeline."
+     */
+    public void registerMetrics(Metrics metrics, String prefix) {
+        mFrames = metrics.counter(prefix + "frames");
+        mDecodeNanos = metrics.histogram(prefix + "decode_nanos");
+        metrics.gauge(prefix + "queue_depth", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getQueueDepth();
+            }
+        });
+        metrics.gauge(prefix + "dropped_chunks", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getDroppedChunks();
+            }
+        });
+        metrics.gauge(prefix + "dropped_frames", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getDroppedFrames();
+            }
+        });
+        metrics.gauge(prefix + "dropped_samples", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getDroppedSamples();
+            }
+        });
+        mMetrics = metrics;
+    }
+
+    private void decode(BufferPool.Buffer chunk, long now) {
+        Metrics metrics = mMetrics;
+        boolean measure = metrics != null && metrics.isEnabled();
+        int frames = 0;
+        byte[] data = chunk.array();
+        int length = chunk.length();
+        int offset = 0;
+        while (offset < length) {
+            offset += mDecoder.write(data, offset, length - offset);
+            while (mDecoder.next(mSample)) {
+                Subscription[] subscriptions = mSubscriptions;
+                for (int i = 0; i < subscriptions.length; i++) {
+                    subscriptions[i].add(mSample, now);
+                }
+                frames++;
+            }
+        }
+        chunk.release();
+        mDroppedFrames = mDecoder.getDroppedFrames();
+        TelemetrySubscription telemetry = mTelemetry;
+        if (telemetry != null && frames > 0 && now - telemetry.mNextCheck >= 0) {
+            // the last frame of the chunk is still in the decoder
+            telemetry.check(mDecoder, now);
+        }
+        if (measure) {
+            // now was taken right before the decoding
+            mDecodeNanos.record(System.nanoTime() - now);
+            mFrames.add(frames);
+        }
+    }
+
+    /**
+     * Deliver the batches that waited long enough.
+     *
+     * @return the nanoseconds until the next batch expires, at most PARK_NANOS
+     */
+    private long flushExpired(long now) {
+        long wait = PARK_NANOS;
+        Subscription[] subscriptions = mSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i].mDrain.get() != null) {
+                subscriptions[i].drain();
+                continue;
+            }
+            wait = Math.min(wait, subscriptions[i].flushIfExpired(now));
+        }
+        return wait;
+    }
+
+    /**
+     * State of one listener, the batch being filled is touched by the decode thread only
+     */
+    private class Subscription {
+        final SampleListener mListener;
+        final Executor mExecutor;
+        final long mMaxDelayNanos;
+        final ArrayBlockingQueue<Delivery> mFree;
+        final SampleFilter mFilter;
+        // the filter works in place on this copy, the decoded sample goes to every subscription
+        final int[] mFiltered;
+        final int mOverload;
+        volatile boolean mActive = true;
+        // run after the last batch once removed with removeSampleListener(listener, whenDrained)
+        final AtomicReference<Runnable> mDrain = new AtomicReference<>();
+        // written by the decode thread only
+        volatile long mDropped;
+        private Delivery mCurrent;
+        // DECIMATE keeps one sample in mStride, mPhase counts the ones skipped
+        private int mStride = 1;
+        private int mPhase;
+
+        Subscription(SampleListener listener, Executor executor, int batchSize, long maxDelayNanos,
+                     SampleFilter filter, int overload) {
+            mListener = listener;
+            mExecutor = executor;
+            mMaxDelayNanos = maxDelayNanos;
+            mFilter = filter;
+            mOverload = overload;
+            mFiltered = filter != null ? new int[FrameDecoder.CHANNELS] : null;
+            mFree = new ArrayBlockingQueue<>(BATCHES_PER_LISTENER);
+            for (int i = 0; i < BATCHES_PER_LISTENER; i++) {
+                mFree.offer(new Delivery(this, new SampleBatch(FrameDecoder.CHANNELS, batchSize)));
+            }
+        }
+
+        void add(int[] sample, long now) {
+            if (mFilter != null) {
+                System.arraycopy(sample, 0, mFiltered, 0, mFiltered.length);
+                if (!mFilter.apply(mFiltered))
+                    return;
+                sample = mFiltered;
+            }
+            if (mStride > 1) {
+                if (++mPhase < mStride) {
+                    drop(1);
+                    return;
+                }
+                mPhase = 0;
+            }
+            if (mCurrent == null && !takeBatch()) {
+                // every batch is still with the listener
+                drop(1);
+                return;
+            }
+            SampleBatch batch = mCurrent.mBatch;
+            if (batch.isFull()) {
+                // kept by DROP_OLDEST while the listener holds the others, the newer samples win
+                drop(batch.size());
+                batch.clear();
+            }
+            if (batch.isEmpty()) {
+                batch.setTimestamp(now);
+            }
+            batch.add(sample);
+            if (batch.isFull()) {
+                handOff();
+            }
+        }
+
+        private boolean takeBatch() {
+            mCurrent = mFree.poll();
+            if (mCurrent == null && mOverload == Overload.BLOCK) {
+                mCurrent = awaitBatch();
+            }
+            return mCurrent != null;
+        }
+
+        private Delivery awaitBatch() {
+            try {
+                // a listener removed or a pipeline stopped meanwhile no longer holds back the thread
+                while (mActive && mDecodeLoop != null) {
+                    Delivery delivery = mFree.poll(PARK_NANOS, TimeUnit.NANOSECONDS);
+                    if (delivery != null)
+                        return delivery;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+
+        // deliver a batch that is full or expired, unless the policy prefers to keep it
+        private void handOff() {
+            if (mOverload == Overload.DROP_OLDEST && mFree.isEmpty())
+                return;
+            if (mOverload == Overload.DECIMATE) {
+                // the listener still holds a batch when the next one is ready: it is behind
+                if (mFree.size() < BATCHES_PER_LISTENER - 1) {
+                    mStride = Math.min(mStride * 2, MAX_STRIDE);
+                } else if (mFree.size() == BATCHES_PER_LISTENER - 1) {
+                    mStride = Math.max(mStride / 2, 1);
+                }
+            }
+            flush();
+        }
+
+        private void drop(int samples) {
+            mDropped += samples;
+            mDroppedSamples.addAndGet(samples);
+        }
+
+        long flushIfExpired(long now) {
+            if (mCurrent == null || mCurrent.mBatch.isEmpty())
+                return PARK_NANOS;
+            long left = mCurrent.mBatch.getTimestamp() + mMaxDelayNanos - now;
+            if (left > 0 && !mCurrent.mBatch.isFull())
+                return left;
+            handOff();
+            return PARK_NANOS;
+        }
+
+        void flushPending() {
+            if (mCurrent != null && !mCurrent.mBatch.isEmpty()) {
+                flush();
+            }
+        }
+
+        /**
+         * Hand over the last batch and the drain callback, by the thread owning the batches.
+         */
+        void drain() {
+            Runnable whenDrained = mDrain.get();
+            if (whenDrained == null || whenDrained == DRAINED
+                    || !mDrain.compareAndSet(whenDrained, DRAINED))
+                return;
+            remove(this);
+            flushPending();
+            try {
+                mExecutor.execute(whenDrained);
+            } catch (RejectedExecutionException e) {
+                whenDrained.run();
+            }
+        }
+
+        private void flush() {
+            Delivery delivery = mCurrent;
+            mCurrent = null;
+            try {
+                mExecutor.execute(delivery);
+            } catch (RejectedExecutionException e) {
+                drop(delivery.mBatch.size());
+                delivery.recycle();
+            }
+        }
+    }
+
+    /**
+     * State of the telemetry listener, the fields are touched by the decode thread only
+     */
+    private static class TelemetrySubscription {
+        final TelemetryListener mListener;
+        final Executor mExecutor;
+        final long mIntervalNanos;
+        final int[] mFields = new int[Telemetry.MAX_FIELDS];
+        final int[] mLast = new int[Telemetry.MAX_FIELDS];
+        // -1 until the first frame, so the current values are delivered
+        int mLastCount = -1;
+        long mNextCheck;
+
+        TelemetrySubscription(TelemetryListener listener, Executor executor, long intervalNanos) {
+            mListener = listener;
+            mExecutor = executor;
+            mIntervalNanos = intervalNanos;
+            mNextCheck = System.nanoTime();
+        }
+
+        void check(FrameDecoder decoder, long now) {
+            mNextCheck = now + mIntervalNanos;
+            int count = decoder.telemetry(mFields);
+            if (count == mLastCount && equalFields(count))
+                return;
+            System.arraycopy(mFields, 0, mLast, 0, count);
+            mLastCount = count;
+            final Telemetry telemetry = new Telemetry(mFields, count, now);
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onTelemetry(telemetry);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the next check delivers the values again
+                mLastCount = -1;
+            }
+        }
+
+        private boolean equalFields(int count) {
+            for (int i = 0; i < count; i++) {
+                if (mFields[i] != mLast[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A batch on its way to the listener, given back to the free batches once delivered
+     */
+    private static class Delivery implements Runnable {
+        final Subscription mOwner;
+        final SampleBatch mBatch;
+
+        Delivery(Subscription owner, SampleBatch batch) {
+            mOwner = owner;
+            mBatch = batch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (mOwner.mActive) {
+                    mOwner.mListener.onSamples(mBatch);
+                }
+            } finally {
+                recycle();
+            }
+        }
+
+        void recycle() {
+            mBatch.clear();
+            mOwner.mFree.offer(this);
+        }
+    }
+
+    /**
+     * Loop taking the chunks from the queue and decoding them
+     */
+    private class DecodeLoop implements Runnable {
+
+        private volatile boolean mRunning = true;
+        // the thread running the loop once the previous loop finished, null before and after
+        private volatile Thread mThread;
+        // the loop to wait for, guarded by the pipeline
+        private DecodeLoop mPrevious;
+        // guarded by the pipeline
+        boolean mFinished;
+
+        DecodeLoop(DecodeLoop previous) {
+            mPrevious = previous;
+        }
+
+        @Override
+        public void run() {
+            awaitPrevious();
+            mThread = Thread.currentThread();
+            try {
+                decodeAll();
+            } finally {
+                mThread = null;
+            }
+            // hand over what is left
+            Subscription[] subscriptions = mSubscriptions;
+            for (int i = 0; i < subscriptions.length; i++) {
+                subscriptions[i].flushPending();
+            }
+            synchronized (SamplePipeline.this) {
+                // the drains asked from now on are done by the thread asking
+                mFinished = true;
+                SamplePipeline.this.notifyAll();
+                subscriptions = mSubscriptions;
+                for (int i = 0; i < subscriptions.length; i++) {
+                    subscriptions[i].drain();
+                }
+            }
+        }
+
+        // on the thread of this loop, start() never waits
+        private void awaitPrevious() {
+            boolean interrupted = false;
+            synchronized (SamplePipeline.this) {
+                while (mPrevious != null && !mPrevious.mFinished) {
+                    try {
+                        SamplePipeline.this.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                mPrevious = null;
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void decodeAll() {
+            while (mRunning || !mChunks.isEmpty()) {
+                BufferPool.Buffer chunk = mChunks.poll();
+                long now = System.nanoTime();
+                if (chunk != null) {
+                    decode(chunk, now);
+                }
+                long wait = flushExpired(now);
+                if (chunk != null)
+                    continue;
+                // announce the park before checking again, offer() unparks only waiting threads
+                mWaiting = true;
+                if (mChunks.isEmpty() && mRunning) {
+                    LockSupport.parkNanos(this, wait);
+                }
+                mWaiting = false;
+            }
+        }
+
+        void wake() {
+            Thread thread = mThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void cancel() {
+            mRunning = false;
+            wake();
+        }
+    }
+}
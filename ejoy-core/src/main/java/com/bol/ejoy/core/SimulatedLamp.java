@@ -0,0 +1,124 @@
+package com.bol.ejoy.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lamp firmware stand-in on the far end of a {@link Transport}, typically one end of a
+ * {@link PipeTransport} pair.
+ * <p>
+ * It reads the color frames, waits for the configured apply time and answers every frame with
+ * its acknowledgement, like the lamp does once the color shows. Bytes that are not a valid
+ * frame are skipped. Lets the send path and its latency measurements run without a lamp.
+ */
+public class SimulatedLamp {
+
+    private final Transport mTransport;
+    private final long mApplyNanos;
+    private volatile int mColor;
+    private volatile long mFrames;
+    private LampThread mThread;
+
+    /**
+     * @param transport   the lamp side of the connection
+     * @param applyMicros time the lamp takes to apply a color before acknowledging it
+     */
+    public SimulatedLamp(Transport transport, long applyMicros) {
+        mTransport = transport;
+        mApplyNanos = TimeUnit.MICROSECONDS.toNanos(applyMicros);
+    }
+
+    public synchronized void start() {
+        if (mThread == null) {
+            mThread = new LampThread();
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stop answering and close the transport
+     */
+    public synchronized void stop() {
+        if (mThread != null) {
+            mThread.cancel();
+            mThread = null;
+        }
+    }
+
+    /**
+     * @return the color shown, ARGB
+     */
+    public int getColor() {
+        return mColor;
+    }
+
+    /**
+     * @return the number of valid frames received
+     */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * Thread reading the frames and acknowledging them
+     */
+    private class LampThread extends Thread {
+
+        private volatile boolean mRunning = true;
+
+        public LampThread() {
+            super("SimulatedLampThread");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            byte[] frame = new byte[ColorFrame.TIMED_LENGTH];
+            byte[] ack = new byte[ColorFrame.LENGTH];
+            int length = 0;
+            try {
+                InputStream in = mTransport.getInputStream();
+                OutputStream out = mTransport.getOutputStream();
+                while (mRunning) {
+                    int b = in.read();
+                    if (b < 0)
+                        return;
+                    if (length == 0 && (byte) b != ColorFrame.START)
+                        continue;
+                    frame[length++] = (byte) b;
+                    int expected = length > 1 && frame[1] == ColorFrame.TYPE_COLOR_AT
+                            ? ColorFrame.TIMED_LENGTH : ColorFrame.LENGTH;
+                    if (length < expected)
+                        continue;
+                    length = 0;
+                    boolean valid = expected == ColorFrame.TIMED_LENGTH
+                            ? ColorFrame.isValidTimed(frame, 0, expected)
+                            : ColorFrame.isValid(frame, 0, expected);
+                    if (!valid)
+                        continue;
+                    mFrames++;
+                    if (mApplyNanos > 0) {
+                        LockSupport.parkNanos(this, mApplyNanos);
+                    }
+                    mColor = ColorFrame.getColor(frame, 0);
+                    ColorFrame.encodeAck(ack, 0, ColorFrame.getSequence(frame, 0));
+                    out.write(ack, 0, ack.length);
+                }
+            } catch (IOException e) {
+                // the transport was closed
+            }
+        }
+
+        public void cancel() {
+            mRunning = false;
+            try {
+                mTransport.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+}
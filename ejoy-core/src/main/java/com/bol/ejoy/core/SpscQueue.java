@@ -0,0 +1,82 @@
+package com.bol.ejoy.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.
+ * <p>
+ * The slots are a power-of-two array indexed by two ever-growing counters. Each side only
+ * writes its own counter and publishes it with a lazy (ordered) store, so neither
+ * {@link #offer(Object)} nor {@link #poll()} ever blocks or allocates.
+ *
+ * @param <E> the type of the elements
+ */
+public class SpscQueue<E> {
+
+    private final Object[] mSlots;
+    private final int mMask;
+    // next slot to read, written by the consumer only
+    private final AtomicLong mHead = new AtomicLong();
+    // next slot to write, written by the producer only
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * @param capacity maximum number of elements, rounded up to a power of two
+     */
+    public SpscQueue(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mSlots = new Object[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Producer side.
+     *
+     * @return false if the queue is full, the element is not added
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        long tail = mTail.get();
+        if (tail - mHead.get() == mSlots.length)
+            return false;
+        mSlots[(int) tail & mMask] = e;
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return the oldest element or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long head = mHead.get();
+        if (head == mTail.get())
+            return null;
+        int index = (int) head & mMask;
+        E e = (E) mSlots[index];
+        mSlots[index] = null;
+        mHead.lazySet(head + 1);
+        return e;
+    }
+
+    /**
+     * @return the number of elements, only an estimate while the other side is running
+     */
+    public int size() {
+        long head = mHead.get();
+        return (int) (mTail.get() - head);
+    }
+
+    public boolean isEmpty() {
+        return mTail.get() == mHead.get();
+    }
+
+    public int capacity() {
+        return mSlots.length;
+    }
+}
@@ -0,0 +1,68 @@
+package com.bol.ejoy.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * {@link Transport} over a TCP socket, typically to a device simulator on localhost, so the
+ * connection code can be load tested at data rates far above what RFCOMM allows.
+ */
+public class TcpTransport implements Transport {
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final String mHost;
+    private final int mPort;
+    private final Socket mSocket;
+
+    /**
+     * @param host the host to connect to on {@link #connect()}
+     * @param port the port
+     */
+    public TcpTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+        mSocket = new Socket();
+    }
+
+    /**
+     * @param socket an already connected socket, e.g. returned by ServerSocket.accept()
+     */
+    public TcpTransport(Socket socket) {
+        mHost = socket.getInetAddress().getHostAddress();
+        mPort = socket.getPort();
+        mSocket = socket;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (mSocket.isConnected())
+            return;
+        mSocket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+        // commands are small and latency matters more than packet count
+        mSocket.setTcpNoDelay(true);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public String getName() {
+        return "tcp://" + mHost + ":" + mPort;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
@@ -0,0 +1,72 @@
+package com.bol.ejoy.core;
+
+import java.util.Arrays;
+
+/**
+ * Battery and status reported by the board in the fields following the channels of a frame,
+ * e.g. {@code b9} in {@code "001 0a2 FFF 100 abc 7d0 000 123 b9&"}.
+ * <p>
+ * The fields are hex numbers as sent by the board: the first one is the battery reading, the
+ * second one, when present, the status flags. Immutable.
+ */
+public class Telemetry {
+
+    /**
+     * Value of a field the board did not send
+     */
+    public static final int NONE = -1;
+    /**
+     * Most trailing fields kept
+     */
+    public static final int MAX_FIELDS = 4;
+
+    private final int[] mFields;
+    private final long mTimestamp;
+
+    /**
+     * @param fields    the values of the trailing fields, copied
+     * @param count     number of fields
+     * @param timestamp System.nanoTime() of the frame
+     */
+    public Telemetry(int[] fields, int count, long timestamp) {
+        mFields = Arrays.copyOf(fields, count);
+        mTimestamp = timestamp;
+    }
+
+    /**
+     * @return the raw battery reading, {@link #NONE} if the frames carry none
+     */
+    public int getBattery() {
+        return getField(0);
+    }
+
+    /**
+     * @return the status flags, {@link #NONE} if the frames carry none
+     */
+    public int getStatus() {
+        return getField(1);
+    }
+
+    public int getFieldCount() {
+        return mFields.length;
+    }
+
+    /**
+     * @return the value of a trailing field, {@link #NONE} if missing
+     */
+    public int getField(int index) {
+        return index < mFields.length ? mFields[index] : NONE;
+    }
+
+    /**
+     * @return the System.nanoTime() of the frame the values come from
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "Telemetry" + Arrays.toString(mFields);
+    }
+}
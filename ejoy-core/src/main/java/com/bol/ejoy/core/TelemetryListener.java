@@ -0,0 +1,13 @@
+package com.bol.ejoy.core;
+
+/**
+ * Subscriber of the board telemetry, see
+ * {@link SamplePipeline#setTelemetryListener(TelemetryListener, java.util.concurrent.Executor, long)}.
+ */
+public interface TelemetryListener {
+
+    /**
+     * Called on the executor chosen when subscribing, only when a value changed.
+     */
+    void onTelemetry(Telemetry telemetry);
+}
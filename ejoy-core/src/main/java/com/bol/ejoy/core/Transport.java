@@ -0,0 +1,36 @@
+package com.bol.ejoy.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream connection to a lamp or board.
+ * <p>
+ * The Bluetooth classes only talk to the device through this interface, so the same connect,
+ * read and write code runs over RFCOMM on a phone and over {@link PipeTransport} or
+ * {@link TcpTransport} on a development machine.
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Establish the connection, blocking until it is up. Does nothing if already connected.
+     */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * @return a description of the remote end for the logs
+     */
+    String getName();
+
+    /**
+     * Close the connection, unblocking any pending connect, read or write.
+     */
+    @Override
+    void close() throws IOException;
+}
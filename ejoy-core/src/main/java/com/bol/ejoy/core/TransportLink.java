@@ -0,0 +1,244 @@
+package com.bol.ejoy.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs an established {@link Transport}: a read loop, on its own thread or on a pool such as
+ * {@link IoScheduler#READ}, hands every chunk of incoming data to a {@link Listener}, while
+ * {@link #write(byte[], int, int)} sends data from the calling thread.
+ * <p>
+ * A {@link ChunkListener} that passes the chunks on to another thread gets them in buffers of a
+ * {@link BufferPool}: the link reads right into a leased buffer and hands over the lease, no
+ * chunk is copied. While every buffer is out the reads are dropped, never allocated for.
+ * <p>
+ * It is the read and write side shared by the Bluetooth connections and the test transports.
+ */
+public class TransportLink {
+
+    /**
+     * Receives the incoming data on the read thread.
+     */
+    public interface Listener {
+        /**
+         * @param buffer the bytes read, the array is reused by the next read
+         * @param length the number of valid bytes
+         */
+        void onRead(byte[] buffer, int length);
+
+        /**
+         * The connection dropped, not called after {@link #cancel()}.
+         *
+         * @param cause what ended the read loop
+         */
+        void onDisconnected(IOException cause);
+    }
+
+    /**
+     * Receives the incoming data on the read thread, in buffers leased from a pool.
+     */
+    public interface ChunkListener {
+        /**
+         * @param chunk the bytes read, the listener owns the lease and releases it
+         */
+        void onRead(BufferPool.Buffer chunk);
+
+        /**
+         * Bytes read while every buffer of the pool was out, they are not handed over. The
+         * pool counts them in {@link BufferPool#getMisses()}.
+         *
+         * @param buffer the bytes read, the array is reused by the next dropped read
+         * @param length the number of valid bytes
+         */
+        void onDropped(byte[] buffer, int length);
+
+        /**
+         * The connection dropped, not called after {@link #cancel()}.
+         *
+         * @param cause what ended the read loop
+         */
+        void onDisconnected(IOException cause);
+    }
+
+    /**
+     * Largest chunk given to {@link Listener#onRead(byte[], int)}, the buffers of the pool of a
+     * {@link ChunkListener} are usually this long
+     */
+    public static final int READ_BUFFER_SIZE = 1024;
+
+    private final Transport mTransport;
+    // one of them is null
+    private final Listener mListener;
+    private final ChunkListener mChunkListener;
+    // the buffers read into for the chunk listener
+    private final BufferPool mPool;
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final Object mWriteLock = new Object();
+    // null to read on a thread of the link
+    private final Executor mExecutor;
+    private volatile boolean mCancelled;
+
+    /**
+     * @param transport a connected transport
+     * @param listener  receives the incoming data
+     */
+    public TransportLink(Transport transport, Listener listener) throws IOException {
+        this(transport, listener, null);
+    }
+
+    /**
+     * @param transport a connected transport
+     * @param listener  receives the incoming data
+     * @param executor  runs the read loop, which holds one of its threads until the transport
+     *                  is closed; null for a thread of the link
+     */
+    public TransportLink(Transport transport, Listener listener, Executor executor)
+            throws IOException {
+        this(transport, listener, null, null, executor);
+    }
+
+    /**
+     * @param transport a connected transport
+     * @param listener  receives the incoming data with the leases
+     * @param pool      the buffers read into
+     * @param executor  runs the read loop, which holds one of its threads until the transport
+     *                  is closed; null for a thread of the link
+     */
+    public TransportLink(Transport transport, ChunkListener listener, BufferPool pool,
+                         Executor executor) throws IOException {
+        this(transport, null, listener, pool, executor);
+        if (listener == null || pool == null)
+            throw new IllegalArgumentException("a chunk listener needs a pool");
+    }
+
+    private TransportLink(Transport transport, Listener listener, ChunkListener chunkListener,
+                          BufferPool pool, Executor executor) throws IOException {
+        mTransport = transport;
+        mListener = listener;
+        mChunkListener = chunkListener;
+        mPool = pool;
+        mIn = transport.getInputStream();
+        mOut = transport.getOutputStream();
+        mExecutor = executor;
+    }
+
+    /**
+     * Start reading
+     */
+    public void start() {
+        ReadLoop loop = new ReadLoop();
+        if (mExecutor != null) {
+            mExecutor.execute(loop);
+        } else {
+            new Thread(loop, "TransportLink " + mTransport.getName()).start();
+        }
+    }
+
+    /**
+     * Write to the transport, concurrent writers are serialized.
+     */
+    public void write(byte[] buffer, int off, int len) throws IOException {
+        synchronized (mWriteLock) {
+            mOut.write(buffer, off, len);
+        }
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Close the transport, which ends the read loop: a blocked read returns only when its
+     * stream is closed.
+     */
+    public void cancel() {
+        mCancelled = true;
+        try {
+            mTransport.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+
+    /**
+     * Loop reading the transport until it is closed
+     */
+    private class ReadLoop implements Runnable {
+
+        @Override
+        public void run() {
+            IOException cause = mPool != null ? readLeased() : readReused();
+            if (!mCancelled) {
+                if (mListener != null) {
+                    mListener.onDisconnected(cause);
+                } else {
+                    mChunkListener.onDisconnected(cause);
+                }
+            }
+        }
+
+        /**
+         * @return what ended the loop
+         */
+        private IOException readReused() {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            while (true) {
+                try {
+                    int bytes = mIn.read(buffer);
+                    if (bytes < 0)
+                        return new EOFException("end of stream");
+                    if (bytes > 0) {
+                        mListener.onRead(buffer, bytes);
+                    }
+                } catch (IOException e) {
+                    return e;
+                }
+            }
+        }
+
+        /**
+         * @return what ended the loop
+         */
+        private IOException readLeased() {
+            // read into while every buffer is out, allocated the first time it happens
+            byte[] dropped = null;
+            while (true) {
+                BufferPool.Buffer chunk = mPool.tryLease();
+                byte[] buffer;
+                if (chunk != null) {
+                    buffer = chunk.array();
+                } else {
+                    if (dropped == null) {
+                        dropped = new byte[mPool.getBufferSize()];
+                    }
+                    buffer = dropped;
+                }
+                int bytes;
+                try {
+                    bytes = mIn.read(buffer);
+                } catch (IOException e) {
+                    if (chunk != null) {
+                        chunk.release();
+                    }
+                    return e;
+                }
+                if (chunk == null) {
+                    if (bytes > 0) {
+                        mChunkListener.onDropped(buffer, bytes);
+                    }
+                } else if (bytes > 0) {
+                    chunk.setLength(bytes);
+                    mChunkListener.onRead(chunk);
+                } else {
+                    chunk.release();
+                }
+                if (bytes < 0)
+                    return new EOFException("end of stream");
+            }
+        }
+    }
+}
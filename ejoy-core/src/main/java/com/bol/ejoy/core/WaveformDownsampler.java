@@ -0,0 +1,222 @@
+package com.bol.ejoy.core;
+
+/**
+ * Reduces the samples of every channel to one bucket per pixel of a waveform view.
+ * <p>
+ * The view shows the last {@code width * samplesPerBucket} samples. Every bucket keeps either
+ * the envelope of its samples ({@link #MIN_MAX}, a vertical line per pixel) or the one sample
+ * chosen by Largest-Triangle-Three-Buckets ({@link #LTTB}, a polyline that keeps the shape of
+ * the peaks). The buckets are updated as the samples arrive, in arrays allocated once, and a
+ * frame copies at most {@code width} values per channel: drawing costs the same whatever the
+ * sample rate.
+ * <p>
+ * Subscribe it to a {@link SamplePipeline} and read the buckets from the UI thread with
+ * {@link #read(int, int[], int[])}, both sides synchronize on the downsampler.
+ */
+public class WaveformDownsampler implements SampleListener {
+
+    /**
+     * Minimum and maximum of every bucket
+     */
+    public static final int MIN_MAX = 0;
+    /**
+     * One sample per bucket, the one making the largest triangle with the sample chosen in
+     * the previous bucket and the mean of the next bucket. A bucket is chosen once the next
+     * one is complete, the curve is one bucket behind the envelope.
+     */
+    public static final int LTTB = 1;
+
+    private final int mChannels;
+    private final int mWidth;
+    private final int mSamplesPerBucket;
+    private final int mMode;
+    // buckets per channel in a ring, mHead is the oldest once mCount reached mWidth
+    private final int[][] mFirst;
+    private final int[][] mSecond;
+    private int mHead;
+    private int mCount;
+
+    // bucket being filled, one row per channel
+    private final int[][] mCurrent;
+    private int mFill;
+    // LTTB: the complete bucket waiting for the mean of the next one, and the last sample chosen
+    private final int[][] mPrevious;
+    private boolean mHasPrevious;
+    private final double[] mChosenX;
+    private final double[] mChosenY;
+    private long mBucketStart;
+
+    private final int[] mSample;
+
+    /**
+     * @param channels         number of channels of the samples
+     * @param width            number of buckets, the width of the view in pixels
+     * @param samplesPerBucket samples shown by a pixel, e.g. the samples of the time shown
+     *                         divided by the width
+     * @param mode             {@link #MIN_MAX} or {@link #LTTB}
+     */
+    public WaveformDownsampler(int channels, int width, int samplesPerBucket, int mode) {
+        if (width < 1 || samplesPerBucket < 1)
+            throw new IllegalArgumentException("width and samplesPerBucket must be positive");
+        if (mode != MIN_MAX && mode != LTTB)
+            throw new IllegalArgumentException("unknown mode: " + mode);
+        mChannels = channels;
+        mWidth = width;
+        mSamplesPerBucket = samplesPerBucket;
+        mMode = mode;
+        mFirst = new int[channels][width];
+        mSecond = mode == MIN_MAX ? new int[channels][width] : null;
+        mCurrent = new int[channels][samplesPerBucket];
+        mPrevious = mode == LTTB ? new int[channels][samplesPerBucket] : null;
+        mChosenX = new double[channels];
+        mChosenY = new double[channels];
+        mSample = new int[channels];
+    }
+
+    @Override
+    public synchronized void onSamples(SampleBatch batch) {
+        int size = batch.size();
+        for (int i = 0; i < size; i++) {
+            batch.getSample(i, mSample);
+            add(mSample);
+        }
+    }
+
+    /**
+     * Add one sample, one value per channel
+     */
+    public synchronized void add(int[] sample) {
+        for (int c = 0; c < mChannels; c++) {
+            mCurrent[c][mFill] = sample[c];
+        }
+        if (++mFill < mSamplesPerBucket)
+            return;
+        mFill = 0;
+        if (mMode == MIN_MAX) {
+            closeMinMax();
+        } else {
+            closeLttb();
+        }
+        mBucketStart += mSamplesPerBucket;
+    }
+
+    private void closeMinMax() {
+        int slot = nextSlot();
+        for (int c = 0; c < mChannels; c++) {
+            int[] values = mCurrent[c];
+            int min = values[0];
+            int max = values[0];
+            for (int i = 1; i < mSamplesPerBucket; i++) {
+                int v = values[i];
+                if (v < min)
+                    min = v;
+                if (v > max)
+                    max = v;
+            }
+            mFirst[c][slot] = min;
+            mSecond[c][slot] = max;
+        }
+    }
+
+    private void closeLttb() {
+        if (!mHasPrevious) {
+            // the first bucket has no predecessor, its first sample starts the curve
+            for (int c = 0; c < mChannels; c++) {
+                mChosenX[c] = mBucketStart;
+                mChosenY[c] = mCurrent[c][0];
+            }
+            swapBuckets();
+            mHasPrevious = true;
+            return;
+        }
+        int slot = nextSlot();
+        long previousStart = mBucketStart - mSamplesPerBucket;
+        double meanX = mBucketStart + (mSamplesPerBucket - 1) / 2.0;
+        for (int c = 0; c < mChannels; c++) {
+            long sum = 0;
+            int[] next = mCurrent[c];
+            for (int i = 0; i < mSamplesPerBucket; i++) {
+                sum += next[i];
+            }
+            double meanY = (double) sum / mSamplesPerBucket;
+            double ax = mChosenX[c];
+            double ay = mChosenY[c];
+            int[] values = mPrevious[c];
+            int best = 0;
+            double bestArea = -1;
+            for (int i = 0; i < mSamplesPerBucket; i++) {
+                // twice the area of the triangle, the factor does not change the choice
+                double area = Math.abs((ax - meanX) * (values[i] - ay)
+                        - (ax - (previousStart + i)) * (meanY - ay));
+                if (area > bestArea) {
+                    bestArea = area;
+                    best = i;
+                }
+            }
+            mFirst[c][slot] = values[best];
+            mChosenX[c] = previousStart + best;
+            mChosenY[c] = values[best];
+        }
+        swapBuckets();
+    }
+
+    // the complete bucket becomes the previous one, its rows are reused for the next bucket
+    private void swapBuckets() {
+        for (int c = 0; c < mChannels; c++) {
+            int[] row = mPrevious[c];
+            mPrevious[c] = mCurrent[c];
+            mCurrent[c] = row;
+        }
+    }
+
+    // slot of the bucket closed now, the oldest one is dropped once the ring is full
+    private int nextSlot() {
+        int slot;
+        if (mCount < mWidth) {
+            slot = (mHead + mCount) % mWidth;
+            mCount++;
+        } else {
+            slot = mHead;
+            mHead = (mHead + 1) % mWidth;
+        }
+        return slot;
+    }
+
+    /**
+     * Copy the buckets of a channel, oldest first.
+     *
+     * @param first  receives the minimum of the buckets, or the chosen samples for LTTB; at
+     *               least width long
+     * @param second receives the maximum of the buckets, ignored for LTTB
+     * @return the number of buckets copied, less than the width until the view is full
+     */
+    public synchronized int read(int channel, int[] first, int[] second) {
+        int tail = Math.min(mCount, mWidth - mHead);
+        System.arraycopy(mFirst[channel], mHead, first, 0, tail);
+        System.arraycopy(mFirst[channel], 0, first, tail, mCount - tail);
+        if (mMode == MIN_MAX) {
+            System.arraycopy(mSecond[channel], mHead, second, 0, tail);
+            System.arraycopy(mSecond[channel], 0, second, tail, mCount - tail);
+        }
+        return mCount;
+    }
+
+    /**
+     * Forget the samples, e.g. when the device changes
+     */
+    public synchronized void clear() {
+        mHead = 0;
+        mCount = 0;
+        mFill = 0;
+        mHasPrevious = false;
+        mBucketStart = 0;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+}
@@ -0,0 +1,102 @@
+package com.bol.ejoy.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds a trace captured with {@link WireTraceWriter} back through a {@link SamplePipeline},
+ * so the decoding and the listeners see exactly the chunks the device sent.
+ * <p>
+ * Chunks are never dropped during a replay, when the pipeline queue is full the replay waits,
+ * so replaying the same trace always produces the same samples. Run from a plain JVM with
+ * <pre>
+ *   java com.bol.ejoy.core.WireReplay trace.ejtr [--realtime] [--repeat N]
+ * </pre>
+ * it prints the decoding throughput.
+ */
+public class WireReplay {
+
+    private WireReplay() {
+    }
+
+    /**
+     * Replay a whole trace, the pipeline must be started and have no other producer.
+     *
+     * @param realTime true to respect the recorded delays, false to go as fast as possible
+     * @return the number of chunks replayed
+     */
+    public static long replay(WireTraceReader trace, SamplePipeline pipeline, boolean realTime)
+            throws IOException, InterruptedException {
+        long chunks = 0;
+        long due = System.nanoTime();
+        while (trace.next()) {
+            // checked for every chunk, a cancelled replay must stop producing before another
+            // producer takes over the pipeline
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (realTime) {
+                due += trace.getDelay();
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+                }
+            }
+            byte[] chunk = new byte[trace.getLength()];
+            System.arraycopy(trace.getData(), 0, chunk, 0, chunk.length);
+            pipeline.put(chunk);
+            chunks++;
+        }
+        return chunks;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: WireReplay <trace> [--realtime] [--repeat N]");
+            System.exit(1);
+        }
+        File file = new File(args[0]);
+        boolean realTime = false;
+        int repeat = 1;
+        for (int i = 1; i < args.length; i++) {
+            if ("--realtime".equals(args[i])) {
+                realTime = true;
+            } else if ("--repeat".equals(args[i]) && i + 1 < args.length) {
+                repeat = Integer.parseInt(args[++i]);
+            }
+        }
+
+        final AtomicLong samples = new AtomicLong();
+        SamplePipeline pipeline = new SamplePipeline();
+        pipeline.addSampleListener(new SampleListener() {
+            @Override
+            public void onSamples(SampleBatch batch) {
+                samples.addAndGet(batch.size());
+            }
+        }, SamplePipeline.DIRECT, 256, 100);
+        pipeline.start();
+
+        long chunks = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < repeat; r++) {
+            WireTraceReader trace = new WireTraceReader(file);
+            try {
+                chunks += replay(trace, pipeline, realTime);
+            } finally {
+                trace.close();
+            }
+        }
+        pipeline.stop();
+        pipeline.awaitTermination(10000);
+        long elapsed = System.nanoTime() - start;
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("%d chunks, %d frames in %.1f ms: %.0f frames/s, %d dropped frames%n",
+                chunks, samples.get(), TimeUnit.NANOSECONDS.toMicros(elapsed) / 1000.0,
+                samples.get() / seconds, pipeline.getDroppedFrames());
+    }
+}
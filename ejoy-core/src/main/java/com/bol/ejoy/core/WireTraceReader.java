@@ -0,0 +1,104 @@
+package com.bol.ejoy.core;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the traces written by {@link WireTraceWriter}, one chunk at a time.
+ */
+public class WireTraceReader implements Closeable {
+
+    private final DataInputStream mIn;
+    private final long mStartTime;
+    private byte[] mData = new byte[1024];
+    private int mLength;
+    private long mDelay;
+
+    public WireTraceReader(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    public WireTraceReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        if (mIn.readInt() != WireTraceWriter.MAGIC)
+            throw new IOException("not a wire trace");
+        short version = mIn.readShort();
+        if (version != WireTraceWriter.VERSION)
+            throw new IOException("unsupported wire trace version " + version);
+        mStartTime = mIn.readLong();
+    }
+
+    /**
+     * @return the start of the capture in milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * Read the next chunk.
+     *
+     * @return false at the end of the trace
+     */
+    public boolean next() throws IOException {
+        int first = mIn.read();
+        if (first < 0)
+            return false;
+        mDelay = readVarint(first);
+        long length = readVarint(mIn.readUnsignedByte());
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("corrupted record, length " + length);
+        mLength = (int) length;
+        if (mData.length < mLength) {
+            mData = new byte[Math.max(mLength, mData.length * 2)];
+        }
+        mIn.readFully(mData, 0, mLength);
+        return true;
+    }
+
+    /**
+     * @return the nanoseconds between the previous chunk and the current one
+     */
+    public long getDelay() {
+        return mDelay;
+    }
+
+    /**
+     * @return the bytes of the current chunk, only the first {@link #getLength()} are valid and
+     * the array is reused by {@link #next()}
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private long readVarint(int first) throws IOException {
+        long value = first & 0x7f;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            if (shift > 63)
+                throw new IOException("corrupted varint");
+            b = mIn.read();
+            if (b < 0)
+                throw new EOFException();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,81 @@
+package com.bol.ejoy.core;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Captures the raw chunks read from a connection, with their timing, so a session can be
+ * replayed later with {@link WireReplay}.
+ * <p>
+ * The trace starts with a header:
+ * <pre>
+ *   int   magic "EJTR"
+ *   short version
+ *   long  start time, milliseconds since the epoch
+ * </pre>
+ * followed by one record per chunk: the nanoseconds since the previous record and the length
+ * of the chunk as unsigned varints, then the bytes of the chunk. A record costs 3 or 4 bytes
+ * on top of the data.
+ */
+public class WireTraceWriter implements Closeable {
+
+    public static final int MAGIC = 0x454a5452; // "EJTR"
+    public static final short VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream mOut;
+    private long mLast;
+    private long mRecords;
+
+    public WireTraceWriter(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    public WireTraceWriter(OutputStream out) throws IOException {
+        mOut = new BufferedOutputStream(out, BUFFER_SIZE);
+        DataOutputStream header = new DataOutputStream(mOut);
+        header.writeInt(MAGIC);
+        header.writeShort(VERSION);
+        header.writeLong(System.currentTimeMillis());
+        mLast = System.nanoTime();
+    }
+
+    /**
+     * Append a chunk stamped with the current time. It can be called from any thread, the
+     * records of concurrent callers are serialized.
+     */
+    public synchronized void record(byte[] data, int off, int len) throws IOException {
+        long now = System.nanoTime();
+        writeVarint(now - mLast);
+        writeVarint(len);
+        mOut.write(data, off, len);
+        mLast = now;
+        mRecords++;
+    }
+
+    /**
+     * @return the number of chunks recorded so far
+     */
+    public synchronized long getRecordCount() {
+        return mRecords;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mOut.close();
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            mOut.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mOut.write((int) value);
+    }
+}
@@ -0,0 +1,168 @@
+package com.bol.ejoy.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads back the recordings written by {@link ZecgWriter}, one chunk at a time, plain or
+ * compressed.
+ */
+public class ZecgReader implements Closeable {
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mMapped;
+    private final int mChannels;
+    private final int mSampleRate;
+    private final int mSamplesPerChunk;
+    private final long mStartTime;
+    private final int mChunkSize;
+    private final boolean mCompressed;
+    private final int[] mSample;
+    // payload of a compressed chunk, copied out of the mapping to be decoded
+    private final byte[] mPayload;
+
+    public ZecgReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = mFile.getChannel();
+            mMapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mMapped.remaining() < ZecgWriter.HEADER_SIZE || mMapped.getInt() != ZecgWriter.MAGIC)
+                throw new IOException("not a ZECG recording: " + file);
+            short version = mMapped.getShort();
+            if (version != ZecgWriter.VERSION && version != ZecgWriter.VERSION_COMPRESSED)
+                throw new IOException("unsupported ZECG version " + version);
+            mCompressed = version == ZecgWriter.VERSION_COMPRESSED;
+            mChannels = mMapped.getShort();
+            mSampleRate = mMapped.getInt();
+            mSamplesPerChunk = mMapped.getInt();
+            mStartTime = mMapped.getLong();
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mMapped.position(ZecgWriter.HEADER_SIZE);
+        mChunkSize = ZecgWriter.chunkSize(mChannels, mSamplesPerChunk);
+        mSample = new int[mChannels];
+        mPayload = mCompressed ? new byte[DeltaCodec.maxEncodedSize(mChannels, mSamplesPerChunk)] : null;
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getSamplesPerChunk() {
+        return mSamplesPerChunk;
+    }
+
+    /**
+     * @return the start of the recording in milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public boolean isCompressed() {
+        return mCompressed;
+    }
+
+    /**
+     * @return the number of complete chunks in the file, the chunk headers of a compressed
+     * recording are walked through
+     */
+    public int getChunkCount() {
+        if (!mCompressed)
+            return (mMapped.limit() - ZecgWriter.HEADER_SIZE) / mChunkSize;
+        int chunks = 0;
+        int position = ZecgWriter.HEADER_SIZE;
+        int limit = mMapped.limit();
+        while (limit - position >= ZecgWriter.COMPRESSED_CHUNK_HEADER_SIZE) {
+            int count = mMapped.getInt(position + 8);
+            int length = mMapped.getInt(position + 12);
+            position += ZecgWriter.COMPRESSED_CHUNK_HEADER_SIZE + length;
+            if (count <= 0 || length < 0 || position > limit)
+                break;
+            chunks++;
+        }
+        return chunks;
+    }
+
+    /**
+     * Decode the next chunk. The batch is cleared first, it should hold at least
+     * {@link #getSamplesPerChunk()} samples, and its timestamp is set to the nanoseconds since
+     * the start of the recording of the first sample.
+     *
+     * @return false at the end of the file
+     */
+    public boolean readChunk(SampleBatch batch) throws IOException {
+        if (mCompressed)
+            return readCompressedChunk(batch);
+        if (mMapped.remaining() < mChunkSize)
+            return false;
+        int start = mMapped.position();
+        batch.clear();
+        batch.setTimestamp(mMapped.getLong());
+        int count = mMapped.getInt();
+        if (count < 0 || count > mSamplesPerChunk)
+            throw new IOException("corrupted chunk at " + start);
+
+        int c = 0;
+        int remaining = count * mChannels;
+        while (remaining > 0) {
+            int b0 = mMapped.get() & 0xff;
+            int b1 = mMapped.get() & 0xff;
+            mSample[c] = b0 << 4 | b1 >> 4;
+            if (++c == mChannels) {
+                batch.add(mSample);
+                c = 0;
+            }
+            if (--remaining == 0)
+                break;
+            int b2 = mMapped.get() & 0xff;
+            mSample[c] = (b1 & 0xf) << 8 | b2;
+            if (++c == mChannels) {
+                batch.add(mSample);
+                c = 0;
+            }
+            remaining--;
+        }
+        mMapped.position(start + mChunkSize);
+        return true;
+    }
+
+    private boolean readCompressedChunk(SampleBatch batch) throws IOException {
+        if (mMapped.remaining() < ZecgWriter.COMPRESSED_CHUNK_HEADER_SIZE)
+            return false;
+        int start = mMapped.position();
+        long timestamp = mMapped.getLong();
+        int count = mMapped.getInt();
+        int length = mMapped.getInt();
+        if (count < 0 || count > mSamplesPerChunk || length < 0 || length > mPayload.length)
+            throw new IOException("corrupted chunk at " + start);
+        if (count == 0 || mMapped.remaining() < length) {
+            // the zeros of the mapping or a chunk cut short, the recording was not closed
+            mMapped.position(start);
+            return false;
+        }
+        mMapped.get(mPayload, 0, length);
+        try {
+            DeltaCodec.decode(mPayload, 0, count, batch);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("corrupted chunk at " + start, e);
+        }
+        batch.setTimestamp(timestamp);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,261 @@
+package com.bol.ejoy.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes ZECG recordings in a compact binary format through a memory mapped file.
+ * <p>
+ * The file starts with a {@link #HEADER_SIZE} bytes big endian header:
+ * <pre>
+ *   int   magic "ZECG"
+ *   short version
+ *   short channel count
+ *   int   sample rate in Hz, the nominal rate of the board
+ *   int   samples per chunk
+ *   long  start time, milliseconds since the epoch
+ *   (padding up to HEADER_SIZE)
+ * </pre>
+ * followed by fixed size chunks:
+ * <pre>
+ *   long  nanoseconds since the start of the recording of the first sample of the chunk
+ *   int   number of samples in the chunk, less than samples per chunk only for the last one
+ *   the samples, channel values interleaved and packed two 12 bit values every 3 bytes
+ * </pre>
+ * A 12 bit value takes 1.5 bytes instead of the 4 characters of the text frames, and a whole
+ * batch is packed and copied in one go.
+ * <p>
+ * A compressed recording is {@link #VERSION_COMPRESSED}: its chunks are a long timestamp, an int
+ * number of samples, an int payload size and the samples encoded by {@link DeltaCodec}, so the
+ * chunks vary in size.
+ * <p>
+ * The writer is not thread safe, it is meant to be subscribed with its own single thread
+ * executor with
+ * {@link SamplePipeline#addSampleListener(SampleListener, java.util.concurrent.Executor, int, long)}.
+ */
+public class ZecgWriter implements SampleListener, Closeable {
+
+    public static final int MAGIC = 0x5a454347; // "ZECG"
+    public static final short VERSION = 1;
+    public static final short VERSION_COMPRESSED = 2;
+    public static final int HEADER_SIZE = 32;
+    public static final int CHUNK_HEADER_SIZE = 12;
+    public static final int COMPRESSED_CHUNK_HEADER_SIZE = 16;
+
+    // how many chunks are mapped at once
+    private static final int CHUNKS_PER_MAPPING = 64;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mChannels;
+    private final int mSamplesPerChunk;
+    private final int mChunkSize;
+    private final long mStartNanos;
+    private final long mPeriodNanos;
+    private final boolean mCompressed;
+    // samples of the chunk being filled, compressed recordings only
+    private final SampleBatch mBatch;
+    private final int[] mSample;
+
+    // values of the chunk being filled, interleaved
+    private final int[] mValues;
+    private final byte[] mPacked;
+    private int mPending;
+    private long mChunkTimestamp;
+    private long mChunks;
+
+    private MappedByteBuffer mMapped;
+    private long mMappedPosition;
+    private IOException mError;
+
+    /**
+     * Create the file, or truncate it if it exists, and write the header.
+     *
+     * @param file            the recording
+     * @param channels        number of channels of every sample
+     * @param sampleRate      nominal sample rate in Hz, stored in the header
+     * @param samplesPerChunk number of samples of every chunk
+     */
+    public ZecgWriter(File file, int channels, int sampleRate, int samplesPerChunk) throws IOException {
+        this(file, channels, sampleRate, samplesPerChunk, false);
+    }
+
+    /**
+     * Create the file, or truncate it if it exists, and write the header.
+     *
+     * @param file            the recording
+     * @param channels        number of channels of every sample
+     * @param sampleRate      nominal sample rate in Hz, stored in the header
+     * @param samplesPerChunk number of samples of every chunk
+     * @param compressed      true to write the chunks with {@link DeltaCodec}
+     */
+    public ZecgWriter(File file, int channels, int sampleRate, int samplesPerChunk,
+                      boolean compressed) throws IOException {
+        mChannels = channels;
+        mSamplesPerChunk = samplesPerChunk;
+        mCompressed = compressed;
+        if (compressed) {
+            // the largest chunk, the mappings must have room for it
+            mChunkSize = COMPRESSED_CHUNK_HEADER_SIZE
+                    + DeltaCodec.maxEncodedSize(channels, samplesPerChunk);
+            mValues = null;
+            mPacked = new byte[mChunkSize - COMPRESSED_CHUNK_HEADER_SIZE];
+            mBatch = new SampleBatch(channels, samplesPerChunk);
+        } else {
+            mChunkSize = chunkSize(channels, samplesPerChunk);
+            mValues = new int[channels * samplesPerChunk];
+            mPacked = new byte[mChunkSize - CHUNK_HEADER_SIZE];
+            mBatch = null;
+        }
+        mSample = new int[channels];
+        mStartNanos = System.nanoTime();
+        mPeriodNanos = TimeUnit.SECONDS.toNanos(1) / sampleRate;
+
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC)
+                .putShort(compressed ? VERSION_COMPRESSED : VERSION)
+                .putShort((short) channels)
+                .putInt(sampleRate)
+                .putInt(samplesPerChunk)
+                .putLong(System.currentTimeMillis());
+        header.clear();
+        mChannel.write(header, 0);
+    }
+
+    /**
+     * @return the size in bytes of a chunk of the given geometry
+     */
+    public static int chunkSize(int channels, int samplesPerChunk) {
+        return CHUNK_HEADER_SIZE + (channels * samplesPerChunk * 12 + 7) / 8;
+    }
+
+    /**
+     * Append the samples of a batch. A chunk starting at the sample i of a batch is stamped with
+     * the time of the batch plus i nominal sample periods.
+     */
+    public void write(SampleBatch batch) throws IOException {
+        int size = batch.size();
+        for (int i = 0; i < size; i++) {
+            if (mPending == 0) {
+                mChunkTimestamp = batch.getTimestamp() + i * mPeriodNanos - mStartNanos;
+            }
+            if (mCompressed) {
+                batch.getSample(i, mSample);
+                mBatch.add(mSample);
+                if (++mPending == mSamplesPerChunk) {
+                    writeChunk();
+                }
+                continue;
+            }
+            int base = mPending * mChannels;
+            for (int c = 0; c < mChannels; c++) {
+                mValues[base + c] = batch.get(c, i) & 0xfff;
+            }
+            if (++mPending == mSamplesPerChunk) {
+                writeChunk();
+            }
+        }
+    }
+
+    /**
+     * {@link SampleListener} entry point, an I/O error stops the recording and is kept for
+     * {@link #getError()}.
+     */
+    @Override
+    public void onSamples(SampleBatch batch) {
+        if (mError != null)
+            return;
+        try {
+            write(batch);
+        } catch (IOException e) {
+            mError = e;
+        }
+    }
+
+    /**
+     * @return the error that stopped the recording, null if none
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * @return the number of chunks written so far
+     */
+    public long getChunkCount() {
+        return mChunks;
+    }
+
+    /**
+     * Write the last partial chunk, cut the file to its real length and close it.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mPending > 0 && mError == null) {
+                writeChunk();
+            }
+            long end = HEADER_SIZE;
+            if (mMapped != null) {
+                mMapped.force();
+                end = mMappedPosition + mMapped.position();
+                mMapped = null;
+            }
+            mChannel.truncate(end);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        if (mMapped == null || mMapped.remaining() < mChunkSize) {
+            long position = mMapped == null ? HEADER_SIZE : mMappedPosition + mMapped.position();
+            mMapped = mChannel.map(FileChannel.MapMode.READ_WRITE, position,
+                    (long) mChunkSize * CHUNKS_PER_MAPPING);
+            mMappedPosition = position;
+        }
+
+        if (mCompressed) {
+            int length = DeltaCodec.encode(mBatch, mPacked, 0);
+            mMapped.putLong(mChunkTimestamp).putInt(mPending).putInt(length).put(mPacked, 0, length);
+            mBatch.clear();
+            mPending = 0;
+            mChunks++;
+            return;
+        }
+        int count = mPending * mChannels;
+        int n = mValues.length;
+        // the tail of a partial chunk is written as zeros
+        for (int i = count; i < n; i++) {
+            mValues[i] = 0;
+        }
+        int p = 0;
+        int i = 0;
+        for (; i + 1 < n; i += 2) {
+            int a = mValues[i];
+            int b = mValues[i + 1];
+            mPacked[p++] = (byte) (a >> 4);
+            mPacked[p++] = (byte) (a << 4 | b >> 8);
+            mPacked[p++] = (byte) b;
+        }
+        if (i < n) {
+            int a = mValues[i];
+            mPacked[p++] = (byte) (a >> 4);
+            mPacked[p] = (byte) (a << 4);
+        }
+
+        mMapped.putLong(mChunkTimestamp).putInt(mPending).put(mPacked);
+        mPending = 0;
+        mChunks++;
+    }
+}
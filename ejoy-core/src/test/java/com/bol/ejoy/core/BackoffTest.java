@@ -0,0 +1,26 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BackoffTest {
+
+    @Test
+    public void growsWithJitterUpToTheMaximum() throws Exception {
+        Backoff backoff = new Backoff(100, 1000, new Random(42));
+        assertEquals(0, backoff.nextDelay());
+        long[] ceilings = {100, 200, 400, 800, 1000, 1000, 1000};
+        for (long ceiling : ceilings) {
+            long delay = backoff.nextDelay();
+            assertTrue(delay + " for " + ceiling, delay >= ceiling / 2 && delay <= ceiling);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(backoff.nextDelay() <= 1000);
+        }
+        backoff.reset();
+        assertEquals(0, backoff.nextDelay());
+    }
+}
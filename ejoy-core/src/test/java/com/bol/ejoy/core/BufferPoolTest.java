@@ -0,0 +1,52 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void leasesAndReturnsBuffers() throws Exception {
+        BufferPool pool = new BufferPool(2, 16);
+        BufferPool.Buffer a = pool.lease();
+        a.put("abc".getBytes("US-ASCII"), 0, 3);
+        assertEquals(3, a.length());
+        BufferPool.Buffer b = pool.lease();
+        assertEquals(0, pool.getAvailable());
+        // an empty pool allocates instead of blocking the reader
+        BufferPool.Buffer c = pool.lease();
+        assertEquals(1, pool.getMisses());
+
+        a.retain();
+        a.release();
+        assertEquals(0, pool.getAvailable());
+        a.release();
+        assertEquals(1, pool.getAvailable());
+        b.release();
+        c.release();
+        // the pool keeps only its own number of buffers
+        assertEquals(2, pool.getAvailable());
+        try {
+            c.release();
+            fail("released twice");
+        } catch (IllegalStateException expected) {
+        }
+
+        BufferPool.Buffer d = pool.lease();
+        assertSame(a, d);
+        assertEquals(0, d.length());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void tryLeaseNeverAllocates() {
+        BufferPool pool = new BufferPool(1, 8);
+        BufferPool.Buffer a = pool.tryLease();
+        assertNotNull(a);
+        assertNull(pool.tryLease());
+        assertEquals(1, pool.getMisses());
+        a.release();
+        assertSame(a, pool.tryLease());
+    }
+}
@@ -0,0 +1,82 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ColorLatencyTest {
+
+    @Test
+    public void measuresEveryStageAgainstASimulatedLamp() throws Exception {
+        PipeTransport[] pair = PipeTransport.createPair(1024);
+        SimulatedLamp lamp = new SimulatedLamp(pair[1], 2000);
+        lamp.start();
+        final TransportLink[] link = new TransportLink[1];
+        final CommandWindow window = new CommandWindow(new CommandWindow.Sink() {
+            @Override
+            public void write(byte[] buffer, int off, int len) throws IOException {
+                link[0].write(buffer, off, len);
+            }
+        }, 4, 1000, 2);
+        link[0] = new TransportLink(pair[0], new TransportLink.Listener() {
+            @Override
+            public void onRead(byte[] buffer, int length) {
+                window.onReceived(buffer, 0, length);
+            }
+
+            @Override
+            public void onDisconnected(IOException cause) {
+            }
+        });
+        Metrics metrics = new Metrics();
+        metrics.setEnabled(true);
+        final ColorLatency latency = new ColorLatency(metrics, "latency.");
+        window.setListener(latency);
+        window.start();
+        link[0].start();
+
+        final ColorSender[] sender = new ColorSender[1];
+        sender[0] = new ColorSender(new ColorSender.Sink() {
+            @Override
+            public void sendColor(int color) throws IOException {
+                long dequeuedAt = System.nanoTime();
+                try {
+                    latency.onSent(window.sendColor(color), sender[0].getPickedAt(), dequeuedAt);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }, 100);
+        sender[0].start();
+        for (int i = 0; i < 20; i++) {
+            sender[0].setColor(0xff000000 | i);
+            Thread.sleep(15);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (latency.getTotal().getCount() < sender[0].getSentCount()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        long sent = sender[0].getSentCount();
+        assertTrue(sent > 0);
+        assertEquals(sent, latency.getQueue().getCount());
+        assertEquals(sent, latency.getWrite().getCount());
+        assertEquals(sent, latency.getAck().getCount());
+        assertEquals(sent, latency.getTotal().getCount());
+        // the lamp takes 2 ms to apply every color
+        assertTrue(latency.getAck().getPercentile(0.5) >= TimeUnit.MILLISECONDS.toNanos(2));
+        assertTrue(latency.getTotal().getMax() >= latency.getAck().getMax());
+        String dump = metrics.dump();
+        assertTrue(dump, dump.contains("latency.queue_nanos count=" + sent));
+        assertTrue(dump, dump.contains("latency.total_nanos count=" + sent));
+
+        sender[0].stop();
+        window.stop();
+        link[0].cancel();
+        lamp.stop();
+    }
+}
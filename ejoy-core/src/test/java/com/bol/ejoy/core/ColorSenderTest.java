@@ -0,0 +1,76 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ColorSenderTest {
+
+    @Test
+    public void sendsOnlyTheLatestColor() throws Exception {
+        final List<Integer> sent = new ArrayList<>();
+        ColorSender sender = new ColorSender(new ColorSender.Sink() {
+            @Override
+            public void sendColor(int color) {
+                synchronized (sent) {
+                    sent.add(color);
+                    sent.notifyAll();
+                }
+            }
+        }, 10);
+        sender.start();
+        for (int i = 0; i <= 1000; i++) {
+            sender.setColor(0xff000000 | i);
+        }
+        synchronized (sent) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((sent.isEmpty() || sent.get(sent.size() - 1) != (0xff000000 | 1000))
+                    && System.currentTimeMillis() < deadline) {
+                sent.wait(100);
+            }
+            // the first color may go out right away, the burst is then collapsed into the last one
+            assertTrue(sent.size() <= 2);
+            assertEquals(0xff000000 | 1000, (int) sent.get(sent.size() - 1));
+        }
+        // the counter follows the sink call
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.getSentCount() + sender.getCoalescedCount() < 1001
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1001, sender.getSentCount() + sender.getCoalescedCount());
+        sender.stop();
+    }
+
+    @Test
+    public void stopDropsThePendingColor() throws Exception {
+        final List<Integer> sent = new ArrayList<>();
+        ColorSender sender = new ColorSender(new ColorSender.Sink() {
+            @Override
+            public void sendColor(int color) {
+                synchronized (sent) {
+                    sent.add(color);
+                }
+            }
+        }, 1);
+        sender.start();
+        sender.setColor(0xff000001);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.getSentCount() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        // the second color waits for the interval, the link drops meanwhile
+        sender.setColor(0xff000002);
+        sender.stop();
+        sender.start();
+        Thread.sleep(200);
+        sender.stop();
+        assertEquals(1, sender.getSentCount());
+        synchronized (sent) {
+            assertFalse(sent.contains(0xff000002));
+        }
+    }
+}
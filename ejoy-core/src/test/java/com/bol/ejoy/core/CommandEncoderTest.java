@@ -0,0 +1,44 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CommandEncoderTest {
+
+    @Test
+    public void encodesLikeUtf8() throws Exception {
+        CommandEncoder encoder = new CommandEncoder(4);
+        String[] messages = {"", "RGB 255 0 12", "colore verde \u00e8", "\u20ac \ud83d\udca1", "\ud83d"};
+        for (String message : messages) {
+            int length = encoder.encodeText(message);
+            assertArrayEquals(message.getBytes("UTF-8"), Arrays.copyOf(encoder.getBuffer(), length));
+        }
+    }
+
+    @Test
+    public void terminatesMessages() throws Exception {
+        CommandEncoder encoder = new CommandEncoder();
+        int length = encoder.encodeMessage("ON");
+        assertEquals(3, length);
+        assertEquals(CommandEncoder.EOT, encoder.getBuffer()[2]);
+    }
+
+    @Test
+    public void encodesColorFrames() throws Exception {
+        CommandEncoder encoder = new CommandEncoder(2);
+        for (int i = 0; i < 300; i++) {
+            int color = 0x80ff0a3c + i;
+            int length = encoder.encodeColor(color);
+            byte[] frame = encoder.getBuffer();
+            assertEquals(ColorFrame.LENGTH, length);
+            assertTrue(ColorFrame.isValid(frame, 0, length));
+            assertEquals(i & 0xff, ColorFrame.getSequence(frame, 0));
+            assertEquals(color, ColorFrame.getColor(frame, 0));
+        }
+        encoder.getBuffer()[4] ^= 1;
+        assertFalse(ColorFrame.isValid(encoder.getBuffer(), 0, ColorFrame.LENGTH));
+    }
+}
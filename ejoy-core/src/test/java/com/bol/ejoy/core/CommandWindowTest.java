@@ -0,0 +1,180 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CommandWindowTest {
+
+    @Test
+    public void acknowledgementsCompleteTheCommands() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        CommandWindow window = new CommandWindow(sink(written), 4, 10000, 1);
+        CommandFuture[] futures = new CommandFuture[4];
+        for (int i = 0; i < 4; i++) {
+            futures[i] = window.sendColor(0xff000000 | i);
+        }
+        assertEquals(4, window.getInFlight());
+        assertEquals(4 * ColorFrame.LENGTH, written.size());
+
+        // acknowledgements arrive between the samples, one of them split over two reads
+        String samples = "0F0A0B0C0D0E0F101112131415161718&";
+        byte[] data = new byte[2 * samples.length() + 4 * ColorFrame.LENGTH];
+        int p = 0;
+        for (int i = 0; i < 4; i++) {
+            ColorFrame.encodeAck(data, p, futures[i].getSequence());
+            p += ColorFrame.LENGTH;
+            if (i == 1) {
+                byte[] text = samples.getBytes("US-ASCII");
+                System.arraycopy(text, 0, data, p, text.length);
+                p += text.length;
+                System.arraycopy(text, 0, data, p, text.length);
+                p += text.length;
+            }
+        }
+        int split = 3 * ColorFrame.LENGTH + 2 * samples.length() - 3;
+        int first = window.onReceived(data, 0, split);
+        int second = window.onReceived(data, split, data.length - split);
+        assertEquals(samples + samples, new String(data, 0, first, "US-ASCII")
+                + new String(data, split, second, "US-ASCII"));
+        for (CommandFuture future : futures) {
+            assertTrue(future.isAcknowledged());
+        }
+        assertEquals(0, window.getInFlight());
+    }
+
+    @Test
+    public void retransmitsThenFails() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        CommandWindow window = new CommandWindow(sink(written), 2, 20, 3);
+        window.start();
+        CommandFuture future = window.sendColor(0xff112233);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("not acknowledged");
+        } catch (ExecutionException expected) {
+        }
+        assertEquals(2, window.getRetransmits());
+        assertEquals(1, window.getFailures());
+        assertEquals(3 * ColorFrame.LENGTH, written.size());
+        window.stop();
+
+        // a reconnect starts the window again, on the same shared thread
+        window.start();
+        future = window.sendColor(0xff445566);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("not acknowledged");
+        } catch (ExecutionException expected) {
+        }
+        assertEquals(4, window.getRetransmits());
+        window.stop();
+    }
+
+    @Test
+    public void supersededColorsAreNotWrittenAgain() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        CommandWindow window = new CommandWindow(sink(written), 4, 20, 5);
+        window.start();
+        CommandFuture old = window.sendColor(0xff112233);
+        CommandFuture latest = window.sendColor(0xff445566);
+        try {
+            old.get(5, TimeUnit.SECONDS);
+            fail("not acknowledged");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause().getMessage().contains("superseded"));
+        }
+        try {
+            latest.get(5, TimeUnit.SECONDS);
+            fail("not acknowledged");
+        } catch (ExecutionException expected) {
+        }
+        // the old color once, the latest one at every attempt
+        assertEquals(6 * ColorFrame.LENGTH, written.size());
+        assertEquals(1, window.getSuperseded());
+        assertEquals(1, window.getFailures());
+        window.stop();
+    }
+
+    @Test
+    public void strayStartBytesKeepTheSamples() throws Exception {
+        CommandWindow window = new CommandWindow(sink(new ByteArrayOutputStream()), 4, 10000, 1);
+        CommandFuture future = window.sendColor(0xff112233);
+        byte[] first = "#0A0B#".getBytes("US-ASCII");
+        first[0] = ColorFrame.START;
+        first[5] = ColorFrame.START;
+        byte[] data = new byte[first.length + ColorFrame.LENGTH + 2];
+        System.arraycopy(first, 0, data, 0, first.length);
+        ColorFrame.encodeAck(data, first.length, future.getSequence());
+        data[data.length - 2] = '0';
+        data[data.length - 1] = 'C';
+        // the second start byte is the one of the acknowledgement
+        int kept = window.onReceived(data, 0, data.length);
+        assertEquals("0A0B0C", new String(data, 0, kept, "US-ASCII"));
+        assertTrue(future.isAcknowledged());
+
+        // a stray start byte at the end of a read
+        byte[] tail = {'0', 'D', ColorFrame.START};
+        assertEquals(2, window.onReceived(tail, 0, tail.length));
+        byte[] next = "0E".getBytes("US-ASCII");
+        assertEquals(2, window.onReceived(next, 0, next.length));
+        assertEquals("0E", new String(next, "US-ASCII"));
+    }
+
+    @Test
+    public void reusedSequenceFailsTheOldCommand() throws Exception {
+        CommandWindow window = new CommandWindow(sink(new ByteArrayOutputStream()), 2, 10000, 1);
+        CommandFuture stuck = window.sendColor(0xff000000);
+        byte[] ack = new byte[ColorFrame.LENGTH];
+        for (int i = 1; i < 256; i++) {
+            CommandFuture future = window.sendColor(0xff000000 | i);
+            ColorFrame.encodeAck(ack, 0, future.getSequence());
+            window.onReceived(ack, 0, ack.length);
+        }
+        CommandFuture reused = window.sendColor(0xffffffff);
+        assertEquals(stuck.getSequence(), reused.getSequence());
+        try {
+            stuck.get(0, TimeUnit.SECONDS);
+            fail("sequence reused");
+        } catch (ExecutionException expected) {
+        }
+        assertEquals(1, window.getInFlight());
+    }
+
+    @Test
+    public void trySendFailsWhenTheWindowIsFull() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        CommandWindow window = new CommandWindow(sink(written), 2, 10000, 1);
+        long applyAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        CommandFuture first = window.trySendColorAt(0xff112233, applyAt);
+        window.trySendColorAt(0xff112233, applyAt);
+        // never waits for the acknowledgements
+        CommandFuture refused = window.trySendColorAt(0xff112233, applyAt);
+        assertTrue(refused.isDone());
+        try {
+            refused.get(0, TimeUnit.SECONDS);
+            fail("window full");
+        } catch (ExecutionException expected) {
+        }
+        assertEquals(2 * ColorFrame.TIMED_LENGTH, written.size());
+        assertEquals(1, window.getFailures());
+
+        byte[] ack = new byte[ColorFrame.LENGTH];
+        ColorFrame.encodeAck(ack, 0, first.getSequence());
+        window.onReceived(ack, 0, ack.length);
+        assertFalse(window.trySendColorAt(0xff112233, applyAt).isDone());
+    }
+
+    private static CommandWindow.Sink sink(final ByteArrayOutputStream out) {
+        return new CommandWindow.Sink() {
+            @Override
+            public void write(byte[] buffer, int off, int len) {
+                out.write(buffer, off, len);
+            }
+        };
+    }
+}
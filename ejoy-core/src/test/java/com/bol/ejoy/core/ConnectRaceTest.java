@@ -0,0 +1,86 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+public class ConnectRaceTest {
+
+    @Test
+    public void keepsTheFirstConnection() throws Exception {
+        FakeTransport failing = new FakeTransport(10, false);
+        FakeTransport fast = new FakeTransport(50, true);
+        FakeTransport slow = new FakeTransport(2000, true);
+        ConnectRace race = new ConnectRace(failing, slow, fast);
+        long start = System.nanoTime();
+        assertEquals(2, race.run());
+        assertTrue(System.nanoTime() - start < 1000000000L);
+        // the winner closes the others right after the race returned
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!slow.mClosed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(slow.mClosed);
+        assertFalse(fast.mClosed);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWhenEveryCandidateFails() throws Exception {
+        new ConnectRace(new FakeTransport(10, false), new FakeTransport(20, false)).run();
+    }
+
+    /**
+     * Connects or fails after a delay, close() aborts the connection
+     */
+    private static class FakeTransport implements Transport {
+
+        private final long mDelay;
+        private final boolean mSucceeds;
+        volatile boolean mClosed;
+
+        FakeTransport(long delay, boolean succeeds) {
+            mDelay = delay;
+            mSucceeds = succeeds;
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            long deadline = System.currentTimeMillis() + mDelay;
+            long left;
+            while (!mClosed && (left = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (mClosed || !mSucceeds)
+                throw new IOException("refused");
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return null;
+        }
+
+        @Override
+        public String getName() {
+            return "fake " + mDelay;
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStateTest {
+
+    @Test
+    public void enforcesTransitionsAndNotifies() throws Exception {
+        final List<String> changes = new ArrayList<>();
+        ConnectionState state = new ConnectionState();
+        state.addListener(new ConnectionState.Listener() {
+            @Override
+            public void onStateChanged(int from, int to) {
+                changes.add(from + ">" + to);
+            }
+        });
+        assertEquals(-1, state.moveTo(ConnectionState.CONNECTED));
+        assertEquals(ConnectionState.NONE, state.moveTo(ConnectionState.CONNECTING));
+        assertEquals(ConnectionState.CONNECTING, state.moveTo(ConnectionState.CONNECTING));
+        assertFalse(state.transition(ConnectionState.LISTEN, ConnectionState.CONNECTED));
+        assertTrue(state.transition(ConnectionState.CONNECTING, ConnectionState.CONNECTED));
+        assertEquals(ConnectionState.CONNECTED, state.moveTo(ConnectionState.LISTEN));
+        assertEquals(ConnectionState.LISTEN, state.get());
+        assertEquals("[0>2, 2>3, 3>1]", changes.toString());
+    }
+}
@@ -0,0 +1,74 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeltaCodecTest {
+
+    @Test
+    public void roundTripsEveryWidth() throws Exception {
+        Random random = new Random(7);
+        SampleBatch batch = new SampleBatch(3, 100);
+        int[] sample = new int[3];
+        for (int i = 0; i < 100; i++) {
+            // flat, quiet and full range
+            sample[0] = 2048;
+            sample[1] = 2000 + random.nextInt(16);
+            sample[2] = random.nextInt(4096);
+            batch.add(sample);
+        }
+        byte[] encoded = new byte[DeltaCodec.maxEncodedSize(3, 100)];
+        int length = DeltaCodec.encode(batch, encoded, 0);
+        // 3 bytes flat, 5 bit deltas, 13 bit deltas
+        assertEquals(3 + (3 + (99 * 5 + 7) / 8) + (3 + (99 * 13 + 7) / 8), length);
+
+        SampleBatch decoded = new SampleBatch(3, 100);
+        assertEquals(length, DeltaCodec.decode(encoded, 0, 100, decoded));
+        assertEquals(100, decoded.size());
+        for (int c = 0; c < 3; c++) {
+            for (int i = 0; i < 100; i++) {
+                assertEquals(batch.get(c, i), decoded.get(c, i));
+            }
+        }
+    }
+
+    @Test
+    public void compressedRecordingRoundTrip() throws Exception {
+        File file = File.createTempFile("zecg", ".zecg");
+        file.deleteOnExit();
+
+        ZecgWriter writer = new ZecgWriter(file, 2, 250, 16, true);
+        SampleBatch batch = new SampleBatch(2, 40);
+        for (int i = 0; i < 40; i++) {
+            batch.add(new int[]{2048 + (int) (100 * Math.sin(i / 5.0)), i * 100 & 0xfff});
+        }
+        batch.setTimestamp(System.nanoTime());
+        writer.write(batch);
+        writer.close();
+        assertTrue(file.length() < ZecgWriter.HEADER_SIZE + 3 * ZecgWriter.chunkSize(2, 16));
+
+        ZecgReader reader = new ZecgReader(file);
+        assertTrue(reader.isCompressed());
+        assertEquals(3, reader.getChunkCount());
+        SampleBatch read = new SampleBatch(2, 16);
+        int sample = 0;
+        long first = 0;
+        while (reader.readChunk(read)) {
+            if (sample == 0) {
+                first = read.getTimestamp();
+            } else {
+                assertEquals(first + sample * 4000000L, read.getTimestamp());
+            }
+            for (int i = 0; i < read.size(); i++, sample++) {
+                assertEquals(batch.get(0, sample), read.get(0, i));
+                assertEquals(batch.get(1, sample), read.get(1, i));
+            }
+        }
+        reader.close();
+        assertEquals(40, sample);
+    }
+}
@@ -0,0 +1,51 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+
+    private final List<String> mBatches = new ArrayList<>();
+
+    @Test
+    public void batchesDiffs() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry(5);
+        registry.setListener(new DeviceRegistry.Listener() {
+            @Override
+            public void onDevicesChanged(List<DeviceRegistry.Device> added,
+                                         List<DeviceRegistry.Device> updated,
+                                         List<DeviceRegistry.Device> removed) {
+                mBatches.add(addresses(added) + " " + addresses(updated) + " " + addresses(removed));
+            }
+        });
+        assertTrue(registry.report("A", "lamp", -60, 0));
+        assertTrue(registry.report("B", null, DeviceRegistry.NO_RSSI, 0));
+        // an update of a device not reported yet stays an addition
+        assertTrue(registry.report("B", "board", -70, 10));
+        registry.flush();
+
+        assertFalse(registry.report("A", "lamp", -62, 100));
+        assertTrue(registry.report("A", "lamp", -80, 200));
+        assertTrue(registry.report("C", null, -50, 200));
+        assertEquals(1, registry.expire(150));
+        registry.flush();
+        registry.flush();
+
+        assertEquals("[[A, B] [] [], [C] [A] [B]]", mBatches.toString());
+        assertEquals(-80, registry.get("A").getRssi());
+        assertEquals(200, registry.get("A").getLastSeen());
+        assertEquals(2, registry.size());
+    }
+
+    private static String addresses(List<DeviceRegistry.Device> devices) {
+        List<String> addresses = new ArrayList<>();
+        for (DeviceRegistry.Device device : devices) {
+            addresses.add(device.getAddress());
+        }
+        return addresses.toString();
+    }
+}
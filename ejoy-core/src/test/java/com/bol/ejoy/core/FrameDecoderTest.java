@@ -0,0 +1,98 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    private static final String FRAME = "001 0a2 FFF 100 abc 7d0 000 123 b9&";
+
+    private static byte[] bytes(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    @Test
+    public void decodesChannels() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] data = bytes(FRAME);
+        decoder.write(data, 0, data.length);
+
+        int[] sample = new int[FrameDecoder.CHANNELS];
+        assertTrue(decoder.next(sample));
+        assertArrayEquals(new int[]{0x001, 0x0a2, 0xfff, 0x100, 0xabc, 0x7d0, 0x000, 0x123}, sample);
+        assertFalse(decoder.next(sample));
+        assertEquals(data.length, decoder.getFrameLength());
+    }
+
+    @Test
+    public void resumesAcrossChunks() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(64);
+        byte[] data = bytes(FRAME + FRAME + FRAME);
+        int[] sample = new int[FrameDecoder.CHANNELS];
+        int frames = 0;
+        // odd chunk size so frames are split everywhere and the ring wraps
+        for (int off = 0; off < data.length; off += 7) {
+            int len = Math.min(7, data.length - off);
+            int written = 0;
+            while (written < len) {
+                written += decoder.write(data, off + written, len - written);
+                while (decoder.next(sample)) {
+                    assertEquals(0x123, sample[7]);
+                    frames++;
+                }
+            }
+        }
+        assertEquals(3, frames);
+        assertEquals(0, decoder.getDroppedFrames());
+    }
+
+    @Test
+    public void skipsShortAndGarbledFrames() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] data = bytes("12&001 0a2 FFF 100 xyz 7d0 000 123&" + FRAME);
+        decoder.write(data, 0, data.length);
+
+        int[] sample = new int[FrameDecoder.CHANNELS];
+        assertTrue(decoder.next(sample));
+        assertEquals(0xabc, sample[4]);
+        assertEquals(2, decoder.getDroppedFrames());
+    }
+
+    @Test
+    public void drainsIntoBatch() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] data = bytes(FRAME + FRAME + FRAME);
+        decoder.write(data, 0, data.length);
+
+        SampleBatch batch = new SampleBatch(FrameDecoder.CHANNELS, 2);
+        assertEquals(2, decoder.drainTo(batch));
+        assertTrue(batch.isFull());
+        assertEquals(0xfff, batch.get(2, 1));
+        batch.clear();
+        assertEquals(1, decoder.drainTo(batch));
+    }
+
+    @Test
+    public void parsesTrailingTelemetry() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] data = bytes(FRAME + "001 0a2 FFF 100 abc 7d0 000 123 5c 3&" + "001 0a2 FFF 100 abc 7d0 000 123&");
+        decoder.write(data, 0, data.length);
+        int[] sample = new int[FrameDecoder.CHANNELS];
+        int[] fields = new int[Telemetry.MAX_FIELDS];
+
+        assertTrue(decoder.next(sample));
+        assertEquals(1, decoder.telemetry(fields));
+        assertEquals(0xb9, fields[0]);
+        assertTrue(decoder.next(sample));
+        assertEquals(2, decoder.telemetry(fields));
+        assertEquals(0x5c, fields[0]);
+        assertEquals(0x3, fields[1]);
+        assertTrue(decoder.next(sample));
+        assertEquals(0, decoder.telemetry(fields));
+    }
+}
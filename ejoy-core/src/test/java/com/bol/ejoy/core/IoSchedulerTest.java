@@ -0,0 +1,113 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class IoSchedulerTest {
+
+    @Test
+    public void reusesNamedThreads() throws Exception {
+        IoScheduler scheduler = new IoScheduler();
+        scheduler.addPool("test", 2, Thread.NORM_PRIORITY + 1);
+        final Thread[] threads = new Thread[5];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            final CountDownLatch done = new CountDownLatch(1);
+            scheduler.submit("test", new IoScheduler.Task() {
+                @Override
+                protected void runTask() {
+                    threads[index] = Thread.currentThread();
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(2, TimeUnit.SECONDS));
+        }
+        // the pool starts its threads once, the next tasks, as reconnects would, reuse them
+        assertEquals(2, scheduler.getPoolSize("test"));
+        for (Thread thread : threads) {
+            assertTrue(thread.getName(), thread.getName().matches("io-test-[12]"));
+            assertEquals(Thread.NORM_PRIORITY + 1, thread.getPriority());
+            assertTrue(thread.isDaemon());
+        }
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void growingPoolRunsEveryBlockedLoop() throws Exception {
+        IoScheduler scheduler = new IoScheduler();
+        scheduler.addGrowingPool("loops", Thread.NORM_PRIORITY);
+        // more loops than any fixed pool of the shared scheduler, all blocked at once
+        final CountDownLatch running = new CountDownLatch(20);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 20; i++) {
+            scheduler.submit("loops", new IoScheduler.Task() {
+                @Override
+                protected void runTask() {
+                    running.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // shut down
+                    }
+                }
+            });
+        }
+        assertTrue(running.await(2, TimeUnit.SECONDS));
+        assertEquals(20, scheduler.getPoolSize("loops"));
+        release.countDown();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void cancelInterruptsTheRunningTask() throws Exception {
+        IoScheduler scheduler = new IoScheduler();
+        scheduler.addPool("test", 1, Thread.NORM_PRIORITY);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch ended = new CountDownLatch(1);
+        IoScheduler.Task sleeper = scheduler.submit("test", new IoScheduler.Task() {
+            @Override
+            protected void runTask() {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    if (isCancelled())
+                        ended.countDown();
+                }
+            }
+        });
+        final boolean[] ran = new boolean[1];
+        IoScheduler.Task queued = scheduler.submit("test", new IoScheduler.Task() {
+            @Override
+            protected void runTask() {
+                ran[0] = true;
+            }
+        });
+        queued.cancel();
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        sleeper.cancel();
+        assertTrue(ended.await(2, TimeUnit.SECONDS));
+        assertTrue(sleeper.await(2000));
+        // cancelled before it started, nothing to wait for
+        assertTrue(queued.await(0));
+
+        // the thread is free and not interrupted for the next task
+        final boolean[] interrupted = {true};
+        final CountDownLatch next = new CountDownLatch(1);
+        scheduler.submit("test", new IoScheduler.Task() {
+            @Override
+            protected void runTask() {
+                interrupted[0] = Thread.currentThread().isInterrupted();
+                next.countDown();
+            }
+        });
+        assertTrue(next.await(2, TimeUnit.SECONDS));
+        assertFalse(interrupted[0]);
+        assertFalse(ran[0]);
+        scheduler.shutdown();
+    }
+}
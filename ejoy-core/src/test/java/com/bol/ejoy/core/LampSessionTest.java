@@ -0,0 +1,127 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LampSessionTest {
+
+    private static final long LEAD_MILLIS = 300;
+    private static final long STAGGER_MILLIS = 50;
+    private static final long TOLERANCE_MILLIS = 20;
+
+    @Test
+    public void broadcastsTimedColorsToEveryLamp() throws Exception {
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        // the sends start one after the other, each lamp gets its color later than the previous
+        Executor staggered = new Executor() {
+            private int mNext;
+
+            @Override
+            public void execute(final Runnable command) {
+                final long wait = STAGGER_MILLIS * mNext++;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(wait);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        command.run();
+                    }
+                });
+            }
+        };
+        LampSession session = new LampSession(staggered, 4, 1000, 2);
+        FakeLamp[] lamps = new FakeLamp[3];
+        for (int i = 0; i < lamps.length; i++) {
+            PipeTransport[] pair = PipeTransport.createPair(256);
+            lamps[i] = new FakeLamp(pair[1]);
+            lamps[i].start();
+            session.add(pair[0]);
+        }
+        assertEquals(3, session.getLamps().size());
+
+        long before = System.nanoTime();
+        List<Future<Void>> futures = session.broadcastColor(0xff336699, LEAD_MILLIS);
+        long after = System.nanoTime();
+        for (Future<Void> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        long tolerance = TimeUnit.MILLISECONDS.toNanos(TOLERANCE_MILLIS);
+        long earliest = before + TimeUnit.MILLISECONDS.toNanos(LEAD_MILLIS) - tolerance;
+        long latest = after + TimeUnit.MILLISECONDS.toNanos(LEAD_MILLIS) + tolerance;
+        long firstSwitch = Long.MAX_VALUE;
+        long lastSwitch = Long.MIN_VALUE;
+        for (int i = 0; i < lamps.length; i++) {
+            FakeLamp lamp = lamps[i];
+            lamp.join(5000);
+            assertEquals(0xff336699, lamp.mColor);
+            // the later the frame, the shorter its delay
+            long expected = LEAD_MILLIS - STAGGER_MILLIS * i;
+            assertTrue("lamp " + i + ": " + lamp.mDelay + " ms",
+                    Math.abs(lamp.mDelay - expected) <= TOLERANCE_MILLIS);
+            // but every lamp switches at the apply time of the broadcast
+            long switchAt = lamp.mReceivedAt + TimeUnit.MILLISECONDS.toNanos(lamp.mDelay);
+            assertTrue("lamp " + i + " switches " + (switchAt - before) / 1000000 + " ms after the broadcast",
+                    switchAt >= earliest && switchAt <= latest);
+            firstSwitch = Math.min(firstSwitch, switchAt);
+            lastSwitch = Math.max(lastSwitch, switchAt);
+        }
+        assertTrue("switches spread over " + (lastSwitch - firstSwitch) / 1000000 + " ms",
+                lastSwitch - firstSwitch <= tolerance);
+        session.close();
+        executor.shutdown();
+    }
+
+    /**
+     * Reads one timed color frame, records it with the time it arrived and acknowledges it
+     */
+    private static class FakeLamp extends Thread {
+        private final PipeTransport mTransport;
+        volatile int mColor;
+        volatile int mDelay = -1;
+        volatile long mReceivedAt;
+
+        FakeLamp(PipeTransport transport) {
+            mTransport = transport;
+        }
+
+        @Override
+        public void run() {
+            try {
+                InputStream in = mTransport.getInputStream();
+                byte[] frame = new byte[ColorFrame.TIMED_LENGTH];
+                int n = 0;
+                while (n < frame.length) {
+                    int r = in.read(frame, n, frame.length - n);
+                    if (r < 0)
+                        return;
+                    n += r;
+                }
+                long receivedAt = System.nanoTime();
+                if (!ColorFrame.isValidTimed(frame, 0, n))
+                    return;
+                mReceivedAt = receivedAt;
+                mColor = ColorFrame.getColor(frame, 0);
+                mDelay = ColorFrame.getDelay(frame, 0);
+                byte[] ack = new byte[ColorFrame.LENGTH];
+                ColorFrame.encodeAck(ack, 0, ColorFrame.getSequence(frame, 0));
+                OutputStream out = mTransport.getOutputStream();
+                out.write(ack, 0, ack.length);
+            } catch (Exception e) {
+                // the test sees the missing color
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void recordsOnlyWhenEnabled() throws Exception {
+        Metrics metrics = new Metrics();
+        Metrics.Counter reads = metrics.counter("reads");
+        Metrics.Histogram sizes = metrics.histogram("sizes");
+        reads.increment();
+        sizes.record(10);
+        assertEquals(0, reads.get());
+        assertEquals(0, sizes.getCount());
+
+        metrics.setEnabled(true);
+        reads.add(3);
+        for (int i = 1; i <= 100; i++) {
+            sizes.record(i);
+        }
+        assertSame(reads, metrics.counter("reads"));
+        assertEquals(3, reads.get());
+        assertEquals(100, sizes.getCount());
+        assertEquals(100, sizes.getMax());
+        assertEquals(50, sizes.getMean());
+        // 50 is in the bucket of 32..63
+        assertEquals(63, sizes.getPercentile(0.5));
+        assertEquals(100, sizes.getPercentile(0.99));
+
+        metrics.gauge("depth", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        });
+        assertEquals("depth 7\n"
+                + "reads 3\n"
+                + "sizes count=100 mean=50 p50=63 p99=100 p999=100 max=100\n", metrics.dump());
+    }
+
+    @Test
+    public void finerHistogramKeepsTheRelativePrecision() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.setEnabled(true);
+        Metrics.Histogram latencies = metrics.histogram("latencies", 6,
+                TimeUnit.SECONDS.toNanos(10));
+        for (int i = 1; i <= 1000; i++) {
+            latencies.record(i * 1000L);
+        }
+        latencies.record(TimeUnit.SECONDS.toNanos(60));
+        assertEquals(1001, latencies.getCount());
+        assertEquals(TimeUnit.SECONDS.toNanos(10), latencies.getMax());
+        long p50 = latencies.getPercentile(0.5);
+        assertTrue(String.valueOf(p50), p50 >= 501000 && p50 <= 501000 + 501000 / 64);
+        long p99 = latencies.getPercentile(0.99);
+        assertTrue(String.valueOf(p99), p99 >= 991000 && p99 <= 991000 + 991000 / 64);
+        // small values are exact
+        Metrics.Histogram small = metrics.histogram("small", 6, 1000);
+        small.record(127);
+        assertEquals(127, small.getPercentile(1));
+        small.reset();
+        assertEquals(0, small.getCount());
+    }
+}
@@ -0,0 +1,72 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SampleFilterTest {
+
+    private static final double RATE = 250;
+
+    @Test
+    public void movingAverageAndDecimation() throws Exception {
+        SampleFilter filter = new FilterChain(new MovingAverage(2, 4), new Decimator(2));
+        int[] sample = new int[2];
+        StringBuilder out = new StringBuilder();
+        for (int i = 1; i <= 8; i++) {
+            sample[0] = i * 4;
+            sample[1] = 100;
+            if (filter.apply(sample)) {
+                out.append(sample[0]).append('/').append(sample[1]).append(' ');
+            }
+        }
+        // means of 4,8 | 4..16 | 12..24 | 20..32
+        assertEquals("6/100 10/100 18/100 26/100 ", out.toString());
+    }
+
+    @Test
+    public void notchRemovesTheMainsHum() throws Exception {
+        // 2048 offset, 5 Hz signal and a 50 Hz hum of the same amplitude
+        Biquad notch = Biquad.notch(1, RATE, 50, 30);
+        double error = 0;
+        int[] sample = new int[1];
+        for (int i = 0; i < 2000; i++) {
+            double t = i / RATE;
+            double signal = 2048 + 500 * Math.sin(2 * Math.PI * 5 * t);
+            sample[0] = (int) Math.round(signal + 500 * Math.sin(2 * Math.PI * 50 * t));
+            notch.apply(sample);
+            if (i >= 1000) {
+                error = Math.max(error, Math.abs(sample[0] - signal));
+            }
+        }
+        assertTrue("error " + error, error < 25);
+    }
+
+    @Test
+    public void lowAndHighPassSplitTheBand() throws Exception {
+        Biquad low = Biquad.lowPass(1, RATE, 10);
+        Biquad high = Biquad.highPass(1, RATE, 10);
+        assertEquals(0, amplitude(high, 0), 1);
+        assertEquals(1000, amplitude(low, 1), 20);
+        assertEquals(0, amplitude(high, 1), 20);
+        assertTrue(amplitude(low, 80) < 30);
+        assertEquals(1000, amplitude(high, 80), 30);
+    }
+
+    // half the swing of the output once settled, for 1000 * sin(f) around a 2048 offset
+    private static double amplitude(Biquad filter, double frequency) {
+        filter.reset();
+        int[] sample = new int[1];
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < 3000; i++) {
+            sample[0] = (int) Math.round(2048 + 1000 * Math.sin(2 * Math.PI * frequency * i / RATE));
+            filter.apply(sample);
+            if (i >= 2000) {
+                min = Math.min(min, sample[0]);
+                max = Math.max(max, sample[0]);
+            }
+        }
+        return (max - min) / 2.0;
+    }
+}
@@ -0,0 +1,112 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SampleHistoryTest {
+
+    private static final long PERIOD = TimeUnit.MILLISECONDS.toNanos(4);
+
+    @Test
+    public void keepsTheLastSamplesPacked() throws Exception {
+        SampleHistory history = new SampleHistory(8, 250, 100);
+        assertEquals(128, history.getCapacity());
+        int[] sample = new int[8];
+        for (int i = 0; i < 300; i++) {
+            for (int c = 0; c < 8; c++) {
+                sample[c] = (i * 8 + c) & 0xfff;
+            }
+            history.append(sample, 1000 + i * PERIOD);
+        }
+        assertEquals(300, history.getWritten());
+        assertEquals(173, history.getOldest());
+
+        int[][] out = new int[8][10];
+        // the slot of sample 172 is the next one written
+        assertEquals(0, history.read(172, 10, out));
+        assertEquals(0, history.read(100, 10, out));
+        assertEquals(10, history.read(200, 10, out));
+        assertEquals(200 * 8 + 3, out[3][0]);
+        assertEquals(209 * 8 + 7, out[7][9]);
+        // past the newest sample
+        assertEquals(5, history.read(295, 10, out));
+        assertEquals(0xfff & 299 * 8, out[0][4]);
+    }
+
+    @Test
+    public void mapsTimesToSamples() throws Exception {
+        SampleHistory history = new SampleHistory(2, 250, 256);
+        int[] sample = new int[2];
+        for (int i = 0; i < 1000; i++) {
+            sample[0] = i;
+            history.append(sample, 1000 + i * PERIOD);
+        }
+        assertEquals(745, history.getOldest());
+        assertEquals(800, history.indexOf(1000 + 800 * PERIOD));
+        assertEquals(801, history.indexOf(1000 + 800 * PERIOD + 1));
+        assertEquals(745, history.indexOf(0));
+        assertEquals(1000, history.indexOf(1000 + 2000 * PERIOD));
+        assertEquals(1000 + 900 * PERIOD, history.timeOf(900));
+
+        int[][] out = new int[2][50];
+        assertEquals(20, history.readSince(1000 + 980 * PERIOD, out));
+        assertEquals(980, out[0][0]);
+    }
+
+    @Test
+    public void readersRaceTheWriter() throws Exception {
+        final SampleHistory history = new SampleHistory(2, 250, 64);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                int[] sample = new int[2];
+                for (int i = 0; i < 200000; i++) {
+                    sample[0] = i & 0xfff;
+                    sample[1] = ~i & 0xfff;
+                    history.append(sample, i);
+                }
+            }
+        };
+        writer.start();
+        int[][] out = new int[2][16];
+        while (writer.isAlive()) {
+            long from = history.getWritten() - 40;
+            int n = history.read(from, 16, out);
+            for (int i = 0; i < n; i++) {
+                assertEquals((from + i) & 0xfff, out[0][i]);
+                assertEquals(~(from + i) & 0xfff, out[1][i]);
+            }
+        }
+        writer.join();
+    }
+
+    @Test
+    public void readersRaceTheWriterAtTheOldestSample() throws Exception {
+        final SampleHistory history = new SampleHistory(2, 250, 64);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                int[] sample = new int[2];
+                for (int i = 0; i < 200000; i++) {
+                    sample[0] = i & 0xfff;
+                    sample[1] = ~i & 0xfff;
+                    history.append(sample, i);
+                }
+            }
+        };
+        writer.start();
+        int[][] out = new int[2][4];
+        while (writer.isAlive()) {
+            long from = history.getOldest();
+            int n = history.read(from, 4, out);
+            for (int i = 0; i < n; i++) {
+                assertEquals((from + i) & 0xfff, out[0][i]);
+                assertEquals(~(from + i) & 0xfff, out[1][i]);
+            }
+        }
+        writer.join();
+    }
+}
@@ -0,0 +1,291 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SamplePipelineTest {
+
+    private static final String FRAME = "001 0a2 FFF 100 abc 7d0 000 123 b9&";
+
+    @Test
+    public void deliversFullAndExpiredBatches() throws Exception {
+        final List<Integer> sizes = new ArrayList<>();
+        final CountDownLatch delivered = new CountDownLatch(2);
+        SamplePipeline pipeline = new SamplePipeline();
+        pipeline.addSampleListener(new SampleListener() {
+            @Override
+            public void onSamples(SampleBatch batch) {
+                synchronized (sizes) {
+                    sizes.add(batch.size());
+                }
+                assertEquals(0x7d0, batch.get(5, batch.size() - 1));
+                delivered.countDown();
+            }
+        }, SamplePipeline.DIRECT, 2, 20);
+        pipeline.start();
+
+        byte[] data = (FRAME + FRAME + FRAME).getBytes("US-ASCII");
+        pipeline.offer(data);
+
+        assertTrue(delivered.await(2, TimeUnit.SECONDS));
+        pipeline.stop();
+        synchronized (sizes) {
+            assertEquals(2, (int) sizes.get(0));
+            assertEquals(1, (int) sizes.get(1));
+        }
+    }
+
+    @Test
+    public void deliversTelemetryOnChange() throws Exception {
+        final List<Telemetry> received = new ArrayList<>();
+        SamplePipeline pipeline = new SamplePipeline();
+        pipeline.setTelemetryListener(new TelemetryListener() {
+            @Override
+            public void onTelemetry(Telemetry telemetry) {
+                synchronized (received) {
+                    received.add(telemetry);
+                }
+            }
+        }, SamplePipeline.DIRECT, 0);
+        pipeline.start();
+
+        pipeline.put((FRAME + FRAME).getBytes("US-ASCII"));
+        pipeline.put(FRAME.getBytes("US-ASCII"));
+        pipeline.put("001 0a2 FFF 100 abc 7d0 000 123 b8 1&".getBytes("US-ASCII"));
+        pipeline.stop();
+        assertTrue(pipeline.awaitTermination(2000));
+
+        synchronized (received) {
+            assertEquals(2, received.size());
+            assertEquals(0xb9, received.get(0).getBattery());
+            assertEquals(Telemetry.NONE, received.get(0).getStatus());
+            assertEquals(0xb8, received.get(1).getBattery());
+            assertEquals(1, received.get(1).getStatus());
+        }
+    }
+
+    @Test
+    public void drainingRemovalDeliversThePendingBatch() throws Exception {
+        final List<Integer> firsts = new ArrayList<>();
+        HeldExecutor executor = new HeldExecutor();
+        SampleListener listener = new SampleListener() {
+            @Override
+            public void onSamples(SampleBatch batch) {
+                for (int i = 0; i < batch.size(); i++) {
+                    firsts.add(batch.get(0, i));
+                }
+            }
+        };
+        final CountDownLatch decoded = new CountDownLatch(5);
+        SampleFilter counter = new SampleFilter() {
+            @Override
+            public boolean apply(int[] sample) {
+                decoded.countDown();
+                return true;
+            }
+
+            @Override
+            public void reset() {
+            }
+        };
+        SamplePipeline pipeline = new SamplePipeline();
+        // a batch bigger than the samples and a long delay, nothing is delivered by itself
+        pipeline.addSampleListener(listener, executor, 16, 60000, counter, Overload.DROP_NEWEST);
+        pipeline.start();
+        pipeline.put(frames(5));
+        assertTrue(decoded.await(2, TimeUnit.SECONDS));
+
+        final CountDownLatch drained = new CountDownLatch(1);
+        pipeline.removeSampleListener(listener, new Runnable() {
+            @Override
+            public void run() {
+                drained.countDown();
+            }
+        });
+        long deadline = System.currentTimeMillis() + 2000;
+        while (executor.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        executor.release();
+        assertEquals(0, drained.getCount());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), firsts);
+
+        // removed, the next samples go nowhere
+        pipeline.put(frames(1));
+        pipeline.stop();
+        assertTrue(pipeline.awaitTermination(2000));
+        executor.release();
+        assertEquals(5, firsts.size());
+    }
+
+    @Test
+    public void restartWaitsForThePreviousDecodeThread() throws Exception {
+        final List<Integer> values = new ArrayList<>();
+        SamplePipeline pipeline = new SamplePipeline();
+        pipeline.addSampleListener(new SampleListener() {
+            @Override
+            public void onSamples(SampleBatch batch) {
+                for (int i = 0; i < batch.size(); i++) {
+                    values.add(batch.get(0, i));
+                }
+            }
+        }, SamplePipeline.DIRECT, 4, 10);
+        pipeline.start();
+        byte[] data = frames(200);
+        int frame = data.length / 200;
+        for (int i = 0; i < 200; i++) {
+            pipeline.put(Arrays.copyOfRange(data, i * frame, (i + 1) * frame));
+            if (i % 50 == 49) {
+                // the stopped thread still decodes the chunks left when the next one starts
+                pipeline.stop();
+                pipeline.start();
+            }
+        }
+        pipeline.stop();
+        assertTrue(pipeline.awaitTermination(2000));
+        assertEquals(200, values.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, (int) values.get(i));
+        }
+    }
+
+    @Test
+    public void restartNeverWaitsForTheStoppedLoop() throws Exception {
+        final CountDownLatch delivering = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> values = new ArrayList<>();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        SamplePipeline pipeline = new SamplePipeline(16, executor);
+        pipeline.addSampleListener(new SampleListener() {
+            @Override
+            public void onSamples(SampleBatch batch) {
+                delivering.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    values.add(batch.get(0, i));
+                }
+            }
+        }, SamplePipeline.DIRECT, 1, 10);
+        pipeline.start();
+        byte[] data = frames(2);
+        int frame = data.length / 2;
+        pipeline.put(Arrays.copyOfRange(data, 0, frame));
+        assertTrue(delivering.await(2, TimeUnit.SECONDS));
+
+        // the stopped loop is held by the listener, the restart returns anyway
+        long started = System.nanoTime();
+        pipeline.stop();
+        pipeline.start();
+        pipeline.put(Arrays.copyOfRange(data, frame, data.length));
+        assertTrue(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(500));
+        assertFalse(pipeline.awaitTermination(50));
+
+        release.countDown();
+        pipeline.stop();
+        assertTrue(pipeline.awaitTermination(2000));
+        executor.shutdown();
+        assertEquals(Arrays.asList(0, 1), values);
+    }
+
+    // executor keeping the deliveries until released, a listener that is behind
+    private static class HeldExecutor implements Executor {
+        final List<Runnable> mHeld = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            mHeld.add(command);
+        }
+
+        synchronized int size() {
+            return mHeld.size();
+        }
+
+        synchronized void release() {
+            for (Runnable r : mHeld) {
+                r.run();
+            }
+            mHeld.clear();
+        }
+    }
+
+    private static byte[] frames(int count) throws Exception {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            data.append(String.format("%03x 0a2 FFF 100 abc 7d0 000 123 b9&", i));
+        }
+        return data.toString().getBytes("US-ASCII");
+    }
+
+    @Test
+    public void dropOldestKeepsTheLatestSamples() throws Exception {
+        final List<Integer> firsts = new ArrayList<>();
+        HeldExecutor executor = new HeldExecutor();
+        SampleListener listener = new SampleListener() {
+            @Override
+            public void onSamples(SampleBatch batch) {
+                firsts.add(batch.get(0, 0));
+            }
+        };
+        SamplePipeline pipeline = new SamplePipeline();
+        pipeline.addSampleListener(listener, executor, 2, 10000, null, Overload.DROP_OLDEST);
+        pipeline.start();
+        // 2 batches go to the listener, the third one is refilled with the newest samples
+        pipeline.put(frames(9));
+        pipeline.stop();
+        assertTrue(pipeline.awaitTermination(2000));
+        executor.release();
+
+        assertEquals(3, firsts.size());
+        assertEquals(0, (int) firsts.get(0));
+        assertEquals(2, (int) firsts.get(1));
+        // samples 4 and 5 were dropped for 6 and 7, the last batch holds 8 alone
+        assertEquals(8, (int) firsts.get(2));
+        assertEquals(4, pipeline.getDroppedSamples(listener));
+    }
+
+    @Test
+    public void decimatesWhileBehind() throws Exception {
+        final List<Integer> received = new ArrayList<>();
+        HeldExecutor executor = new HeldExecutor();
+        SampleListener listener = new SampleListener() {
+            @Override
+            public void onSamples(SampleBatch batch) {
+                for (int i = 0; i < batch.size(); i++) {
+                    received.add(batch.get(0, i));
+                }
+            }
+        };
+        SamplePipeline pipeline = new SamplePipeline();
+        pipeline.addSampleListener(listener, executor, 2, 10000, null, Overload.DECIMATE);
+        pipeline.start();
+        pipeline.put(frames(10));
+        pipeline.stop();
+        assertTrue(pipeline.awaitTermination(2000));
+        executor.release();
+
+        // full rate until the listener holds a batch when the next one is ready, then one in 2
+        assertEquals(0, (int) received.get(0));
+        assertEquals(3, (int) received.get(3));
+        assertEquals(5, (int) received.get(4));
+        assertEquals(10 - received.size(), pipeline.getDroppedSamples(listener));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void chunksCannotBeDecimated() {
+        new SamplePipeline().setChunkPolicy(Overload.DECIMATE);
+    }
+}
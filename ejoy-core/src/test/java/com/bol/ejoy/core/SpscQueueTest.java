@@ -0,0 +1,49 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpscQueueTest {
+
+    @Test
+    public void boundedFifo() throws Exception {
+        SpscQueue<Integer> queue = new SpscQueue<>(3);
+        assertEquals(4, queue.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(0, (int) queue.poll());
+        assertTrue(queue.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, (int) queue.poll());
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void handsOverBetweenThreads() throws Exception {
+        final SpscQueue<Integer> queue = new SpscQueue<>(16);
+        final int count = 100000;
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    while (!queue.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        };
+        producer.start();
+        for (int expected = 0; expected < count; ) {
+            Integer value = queue.poll();
+            if (value != null) {
+                assertEquals(expected++, (int) value);
+            }
+        }
+        producer.join();
+        assertTrue(queue.isEmpty());
+    }
+}
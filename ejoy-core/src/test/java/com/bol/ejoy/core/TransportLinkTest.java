@@ -0,0 +1,124 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TransportLinkTest {
+
+    @Test
+    public void readsWhatThePeerWrites() throws Exception {
+        PipeTransport[] pair = PipeTransport.createPair(64);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        TransportLink link = new TransportLink(pair[0], new TransportLink.Listener() {
+            @Override
+            public void onRead(byte[] buffer, int length) {
+                received.write(buffer, 0, length);
+            }
+
+            @Override
+            public void onDisconnected(IOException cause) {
+                disconnected.countDown();
+            }
+        });
+        link.start();
+
+        byte[] data = "0F0A0B0C0D0E0F101112131415161718&".getBytes("US-ASCII");
+        for (int i = 0; i < 10; i++) {
+            pair[1].getOutputStream().write(data, 0, data.length);
+        }
+        pair[1].close();
+
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+        assertEquals(10 * data.length, received.size());
+        link.cancel();
+    }
+
+    @Test
+    public void writesReachThePeer() throws Exception {
+        PipeTransport[] pair = PipeTransport.createPair(64);
+        // called on the read thread, checked on the test thread
+        final AtomicBoolean disconnected = new AtomicBoolean();
+        TransportLink link = new TransportLink(pair[0], new TransportLink.Listener() {
+            @Override
+            public void onRead(byte[] buffer, int length) {
+            }
+
+            @Override
+            public void onDisconnected(IOException cause) {
+                disconnected.set(true);
+            }
+        });
+        link.start();
+        link.write(new byte[]{1, 2, 3}, 1, 2);
+
+        byte[] read = new byte[2];
+        assertEquals(2, pair[1].getInputStream().read(read, 0, 2));
+        assertArrayEquals(new byte[]{2, 3}, read);
+        link.cancel();
+        // give a wrong callback the time to come
+        Thread.sleep(50);
+        assertFalse("not expected after cancel", disconnected.get());
+    }
+
+    @Test
+    public void chunksAreReadIntoThePoolAndDroppedWhenItIsEmpty() throws Exception {
+        PipeTransport[] pair = PipeTransport.createPair(64);
+        BufferPool pool = new BufferPool(2, 16);
+        final List<BufferPool.Buffer> chunks = new ArrayList<>();
+        final AtomicInteger dropped = new AtomicInteger();
+        final AtomicInteger read = new AtomicInteger();
+        TransportLink link = new TransportLink(pair[0], new TransportLink.ChunkListener() {
+            @Override
+            public void onRead(BufferPool.Buffer chunk) {
+                // kept without releasing, the pool runs dry
+                synchronized (chunks) {
+                    chunks.add(chunk);
+                }
+                read.addAndGet(chunk.length());
+            }
+
+            @Override
+            public void onDropped(byte[] buffer, int length) {
+                dropped.addAndGet(length);
+                read.addAndGet(length);
+            }
+
+            @Override
+            public void onDisconnected(IOException cause) {
+            }
+        }, pool, null);
+        link.start();
+
+        byte[] data = {1, 2, 3, 4};
+        for (int i = 0; i < 4; i++) {
+            pair[1].getOutputStream().write(data, 0, data.length);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (read.get() < (i + 1) * data.length && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(4 * data.length, read.get());
+        // the two buffers hold the first reads, the next ones are dropped
+        synchronized (chunks) {
+            assertEquals(2, chunks.size());
+            for (BufferPool.Buffer chunk : chunks) {
+                assertArrayEquals(data, Arrays.copyOf(chunk.array(), chunk.length()));
+            }
+        }
+        assertEquals(2 * data.length, dropped.get());
+        assertTrue(pool.getMisses() >= 2);
+        link.cancel();
+    }
+}
@@ -0,0 +1,51 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class WaveformDownsamplerTest {
+
+    @Test
+    public void minMaxScrollsThroughTheWidth() throws Exception {
+        WaveformDownsampler view = new WaveformDownsampler(2, 3, 4, WaveformDownsampler.MIN_MAX);
+        SampleBatch batch = new SampleBatch(2, 32);
+        int[] sample = new int[2];
+        for (int i = 0; i < 18; i++) {
+            sample[0] = i % 4 == 1 ? 100 + i : i;
+            sample[1] = -i;
+            batch.add(sample);
+        }
+        view.onSamples(batch);
+        int[] min = new int[3];
+        int[] max = new int[3];
+        // 4 buckets complete, the oldest scrolled out, 2 samples wait in the current one
+        assertEquals(3, view.read(0, min, max));
+        assertEquals("[4, 8, 12]", Arrays.toString(min));
+        assertEquals("[105, 109, 113]", Arrays.toString(max));
+        view.read(1, min, max);
+        assertEquals("[-7, -11, -15]", Arrays.toString(min));
+        assertEquals("[-4, -8, -12]", Arrays.toString(max));
+    }
+
+    @Test
+    public void lttbKeepsThePeaks() throws Exception {
+        WaveformDownsampler view = new WaveformDownsampler(1, 10, 5, WaveformDownsampler.LTTB);
+        int[] sample = new int[1];
+        for (int i = 0; i < 30; i++) {
+            // flat line with a spike in the middle of the third bucket
+            sample[0] = i == 12 ? 1000 : 0;
+            view.add(sample);
+        }
+        int[] points = new int[10];
+        // the last complete bucket waits for the next one
+        assertEquals(5, view.read(0, points, null));
+        assertEquals(1000, points[2]);
+        assertEquals(0, points[1]);
+        assertEquals(0, points[3]);
+        view.clear();
+        assertEquals(0, view.read(0, points, null));
+    }
+}
@@ -0,0 +1,63 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class WireReplayTest {
+
+    private static final String FRAME = "001 0a2 FFF 100 abc 7d0 000 123 b9&";
+
+    @Test
+    public void replaysCapturedChunks() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WireTraceWriter writer = new WireTraceWriter(out);
+        byte[] data = (FRAME + FRAME + FRAME + FRAME).getBytes("US-ASCII");
+        // frames split across records
+        for (int off = 0; off < data.length; off += 50) {
+            writer.record(data, off, Math.min(50, data.length - off));
+        }
+        writer.close();
+        assertEquals(3, writer.getRecordCount());
+
+        final AtomicLong samples = new AtomicLong();
+        SamplePipeline pipeline = new SamplePipeline(2);
+        pipeline.addSampleListener(new SampleListener() {
+            @Override
+            public void onSamples(SampleBatch batch) {
+                samples.addAndGet(batch.size());
+            }
+        }, SamplePipeline.DIRECT, 16, 10);
+        pipeline.start();
+
+        WireTraceReader trace = new WireTraceReader(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(3, WireReplay.replay(trace, pipeline, false));
+        pipeline.stop();
+        assertTrue(pipeline.awaitTermination(2000));
+        assertEquals(4, samples.get());
+        assertEquals(0, pipeline.getDroppedChunks());
+    }
+
+    @Test
+    public void fastReplayStopsWhenInterrupted() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WireTraceWriter writer = new WireTraceWriter(out);
+        byte[] data = FRAME.getBytes("US-ASCII");
+        writer.record(data, 0, data.length);
+        writer.close();
+
+        SamplePipeline pipeline = new SamplePipeline(2);
+        WireTraceReader trace = new WireTraceReader(new ByteArrayInputStream(out.toByteArray()));
+        Thread.currentThread().interrupt();
+        try {
+            WireReplay.replay(trace, pipeline, false);
+            fail("replayed while interrupted");
+        } catch (InterruptedException expected) {
+        }
+        assertEquals(0, pipeline.getQueueDepth());
+    }
+}
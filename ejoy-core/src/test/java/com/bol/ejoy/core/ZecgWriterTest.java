@@ -0,0 +1,51 @@
+package com.bol.ejoy.core;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ZecgWriterTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        File file = File.createTempFile("zecg", ".zecg");
+        file.deleteOnExit();
+
+        // 3 samples per chunk and an odd number of values per chunk
+        ZecgWriter writer = new ZecgWriter(file, 3, 250, 3);
+        SampleBatch batch = new SampleBatch(3, 8);
+        for (int i = 0; i < 7; i++) {
+            batch.add(new int[]{i, 0xfff - i, 0x800 + i});
+        }
+        batch.setTimestamp(System.nanoTime());
+        writer.write(batch);
+        writer.close();
+        assertEquals(ZecgWriter.HEADER_SIZE + 3 * ZecgWriter.chunkSize(3, 3), file.length());
+
+        ZecgReader reader = new ZecgReader(file);
+        assertEquals(3, reader.getChannelCount());
+        assertEquals(250, reader.getSampleRate());
+        assertEquals(3, reader.getChunkCount());
+
+        SampleBatch read = new SampleBatch(3, 3);
+        int sample = 0;
+        long first = 0;
+        while (reader.readChunk(read)) {
+            // the chunks start 3 samples apart in the same batch, 4 ms each at 250 Hz
+            if (sample == 0) {
+                first = read.getTimestamp();
+            } else {
+                assertEquals(first + sample * 4000000L, read.getTimestamp());
+            }
+            for (int i = 0; i < read.size(); i++, sample++) {
+                assertEquals(sample, read.get(0, i));
+                assertEquals(0xfff - sample, read.get(1, i));
+                assertEquals(0x800 + sample, read.get(2, i));
+            }
+        }
+        reader.close();
+        assertEquals(7, sample);
+    }
+}